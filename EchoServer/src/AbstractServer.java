@@ -1,19 +1,47 @@
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 
-public abstract class AbstractServer implements Runnable {
+public abstract class AbstractServer {
 
     /**
-     * The server socket: listens for clients who want to connect.
+     * The version of the protocol spoken on the server's own port.
      */
-    private ServerSocket serverSocket = null;
+    final public static int DEFAULT_PROTOCOL_VERSION = 1;
 
     /**
-     * The connection listener thread.
+     * How long the socket of a rejected client is kept open after the
+     * rejection is written, in ms, so the client has time to read it.
      */
-    private Thread connectionListener;
+    final private static int REJECT_LINGER = 1000;
+
+    /**
+     * The listeners accepting clients, the first of them the one on the
+     * server's own port. Only changed while holding the server lock.
+     */
+    private final CopyOnWriteArrayList<ServerListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The listener on the server's own port, made from the port and backlog
+     * when the server starts listening, or null while it is closed.
+     */
+    private ServerListener mainListener = null;
+
+    /**
+     * True from when the server starts listening until it is closed.
+     */
+    private volatile boolean open = false;
+
+    /**
+     * True from when the server starts listening until its last listener
+     * stops. Only used while holding the server lock.
+     */
+    private boolean listening = false;
 
     /**
      * The port number
@@ -37,10 +65,118 @@ public abstract class AbstractServer implements Runnable {
     private ThreadGroup clientThreadGroup;
 
     /**
-     * Indicates if the listening thread is ready to stop. Set to false by
-     * default.
+     * The connections whose threads are running, kept apart from the thread
+     * group so that the timer's checks can walk them without the server
+     * lock.
+     */
+    private final Set<ConnectionToClient> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The number of messages per second each client may send, and how many
+     * messages it may send in a burst. A rate of 0 means no limit, which is
+     * the default.
+     */
+    private double messageRate = 0;
+    private long messageBurst = 1;
+
+    /**
+     * The number of bytes per second each client may upload, and the size of
+     * the burst allowed. A rate of 0 means no limit, which is the default.
+     */
+    private double uploadRate = 0;
+    private long uploadBurst = 1;
+
+    /**
+     * The number of bytes per second each client may download, and the size
+     * of the burst allowed. A rate of 0 means no limit, which is the default.
+     */
+    private double downloadRate = 0;
+    private long downloadBurst = 1;
+
+    /**
+     * The maximum number of connected clients. New connections over this
+     * number are rejected. 0 means no limit, which is the default.
+     */
+    private int maxClients = 0;
+
+    /**
+     * The maximum number of messages that may be waiting for, or running
+     * under, the server lock. While more messages than this are in flight the
+     * server is overloaded and rejects new connections, but keeps serving the
+     * clients it already has. 0 means no limit, which is the default.
+     */
+    private int maxInFlight = 0;
+
+    /**
+     * The number of messages currently waiting for, or running under, the
+     * server lock.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * How often each connection resets its object output stream. An
+     * ObjectOutputStream keeps a reference to every object it has written
+     * until it is reset, so without resets a long session keeps every message
+     * and every downloaded file alive. The stream is reset after this many
+     * messages or bytes, whichever comes first; 0 switches a limit off.
+     */
+    private int resetMessages = 100;
+    private long resetBytes = 1024 * 1024;
+
+    /**
+     * Decides which classes may be deserialized from a client, or null to
+     * allow any class on the class path. Anything a filter rejects fails the
+     * read, and the client is disconnected as for any broken stream.
+     */
+    private ObjectInputFilter inputFilter = null;
+
+    /**
+     * How long a client may go without sending anything before its
+     * connection is considered dead and closed. Clients are expected to send
+     * heartbeats when they have nothing else to say. 0 means no limit, which
+     * is the default.
+     */
+    private long idleTimeout = 0;
+
+    /**
+     * The one timer used for every connection's idle check, and by
+     * subclasses for their own timeouts.
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer("server-timer", 100, 512);
+
+    /**
+     * True once a graceful shutdown has begun. No new connections are
+     * accepted and subclasses should refuse to start new long-running work.
      */
-    private boolean readyToStop = false;
+    private volatile boolean draining = false;
+
+    /**
+     * Counters describing the activity of this server.
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * Where the messages received are being recorded, or null when they are
+     * not.
+     */
+    private volatile TrafficCapture capture = null;
+
+    /**
+     * How long a new client has to send its stream header, in ms, before it
+     * is dropped. 0 means no limit.
+     */
+    private int handshakeTimeout = 10000;
+
+    /**
+     * How long a write to a client may be held up, in ms, before the client
+     * is taken to have stopped reading and is dropped. 0 means no limit.
+     */
+    private int sendTimeout = 10000;
+
+    /**
+     * True while the check for stalled writes is scheduled.
+     */
+    private final AtomicBoolean sendCheckScheduled = new AtomicBoolean();
 
 // CONSTRUCTOR ******************************************************
     /**
@@ -66,49 +202,109 @@ public abstract class AbstractServer implements Runnable {
 
 // INSTANCE METHODS *************************************************
     /**
-     * Begins the thread that waits for new clients. If the server is already in
-     * listening mode, this call has no effect.
+     * Begins the threads that wait for new clients: one on the server's own
+     * port, and one for every listener added with addListener. If the server
+     * is already in listening mode, this call only starts the listeners that
+     * are not listening.
      *
-     * @exception IOException if an I/O error occurs when creating the server
-     * socket.
+     * @exception IOException if an I/O error occurs when creating a server
+     * socket. The listeners before it are left listening.
      */
-    final public void listen() throws IOException {
-        if (!isListening()) {
-            if (serverSocket == null) {
-                serverSocket = new ServerSocket(getPort(), backlog);
+    final synchronized public void listen() throws IOException {
+        if (mainListener == null) {
+            mainListener = new ServerListener(this, null, port, backlog, DEFAULT_PROTOCOL_VERSION);
+            listeners.add(0, mainListener);
+        }
+        try {
+            for (ServerListener listener : listeners) {
+                listener.listen(timeout);
+                open = true;
+            }
+        } finally {
+            if (!listening && isListening()) {
+                listening = true;
+                // call the hook method to notify that the server is starting
+                serverStarted();
+                scheduleSendCheck();
             }
+        }
+    }
 
-            serverSocket.setSoTimeout(timeout);
-            readyToStop = false;
-            connectionListener = new Thread(this);
-            connectionListener.start();
+    /**
+     * Adds another address and port to accept clients on. Its clients are
+     * connections of this server like any other, sharing its users, rooms
+     * and threads. If the server is listening the new listener starts at
+     * once, otherwise with the next call to listen. Listeners stay with the
+     * server when it is closed, and start again when it listens again.
+     *
+     * @param address the address to listen on, or null for every interface.
+     * @param port the port to listen on, or 0 for any free port.
+     * @param backlog the maximum number of clients waiting to be accepted.
+     * @param protocolVersion the version of the protocol its clients speak,
+     * which handlers find with ConnectionToClient.getListener.
+     * @return the new listener.
+     * @exception IOException if the server is listening and the listener's
+     * socket cannot be created, in which case it is not added.
+     */
+    final synchronized public ServerListener addListener(InetAddress address, int port, int backlog,
+            int protocolVersion) throws IOException {
+        ServerListener listener = new ServerListener(this, address, port, backlog, protocolVersion);
+        if (listening) {
+            listener.listen(timeout);
         }
+        listeners.add(listener);
+        return listener;
     }
 
     /**
      * Causes the server to stop accepting new connections.
      */
     final public void stopListening() {
-        readyToStop = true;
+        for (ServerListener listener : listeners) {
+            listener.stopListening();
+        }
+    }
+
+    /**
+     * Closes every listener's server socket, which stops their threads at
+     * once.
+     *
+     * @exception IOException if an I/O error occurs while closing a socket;
+     * the other sockets are closed all the same.
+     */
+    private void closeListeners() throws IOException {
+        IOException failure = null;
+        for (ServerListener listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     /**
      * Closes the server socket and the connections with all clients. Any
      * exception thrown while closing a client is ignored. If one wishes to
      * catch these exceptions, then clients should be individually closed before
-     * calling this method. The method also stops listening if this thread is
+     * calling this method. The method also stops every listener that is
      * running. If the server is already closed, this call has no effect.
      *
-     * @exception IOException if an I/O error occurs while closing the server
+     * @exception IOException if an I/O error occurs while closing a server
      * socket.
      */
     final synchronized public void close() throws IOException {
-        if (serverSocket == null) {
+        if (!open) {
             return;
         }
         stopListening();
         try {
-            serverSocket.close();
+            closeListeners();
         } finally {
             // Close the client sockets of the already connected clients
             Thread[] clientThreadList = getClientConnections();
@@ -119,18 +315,77 @@ public abstract class AbstractServer implements Runnable {
                 catch (Exception ex) {
                 }
             }
-            serverSocket = null;
+            listeners.remove(mainListener); // made again from the port on listen
+            mainListener = null;
+            open = false;
+            draining = false;
+            stopCapture();
             serverClosed();
         }
     }
 
+    /**
+     * Shuts the server down without cutting off work in progress. The server
+     * stops accepting connections at once and every client is sent the
+     * message returned by shutdownNotice, which should tell it to reconnect
+     * after a delay that differs from client to client so they do not all
+     * come back at the same moment. Messages being handled are then allowed
+     * to finish, and drainServer lets the subclass finish its own queued
+     * work, until the deadline. Whatever is left is dropped and counted in
+     * the metrics, and the server is closed as by close(), which tells the
+     * clients it is time to reconnect. If the server is already closed, this
+     * call has no effect.
+     *
+     * @param timeoutMillis how long to wait for work to finish.
+     * @exception IOException if an I/O error occurs while closing the server
+     * socket.
+     */
+    final public void shutdownGracefully(long timeoutMillis) throws IOException {
+        synchronized (this) {
+            if (!open || draining) {
+                return;
+            }
+            draining = true;
+            stopListening();
+            closeListeners(); // wakes the listening threads so they stop now
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        Thread[] clientThreadList = getClientConnections();
+        for (int i = 0; i < clientThreadList.length; i++) {
+            ConnectionToClient client = (ConnectionToClient) clientThreadList[i];
+            Object notice = shutdownNotice(client);
+            if (notice != null) {
+                try {
+                    client.sendToClient(notice);
+                } catch (Exception ex) {
+                    metrics.recordSendFailure();
+                }
+            }
+        }
+
+        while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+        int dropped = inFlight.get()
+                + drainServer(Math.max(0, deadline - System.currentTimeMillis()));
+
+        metrics.recordDrainDropped(dropped);
+        close();
+    }
+
     /**
      * Sends a message to every client connected to the server. This is merely a
      * utility; a subclass may want to do some checks before actually sending
      * messages to all clients. This method can be overriden, but if so it
      * should still perform the general function of sending to all clients,
      * perhaps after some kind of filtering is done. Any exception thrown while
-     * sending the message to a particular client is ignored.
+     * sending the message to a particular client is counted in the metrics
+     * and otherwise ignored.
      *
      * @param msg Object The message to be sent
      */
@@ -141,18 +396,44 @@ public abstract class AbstractServer implements Runnable {
             try {
                 ((ConnectionToClient) clientThreadList[i]).sendToClient(msg);
             } catch (Exception ex) {
+                metrics.recordSendFailure();
             }
         }
     }
 
 // ACCESSING METHODS ------------------------------------------------
     /**
-     * Returns true if the server is ready to accept new clients.
+     * Returns true if the server is ready to accept new clients on at least
+     * one of its listeners.
      *
      * @return true if the server is listening.
      */
     final public boolean isListening() {
-        return (connectionListener != null);
+        for (ServerListener listener : listeners) {
+            if (listener.isListening()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the listeners accepting clients, the one on the server's own
+     * port first once the server has started listening.
+     *
+     * @return the listeners.
+     */
+    final public List<ServerListener> getListeners() {
+        return new ArrayList<>(listeners);
+    }
+
+    /**
+     * Returns true once a graceful shutdown has begun.
+     *
+     * @return true if the server is draining.
+     */
+    final public boolean isDraining() {
+        return draining;
     }
 
     /**
@@ -193,7 +474,8 @@ public abstract class AbstractServer implements Runnable {
 
     /**
      * Sets the port number for the next connection. The server must be closed
-     * and restarted for the port change to be in effect.
+     * and restarted for the port change to be in effect. Listeners added with
+     * addListener keep their own ports.
      *
      * @param port the port number.
      */
@@ -215,8 +497,8 @@ public abstract class AbstractServer implements Runnable {
 
     /**
      * Sets the maximum number of waiting connections accepted by the operating
-     * system. The default is 20. The server must be closed and restarted for
-     * the backlog change to be in effect.
+     * system on the server's own port. The default is 10. The server must be
+     * closed and restarted for the backlog change to be in effect.
      *
      * @param backlog the maximum number of connections.
      */
@@ -224,48 +506,218 @@ public abstract class AbstractServer implements Runnable {
         this.backlog = backlog;
     }
 
-// RUN METHOD -------------------------------------------------------
     /**
-     * Runs the listening thread that allows clients to connect. Not to be
-     * called.
+     * Limits how many messages per second each client may send. Messages over
+     * the limit are not handled; <code>clientThrottled</code> is called
+     * instead. Only clients that connect after this call are affected.
+     *
+     * @param perSecond the sustained message rate, or 0 for no limit.
+     * @param burst the number of messages that may be sent back to back.
      */
-    final public void run() {
-        // call the hook method to notify that the server is starting
-        serverStarted();
+    final public void setMessageRateLimit(double perSecond, long burst) {
+        this.messageRate = perSecond;
+        this.messageBurst = burst;
+    }
 
-        try {
-            // Repeatedly waits for a new client connection, accepts it, and
-            // starts a new thread to handle data exchange.
-            while (!readyToStop) {
-                try {
-                    // Wait here for new connection attempts, or a timeout
-                    Socket clientSocket = serverSocket.accept();
-
-                    // When a client is accepted, create a thread to handle
-                    // the data exchange, then add it to thread group
-                    synchronized (this) {
-                        ConnectionToClient c = new ConnectionToClient(
-                                this.clientThreadGroup, clientSocket, this);
-                    }
-                } catch (InterruptedIOException exception) {
-                    // This will be thrown when a timeout occurs.
-                    // The server will continue to listen if not ready to stop.
-                }
-            }
+    /**
+     * Limits how many bytes per second each client may upload. Only clients
+     * that connect after this call are affected.
+     *
+     * @param bytesPerSecond the sustained upload rate, or 0 for no limit.
+     * @param burst the number of bytes that may be uploaded back to back.
+     */
+    final public void setUploadRateLimit(double bytesPerSecond, long burst) {
+        this.uploadRate = bytesPerSecond;
+        this.uploadBurst = burst;
+    }
 
-            // call the hook method to notify that the server has stopped
-            serverStopped();
-        } catch (IOException exception) {
-            if (!readyToStop) {
-                // Closing the socket must have thrown a SocketException
-                listeningException(exception);
-            } else {
-                serverStopped();
-            }
-        } finally {
-            readyToStop = true;
-            connectionListener = null;
+    /**
+     * Limits how many bytes per second each client may download. Only clients
+     * that connect after this call are affected.
+     *
+     * @param bytesPerSecond the sustained download rate, or 0 for no limit.
+     * @param burst the number of bytes that may be downloaded back to back.
+     */
+    final public void setDownloadRateLimit(double bytesPerSecond, long burst) {
+        this.downloadRate = bytesPerSecond;
+        this.downloadBurst = burst;
+    }
+
+    /**
+     * Sets how often each connection resets its object output stream, which
+     * releases everything the stream remembers having sent. Only clients that
+     * connect after this call are affected.
+     *
+     * @param messages reset after this many messages, or 0 for no limit.
+     * @param bytes reset after this many bytes, or 0 for no limit.
+     */
+    final public void setResetPolicy(int messages, long bytes) {
+        this.resetMessages = messages;
+        this.resetBytes = bytes;
+    }
+
+    /**
+     * @return the number of messages after which connections reset their
+     * output stream.
+     */
+    final int getResetMessages() {
+        return resetMessages;
+    }
+
+    /**
+     * @return the number of bytes after which connections reset their output
+     * stream.
+     */
+    final long getResetBytes() {
+        return resetBytes;
+    }
+
+    /**
+     * Restricts what clients may send. Only clients that connect after this
+     * call are checked.
+     *
+     * @param inputFilter the filter applied to every object read from a
+     * client, or null to allow any class.
+     */
+    final public void setInputFilter(ObjectInputFilter inputFilter) {
+        this.inputFilter = inputFilter;
+    }
+
+    /**
+     * @return the filter for objects read from clients, or null.
+     */
+    final ObjectInputFilter getInputFilter() {
+        return inputFilter;
+    }
+
+    /**
+     * Sets how long a client may stay silent before it is disconnected. Only
+     * clients that connect after this call are watched.
+     *
+     * @param idleTimeout the time in ms, or 0 to never disconnect idle
+     * clients.
+     */
+    final public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns the timer that watches for idle clients. Subclasses may use it
+     * for their own short tasks; tasks must not block.
+     *
+     * @return the server's timer.
+     */
+    final public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Sets the maximum number of connected clients. Connections over the
+     * limit are rejected as soon as they are accepted.
+     *
+     * @param maxClients the maximum number of clients, or 0 for no limit.
+     */
+    final public void setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * Sets the maximum number of messages that may be in flight before the
+     * server considers itself overloaded and stops admitting new clients.
+     *
+     * @param maxInFlight the maximum number of messages, or 0 for no limit.
+     */
+    final public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets how long a new client may take to send its stream header. Only
+     * clients that connect after this call are affected.
+     *
+     * @param handshakeTimeout the time in ms, or 0 for no limit.
+     */
+    final public void setHandshakeTimeout(int handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * Sets how long a write to a client may be held up before the client is
+     * dropped. Writes block while the client's socket buffer is full, and
+     * one that never finishes would otherwise hold up the thread writing,
+     * and every message left for it, for as long as the client stays
+     * connected.
+     *
+     * @param sendTimeout the time in ms, or 0 for no limit.
+     */
+    final public void setSendTimeout(int sendTimeout) {
+        this.sendTimeout = sendTimeout;
+        scheduleSendCheck();
+    }
+
+    /**
+     * @return how long a new client may take to send its stream header.
+     */
+    final int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Starts recording every message received, and when each client comes
+     * and goes, to a file TrafficReplay can play back. Recording never holds
+     * up the handling of messages; if it falls behind, records are dropped
+     * and counted. A capture already running is stopped first.
+     *
+     * @param file the file to record to.
+     * @exception IOException if the file cannot be created.
+     */
+    final synchronized public void startCapture(File file) throws IOException {
+        stopCapture();
+        capture = new TrafficCapture(file);
+    }
+
+    /**
+     * Stops recording and closes the capture file. Has no effect if nothing
+     * is being recorded.
+     */
+    final synchronized public void stopCapture() {
+        TrafficCapture current = capture;
+        if (current == null) {
+            return;
         }
+        capture = null;
+        current.stop();
+        System.out.println("Capture to " + current.getFile() + " stopped: "
+                + current.getWritten() + " records, " + current.getDropped() + " dropped");
+    }
+
+    /**
+     * Returns the number of messages waiting for, or running under, the
+     * server lock.
+     *
+     * @return the number of messages in flight.
+     */
+    final public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns true if the server has more messages in flight than it allows,
+     * in which case new clients are turned away.
+     *
+     * @return true if the server is overloaded.
+     */
+    final public boolean isOverloaded() {
+        return maxInFlight > 0 && inFlight.get() >= maxInFlight;
+    }
+
+    /**
+     * Returns the counters describing the activity of this server.
+     *
+     * @return the server metrics.
+     */
+    final public ServerMetrics getMetrics() {
+        return metrics;
     }
 
 // METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
@@ -303,8 +755,9 @@ public abstract class AbstractServer implements Runnable {
 
     /**
      * Hook method called when the server stops accepting connections because an
-     * exception has been raised. The default implementation does nothing. This
-     * method may be overriden by subclasses.
+     * exception has been raised, or when one connection could not be accepted
+     * and the server carries on listening. The default implementation does
+     * nothing. This method may be overriden by subclasses.
      *
      * @param exception the exception raised.
      */
@@ -335,6 +788,93 @@ public abstract class AbstractServer implements Runnable {
     protected void serverClosed() {
     }
 
+    /**
+     * Hook method called for each client when a graceful shutdown begins. The
+     * returned object, if any, is sent to the client, and should tell it when
+     * and where to reconnect. The default implementation returns null.
+     *
+     * @param client the connection with the client.
+     * @return the message to send, or null.
+     */
+    protected Object shutdownNotice(ConnectionToClient client) {
+        return null;
+    }
+
+    /**
+     * Hook method called during a graceful shutdown once the messages being
+     * handled have finished, to let the subclass finish its own queued work.
+     * It should return within the given time. The default implementation
+     * does nothing.
+     *
+     * @param timeoutMillis how long the subclass may take.
+     * @return the number of tasks that had to be dropped.
+     */
+    protected int drainServer(long timeoutMillis) {
+        return 0;
+    }
+
+    /**
+     * Hook method called when a new connection is turned away by admission
+     * control. The returned object, if any, is sent to the client before the
+     * connection is closed. The default implementation returns null, which
+     * closes the connection without a message. This method may be overriden
+     * by subclasses, for example to tell the client when to retry. It is
+     * called from the listening thread and must not block.
+     *
+     * @param address the address of the rejected client.
+     * @param reason why the client was rejected.
+     * @return the message to send, or null.
+     */
+    protected Object connectionRejected(InetAddress address, String reason) {
+        return null;
+    }
+
+    /**
+     * Handles a heartbeat from a client. Called for every message before the
+     * rate limit and the server lock, so heartbeats cost next to nothing. The
+     * default implementation treats no message as a heartbeat. This method
+     * may be overriden by subclasses; it must not block.
+     *
+     * @param msg the message sent.
+     * @param client the client that sent it.
+     * @return true if the message was a heartbeat and needs no further
+     * handling.
+     */
+    protected boolean handleHeartbeat(Object msg, ConnectionToClient client) {
+        return false;
+    }
+
+    /**
+     * Hook method called when handling a message from a client throws. The
+     * client stays connected and the failure is counted in the metrics. The
+     * default implementation does nothing. This method may be overriden by
+     * subclasses, for example to log the failure and answer the message with
+     * an error. It is not called while holding the server lock.
+     *
+     * @param client the client that sent the message.
+     * @param msg the message.
+     * @param exception what handling it threw.
+     */
+    protected void messageFailed(
+            ConnectionToClient client, Object msg, RuntimeException exception) {
+    }
+
+    /**
+     * Hook method called when a client goes over one of its rate limits. The
+     * message or transfer that went over the limit has already been dropped.
+     * The default implementation does nothing. This method may be overriden
+     * by subclasses, for example to tell the client to slow down. It is not
+     * called while holding the server lock.
+     *
+     * @param client the client that was throttled.
+     * @param kind one of "messages", "upload" or "download".
+     * @param retryAfter the number of milliseconds before the client may try
+     * again.
+     */
+    protected void clientThrottled(
+            ConnectionToClient client, String kind, long retryAfter) {
+    }
+
     /**
      * Handles a command sent from one client to the server. This MUST be
      * implemented by subclasses, who should respond to messages. This method is
@@ -354,15 +894,254 @@ public abstract class AbstractServer implements Runnable {
      * messages coming from the server This method is synchronized to ensure
      * that whatever effects it has do not conflict with work being done by
      * other threads. The method simply calls the
-     * <code>handleMessageFromClient</code> slot method.
+     * <code>handleMessageFromClient</code> slot method. The client's message
+     * rate limit is checked before the lock is taken, so a flooding client
+     * never queues up on the lock.
      *
      * @param msg the message sent.
      * @param client the connection connected to the client that sent the
      * message.
      */
-    final synchronized void receiveMessageFromClient(
+    final void receiveMessageFromClient(
             Object msg, ConnectionToClient client) {
-        this.handleMessageFromClient(msg, client);
+        TrafficCapture capture = this.capture;
+        if (capture != null) {
+            capture.message(client, msg);
+        }
+        if (handleHeartbeat(msg, client)) {
+            return;
+        }
+
+        long retryAfter = client.acquireMessage();
+        if (retryAfter > 0) {
+            metrics.recordThrottled("messages");
+            clientThrottled(client, "messages", retryAfter);
+            return;
+        }
+
+        inFlight.incrementAndGet();
+        try {
+            synchronized (this) {
+                this.handleMessageFromClient(msg, client);
+            }
+        } catch (RuntimeException exception) {
+            // A bug in handling one message must not take the connection
+            // down with it, nor go unnoticed
+            metrics.recordHandlerError();
+            messageFailed(client, msg, exception);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Called by a listener's thread for each client it accepts. Turns the
+     * client away if the server is full or overloaded, otherwise starts the
+     * thread that serves it.
+     *
+     * @param clientSocket the socket of the new client.
+     * @param listener the listener that accepted it.
+     */
+    final void connectionAccepted(Socket clientSocket, ServerListener listener) {
+        // Turn the client away before touching the server lock
+        // if the server is full or overloaded
+        String reason = admissionCheck();
+        if (reason != null) {
+            metrics.recordRejectedConnection();
+            rejectConnection(clientSocket, reason);
+            return;
+        }
+
+        // When a client is accepted, create a thread to handle
+        // the data exchange, then add it to thread group
+        synchronized (this) {
+            ConnectionToClient c = new ConnectionToClient(
+                    this.clientThreadGroup, clientSocket, this, listener);
+            metrics.recordConnectionOpened();
+            if (idleTimeout > 0) {
+                scheduleIdleCheck(c, idleTimeout, idleTimeout);
+            }
+        }
+    }
+
+    /**
+     * Called by a listener's thread as it stops, however it stopped. Once
+     * no listener is left listening, the server has stopped listening.
+     *
+     * @param listener the listener that stopped.
+     */
+    final synchronized void listenerStopped(ServerListener listener) {
+        if (listening && !isListening()) {
+            listening = false;
+            // call the hook method to notify that the server has stopped
+            serverStopped();
+        }
+    }
+
+    /**
+     * Called by a connection's thread as it starts, before anything else,
+     * so that the timer's checks can find the connection.
+     *
+     * @param client the connection that started.
+     */
+    final void connectionStarted(ConnectionToClient client) {
+        connections.add(client);
+    }
+
+    /**
+     * Called by a connection's thread as it finishes, however the connection
+     * ended, so that a capture in progress records the client leaving.
+     *
+     * @param client the connection that ended.
+     */
+    final void connectionEnded(ConnectionToClient client) {
+        connections.remove(client);
+        metrics.recordConnectionClosed();
+        TrafficCapture capture = this.capture;
+        if (capture != null) {
+            capture.disconnected(client);
+        }
+    }
+
+    /**
+     * Schedules the check for clients that have stopped reading, unless it is
+     * already scheduled. The check runs four times per send timeout while
+     * the server is open, and drops every client whose write has been held
+     * up for longer than the timeout; closing the socket ends the write, so
+     * the thread writing and anything left for it are freed. The check runs
+     * on the timer thread and walks the running connections without taking
+     * the server lock, so it is never held up by a thread that has it.
+     */
+    private void scheduleSendCheck() {
+        int timeout = sendTimeout;
+        if (timeout <= 0 || !sendCheckScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        timer.schedule(() -> {
+            sendCheckScheduled.set(false);
+            if (!open) {
+                return;
+            }
+            long now = System.nanoTime();
+            long limit = sendTimeout * 1_000_000L;
+            for (ConnectionToClient client : connections) {
+                long since = client.getWritingSince();
+                if (since != 0 && now - since > limit) {
+                    metrics.recordSlowConsumer();
+                    client.abort();
+                }
+            }
+            scheduleSendCheck();
+        }, Math.max(100, timeout / 4));
+    }
+
+    /**
+     * Checks a connection for idleness once its timeout may have passed. A
+     * client that has been silent for the whole timeout has its socket
+     * closed, which makes its own thread clean up as for any other broken
+     * connection; this keeps the timer thread off the server lock. A client
+     * that has been active is checked again when its timeout could next run
+     * out, so each connection only ever has one pending check.
+     *
+     * @param client the connection to watch.
+     * @param delay the time in ms before the check.
+     * @param idleTimeout the idle timeout in ms.
+     */
+    private void scheduleIdleCheck(ConnectionToClient client, long delay, long idleTimeout) {
+        timer.schedule(() -> {
+            if (!client.isAlive()) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - client.getLastActivity();
+            if (idle >= idleTimeout) {
+                metrics.recordIdleReaped();
+                client.abort();
+            } else {
+                scheduleIdleCheck(client, idleTimeout - idle, idleTimeout);
+            }
+        }, delay);
+    }
+
+    /**
+     * Decides whether a newly accepted connection may join the server.
+     *
+     * @return null if the connection is admitted, otherwise the reason it is
+     * rejected.
+     */
+    private String admissionCheck() {
+        if (maxClients > 0 && getNumberOfClients() >= maxClients) {
+            return "full";
+        }
+        if (isOverloaded()) {
+            return "overloaded";
+        }
+        return null;
+    }
+
+    /**
+     * Sends the rejection message to a client turned away by admission control
+     * and closes its socket. The message is written at once without waiting
+     * for the client's stream header, which a silent client might never
+     * send, so the listening thread is not held up; the message fits in the
+     * socket's send buffer of a fresh connection. The socket is closed on
+     * the timer a little later, after throwing away whatever the client sent
+     * meanwhile, so that the close does not reset the connection before the
+     * client has read the rejection. Any exception is ignored since the
+     * client is being dropped anyway.
+     *
+     * @param clientSocket the socket of the rejected client.
+     * @param reason why the client was rejected.
+     */
+    private void rejectConnection(Socket clientSocket, String reason) {
+        try {
+            Object msg = connectionRejected(clientSocket.getInetAddress(), reason);
+            if (msg != null) {
+                ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
+                out.writeObject(msg);
+                out.flush();
+                clientSocket.shutdownOutput();
+                timer.schedule(() -> closeRejected(clientSocket), REJECT_LINGER);
+                return;
+            }
+        } catch (IOException ex) {
+            metrics.recordSendFailure();
+        }
+        closeRejected(clientSocket);
+    }
+
+    /**
+     * Closes the socket of a rejected client, first discarding what it has
+     * sent without blocking.
+     *
+     * @param clientSocket the socket of the rejected client.
+     */
+    private void closeRejected(Socket clientSocket) {
+        try {
+            if (!clientSocket.isClosed() && !clientSocket.isInputShutdown()) {
+                InputStream in = clientSocket.getInputStream();
+                in.skip(in.available());
+            }
+        } catch (IOException ex) {
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Creates the token buckets for a new connection from the configured
+     * rate limits. A bucket is null when its limit is switched off.
+     *
+     * @return the message, upload and download buckets, in that order.
+     */
+    final TokenBucket[] createBuckets() {
+        return new TokenBucket[]{
+            messageRate > 0 ? new TokenBucket(messageRate, messageBurst) : null,
+            uploadRate > 0 ? new TokenBucket(uploadRate, uploadBurst) : null,
+            downloadRate > 0 ? new TokenBucket(downloadRate, downloadBurst) : null
+        };
     }
 }
 // End of AbstractServer Class
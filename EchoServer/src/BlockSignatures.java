@@ -0,0 +1,183 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksums of the blocks of a file in uploads/, sent in answer to
+ * "#ftpsig" so that a client holding a newer version of the file can send
+ * only what changed. Every block has a weak checksum that can be rolled
+ * along the new file one byte at a time, and an MD5 digest to confirm a
+ * match the weak checksum suggests. A short last block is left out, so a
+ * match always covers a whole block.
+ *
+ * The digest of the whole file is included so that the server can tell
+ * whether the file it rebuilds a delta against is still the one signed.
+ */
+public class BlockSignatures implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The smallest and largest block sizes chosen. Bigger files get bigger
+     * blocks, so the signatures grow with the square root of the file.
+     */
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private static final int STRONG_LENGTH = 16;
+
+    private String name; //the name of the file
+    private long length; //its length in bytes
+    private byte[] sha256; //the SHA-256 digest of the whole file
+    private int blockSize; //the length of every block
+    private int[] weak; //the weak checksum of each whole block
+    private byte[] strong; //the MD5 digest of each whole block, one after another
+
+    public BlockSignatures(String name, long length, byte[] sha256, int blockSize, int[] weak, byte[] strong) {
+        this.name = name;
+        this.length = length;
+        this.sha256 = sha256;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Works out the signatures of a file.
+     *
+     * @param name the name of the file.
+     * @param f the file.
+     * @param sha256 the digest of the whole file.
+     * @return the signatures.
+     */
+    public static BlockSignatures compute(String name, File f, byte[] sha256) throws IOException {
+        long length = f.length();
+        int blockSize = blockSizeFor(length);
+        int blocks = (int) (length / blockSize);
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_LENGTH];
+        MessageDigest md5 = md5();
+
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            for (int i = 0; i < blocks; i++) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, (long) i * blockSize + buffer.position()) < 0) {
+                        throw new IOException("file got shorter while being signed");
+                    }
+                }
+                weak[i] = weakChecksum(buffer.array(), 0, blockSize);
+                strongChecksum(md5, buffer.array(), 0, blockSize, strong, i * STRONG_LENGTH);
+            }
+        }
+        return new BlockSignatures(name, length, sha256, blockSize, weak, strong);
+    }
+
+    /**
+     * @return the block size used for a file of the given length.
+     */
+    public static int blockSizeFor(long length) {
+        int size = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(length)));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Works out the weak checksum of a block: the sum of its bytes in the
+     * low half, and the sum of the bytes weighted by their distance from the
+     * end in the high half, each kept to 16 bits.
+     */
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Moves a weak checksum one byte along.
+     *
+     * @param sum the checksum of the block starting at the byte leaving.
+     * @param out the byte leaving the block.
+     * @param in the byte joining the block.
+     * @param length the block length.
+     * @return the checksum of the block one byte further on.
+     */
+    public static int roll(int sum, byte out, byte in, int length) {
+        int x = out & 0xFF;
+        int a = ((sum & 0xFFFF) - x + (in & 0xFF)) & 0xFFFF;
+        int b = ((sum >>> 16) - length * x + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    /**
+     * Works out the MD5 digest of a block into a buffer.
+     */
+    static void strongChecksum(MessageDigest md5, byte[] data, int offset, int length, byte[] dest, int destOffset) {
+        md5.update(data, offset, length);
+        try {
+            md5.digest(dest, destOffset, STRONG_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a new MD5 digest.
+     */
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Tells whether a block's MD5 digest matches a digest worked out by the
+     * caller.
+     */
+    boolean strongMatches(int block, byte[] digest) {
+        int offset = block * STRONG_LENGTH;
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (strong[offset + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public byte[] getSha256() {
+        return sha256;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    public int getWeak(int block) {
+        return weak[block];
+    }
+}
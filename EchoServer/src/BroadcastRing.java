@@ -0,0 +1,149 @@
+import java.lang.invoke.VarHandle;
+
+/**
+ * The messages recently sent to one room, kept in a fixed size ring that
+ * every member's writer reads from. A message is stored once, however many
+ * members the room has, and each writer keeps its own position in the ring;
+ * nothing is copied into per-member queues.
+ *
+ * There is a single producer, the server holding its lock, and it never
+ * waits for readers. A reader that falls so far behind that the messages it
+ * has not sent yet have been overwritten has lapped out, and must resync
+ * instead. Messages must not be changed once published, since readers may
+ * still be sending them.
+ *
+ * Chat lines are the exception: each slot has a StringFrame of its own,
+ * made the first time it is needed, which the producer fills for the line
+ * published in that slot, so that relaying a line allocates nothing. A
+ * reader copies a frame out and checks with isAvailable that it was not
+ * filled again meanwhile before sending the copy.
+ */
+public class BroadcastRing {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The room this ring belongs to.
+     */
+    private final String room;
+
+    /**
+     * The ring: message n is in slot n & mask, along with the connection
+     * that should not get it, if any.
+     */
+    private final Object[] messages;
+    private final ConnectionToClient[] excepts;
+    private final StringFrame[] frames;
+    private final int mask;
+
+    /**
+     * The number of messages published so far. Written only by the producer,
+     * after the slot is filled, so that a reader that sees the new count also
+     * sees the message.
+     */
+    private volatile long published = 0;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs an empty ring.
+     *
+     * @param room the room the ring belongs to.
+     * @param capacity the number of messages kept, rounded up to a power of
+     * two.
+     */
+    public BroadcastRing(String room, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.room = room;
+        this.messages = new Object[size];
+        this.excepts = new ConnectionToClient[size];
+        this.frames = new StringFrame[size];
+        this.mask = size - 1;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Adds a message to the ring, overwriting the oldest one if the ring is
+     * full. Only one thread may publish at a time.
+     *
+     * @param msg the message.
+     * @param except a connection that should not get the message, or null.
+     */
+    public void publish(Object msg, ConnectionToClient except) {
+        long seq = published;
+        int slot = (int) (seq & mask);
+        messages[slot] = msg;
+        excepts[slot] = except;
+        published = seq + 1;
+    }
+
+    /**
+     * Returns the frame to fill with the next chat line, the one belonging
+     * to the slot the line will be published in. The line that was in it
+     * before has already been overwritten as far as readers can tell, so
+     * it may be changed at once. Only the producer may call this.
+     *
+     * @return the frame, to be filled and then published.
+     */
+    public StringFrame nextFrame() {
+        int slot = (int) (published & mask);
+        StringFrame frame = frames[slot];
+        if (frame == null) {
+            frame = new StringFrame();
+            frames[slot] = frame;
+        }
+        return frame;
+    }
+
+    /**
+     * Returns a published message. The caller must check with isAvailable,
+     * after reading, that the slot was not overwritten meanwhile.
+     *
+     * @param seq the number of the message.
+     * @return the message.
+     */
+    public Object getMessage(long seq) {
+        return messages[(int) (seq & mask)];
+    }
+
+    /**
+     * Returns the connection that should not get a published message. The
+     * same check as for getMessage applies.
+     *
+     * @param seq the number of the message.
+     * @return the connection, or null.
+     */
+    public ConnectionToClient getExcept(long seq) {
+        return excepts[(int) (seq & mask)];
+    }
+
+    /**
+     * Checks that a message read from the ring was not overwritten while it
+     * was being read. The slot of message seq is reused by message
+     * seq + capacity, which is written before the count is raised past it,
+     * so the message is only certain to be intact while fewer than capacity
+     * messages have been published since.
+     *
+     * @param seq the number of a published message.
+     * @return true if the message is still in the ring.
+     */
+    public boolean isAvailable(long seq) {
+        // the slots must be read before the count, as a volatile read alone
+        // does not stop earlier plain reads from being moved after it
+        VarHandle.loadLoadFence();
+        return published - seq < messages.length;
+    }
+
+    /**
+     * @return the number of messages published so far.
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return the room the ring belongs to.
+     */
+    public String getRoom() {
+        return room;
+    }
+}
+// End of BroadcastRing class
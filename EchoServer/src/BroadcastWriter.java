@@ -0,0 +1,376 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends room messages from the rooms' BroadcastRings to a share of the
+ * server's connections, on a thread of its own. The server runs a few of
+ * these and gives each connection to one of them; publishing a message wakes
+ * each writer once, and the writer then walks its members of that room,
+ * sending every one of them what it has not had yet. No message is queued
+ * per member, so the cost of a message to the server's memory does not grow
+ * with the size of the room.
+ *
+ * A socket write blocks once the client's TCP window is full, and the
+ * writer cannot tell beforehand. So every signal checks whether the writer
+ * has been held up in one send for longer than MAX_SEND_MILLIS, as does the
+ * server's timer when nothing is being published, and if so the stuck
+ * thread is left to finish that send alone while a new thread carries on
+ * with the writer's work. The member it was stuck on then has its messages handed
+ * off to the stuck send, and once it has too many waiting it skips messages
+ * rather than hold anyone up; when it can take them again the server is
+ * told how many it missed, so that it can help the client resync. A member
+ * whose unsent messages have been overwritten in the ring skips to the
+ * newest message and is reported the same way.
+ */
+public class BroadcastWriter {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * How long a writer may be held up in one send before a new thread
+     * takes over its work.
+     */
+    final public static long MAX_SEND_MILLIS = 100;
+
+    /**
+     * Told about members that fell too far behind.
+     */
+    public interface LapHandler {
+
+        /**
+         * Called on the writer's thread when a member misses messages.
+         *
+         * @param client the member.
+         * @param room the room it missed messages in.
+         * @param missed the number of messages missed.
+         */
+        void lapped(ConnectionToClient client, String room, long missed);
+    }
+
+    /**
+     * One connection's membership of a room: where it is in the room's ring.
+     * Created by subscribe, and ended by cancel when the connection leaves
+     * the room or goes away.
+     */
+    public static class Subscription {
+
+        private final ConnectionToClient client;
+        private final BroadcastRing ring;
+        private final BroadcastWriter writer;
+        private long cursor; //the next message to send, from when it subscribed
+        private long skipped = 0; //messages skipped while the client was backed up
+        private int index = -1; //where it is in its group, only used by the writer
+        private volatile boolean cancelled = false;
+
+        private Subscription(ConnectionToClient client, BroadcastRing ring, BroadcastWriter writer) {
+            this.client = client;
+            this.ring = ring;
+            this.writer = writer;
+            this.cursor = ring.getPublished();
+        }
+
+        /**
+         * Stops sending the room's messages to the connection. Messages not
+         * sent yet are dropped.
+         */
+        public void cancel() {
+            cancelled = true;
+            writer.changes.add(this);
+            writer.signal();
+        }
+    }
+
+    /**
+     * The writer's members of one room, and how far all of them have been
+     * sent, so that rooms with nothing new are skipped without looking at
+     * their members, unless a member has skipped messages that are still
+     * to be reported. A member joins at the point it subscribed, which may be
+     * behind what has been published by the time the writer adds it, so
+     * adding a member can move drainedTo back.
+     */
+    private static class Group {
+
+        final BroadcastRing ring;
+        final ArrayList<Subscription> members = new ArrayList<>();
+        long drainedTo;
+        int skipping = 0; //members with skipped messages not reported yet
+
+        Group(BroadcastRing ring, long drainedTo) {
+            this.ring = ring;
+            this.drainedTo = drainedTo;
+        }
+    }
+
+    /**
+     * The rooms this writer has members in. Only used by the writer thread.
+     */
+    private final HashMap<BroadcastRing, Group> groups = new HashMap<>();
+    private final ArrayList<Group> groupList = new ArrayList<>();
+
+    /**
+     * Subscriptions started or cancelled since the writer last looked.
+     */
+    private final ConcurrentLinkedQueue<Subscription> changes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Set when there may be something new to send.
+     */
+    private volatile boolean signalled = false;
+
+    /**
+     * True while the writer is parked with nothing left to send.
+     */
+    private volatile boolean idle = false;
+
+    private final String name;
+    private final LapHandler lapHandler;
+
+    /**
+     * The thread doing the writer's work. The state above that is only used
+     * by the writer is only used by this thread.
+     */
+    private volatile Thread runner;
+
+    /**
+     * When the send in progress began, as returned by System.nanoTime, or 0
+     * if none is. A stalled send is taken over by setting this back to 0,
+     * which the thread making it finds when the send returns.
+     */
+    private final AtomicLong sendingSince = new AtomicLong();
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs a writer and starts its thread.
+     *
+     * @param name the name of the writer's threads.
+     * @param lapHandler told about members that fell too far behind.
+     */
+    public BroadcastWriter(String name, LapHandler lapHandler) {
+        this.name = name;
+        this.lapHandler = lapHandler;
+        startRunner();
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Starts sending a room's messages to a connection, beginning with the
+     * next message published. Must be called by the room's producer.
+     *
+     * @param client the connection.
+     * @param ring the room's ring.
+     * @return the subscription, which must be cancelled when the connection
+     * leaves the room.
+     */
+    public Subscription subscribe(ConnectionToClient client, BroadcastRing ring) {
+        Subscription sub = new Subscription(client, ring, this);
+        changes.add(sub);
+        signal();
+        return sub;
+    }
+
+    /**
+     * Wakes the writer because something was published or changed.
+     */
+    public void signal() {
+        signalled = true;
+        idle = false;
+        checkStalled();
+        LockSupport.unpark(runner);
+    }
+
+    /**
+     * @return true if the writer has sent everything and is waiting.
+     */
+    public boolean isIdle() {
+        return idle && !signalled;
+    }
+
+    /**
+     * Hands the writer's work to a new thread if the current one has been
+     * held up in one send for longer than MAX_SEND_MILLIS. The old thread
+     * finishes its send and then stops. Called by signal, and regularly by
+     * the server's timer.
+     */
+    public void checkStalled() {
+        long since = sendingSince.get();
+        if (since != 0 && System.nanoTime() - since > MAX_SEND_MILLIS * 1_000_000L
+                && sendingSince.compareAndSet(since, 0)) {
+            startRunner();
+        }
+    }
+
+    /**
+     * Starts a thread to do the writer's work.
+     */
+    private void startRunner() {
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        runner = thread;
+        thread.start();
+    }
+
+// RUN METHOD -------------------------------------------------------
+    /**
+     * Sends messages until the program ends, or until another thread takes
+     * over.
+     */
+    private void run() {
+        // a line is copied out of its ring before being sent, since the
+        // ring's frames are filled again as it comes round; each thread has
+        // its own, as a stalled one may still be sending from it
+        StringFrame line = new StringFrame();
+        while (true) {
+            signalled = false;
+            applyChanges();
+            for (int i = 0; i < groupList.size(); i++) {
+                if (!drain(groupList.get(i), line)) {
+                    return; // taken over
+                }
+            }
+            if (!signalled) {
+                idle = true;
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Adds new subscriptions to their groups and removes cancelled ones.
+     */
+    private void applyChanges() {
+        Subscription sub;
+        while ((sub = changes.poll()) != null) {
+            Group group = groups.get(sub.ring);
+            if (sub.cancelled) {
+                if (group != null && sub.index >= 0) {
+                    if (sub.skipped > 0) {
+                        group.skipping--;
+                    }
+                    remove(group, sub.index);
+                }
+            } else if (sub.index < 0) {
+                if (group == null) {
+                    group = new Group(sub.ring, sub.cursor);
+                    groups.put(sub.ring, group);
+                    groupList.add(group);
+                }
+                group.drainedTo = Math.min(group.drainedTo, sub.cursor);
+                sub.index = group.members.size();
+                group.members.add(sub);
+            }
+        }
+    }
+
+    /**
+     * Sends every member of a group the messages it has not had yet.
+     *
+     * @return false if another thread took over while this one was held up
+     * in a send, in which case this one must stop at once.
+     */
+    private boolean drain(Group group, StringFrame line) {
+        BroadcastRing ring = group.ring;
+        long published = ring.getPublished();
+        if (published == group.drainedTo && group.skipping == 0) {
+            return true;
+        }
+
+        ArrayList<Subscription> members = group.members;
+        for (int i = members.size() - 1; i >= 0; i--) {
+            Subscription sub = members.get(i);
+            if (sub.cancelled) {
+                continue; // removed by applyChanges
+            }
+            if (sub.client.isBackedUp()) {
+                // its messages wait on a stalled send; skip them for now
+                if (sub.skipped == 0 && sub.cursor < published) {
+                    group.skipping++;
+                }
+                sub.skipped += published - sub.cursor;
+                sub.cursor = published;
+                continue;
+            }
+            if (sub.skipped > 0) {
+                lapHandler.lapped(sub.client, ring.getRoom(), sub.skipped);
+                sub.skipped = 0;
+                group.skipping--;
+            }
+            while (sub.cursor < published) {
+                long seq = sub.cursor;
+                Object msg = ring.getMessage(seq);
+                if (msg instanceof StringFrame) {
+                    line.copyFrom((StringFrame) msg);
+                    msg = line;
+                }
+                ConnectionToClient except = ring.getExcept(seq);
+                if (!ring.isAvailable(seq)) {
+                    long newest = ring.getPublished();
+                    sub.cursor = newest;
+                    lapHandler.lapped(sub.client, ring.getRoom(), newest - seq);
+                    break;
+                }
+                sub.cursor = seq + 1;
+                if (except == sub.client) {
+                    continue;
+                }
+                long since = System.nanoTime();
+                if (since == 0) {
+                    since = 1; // 0 means no send
+                }
+                sendingSince.set(since);
+                boolean failed = false;
+                try {
+                    send(sub.client, msg);
+                } catch (IOException ex) {
+                    failed = true;
+                }
+                if (!sendingSince.compareAndSet(since, 0)) {
+                    // taken over; the thread now running may have members
+                    // that skipped messages waiting on this send
+                    signal();
+                    return false;
+                }
+                if (failed) {
+                    // the connection is going away; its own thread cleans up
+                    sub.cursor = published;
+                }
+            }
+        }
+        group.drainedTo = published;
+        return true;
+    }
+
+    /**
+     * Sends one message from a ring to a member.
+     */
+    private static void send(ConnectionToClient client, Object msg) throws IOException {
+        if (msg instanceof StringFrame) {
+            client.sendFrame((StringFrame) msg);
+        } else if (msg instanceof ObjectFrame) {
+            client.sendFrame((ObjectFrame) msg);
+        } else {
+            // only a message the server could not serialize
+            client.sendToClient(msg);
+        }
+    }
+
+    /**
+     * Removes a member from a group by moving the last member into its
+     * place, and drops the group once it is empty.
+     */
+    private void remove(Group group, int index) {
+        ArrayList<Subscription> members = group.members;
+        Subscription last = members.remove(members.size() - 1);
+        if (index < members.size()) {
+            members.set(index, last);
+            last.index = index;
+        }
+        if (members.isEmpty()) {
+            groups.remove(group.ring);
+            groupList.remove(group);
+        }
+    }
+}
+// End of BroadcastWriter class
@@ -0,0 +1,405 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct (off-heap) byte buffers for socket and file I/O. A direct
+ * buffer can be handed to the operating system as it is, where a heap array
+ * is first copied into native memory on every read and write, but direct
+ * buffers are slow to allocate and only freed when the garbage collector
+ * gets round to it, so they are kept and reused rather than made per
+ * transfer.
+ *
+ * Buffers come in size classes, powers of two from MIN_SIZE to MAX_SIZE; a
+ * request is served from the smallest class that fits, and larger ones get
+ * a buffer of their own that is not kept. At most a set number of bytes are
+ * kept idle, beyond which returned buffers are left to the collector.
+ *
+ * Every buffer is lent as a Lease, which must be closed to give the buffer
+ * back, best with try-with-resources. A pooled buffer keeps its lease, which
+ * is lent out again with it, so taking and giving back a buffer allocates
+ * nothing. In debug mode, a lease that is lost without being closed is
+ * reported along with where it was taken, once the collector finds it, and
+ * its buffer is taken back; the cleaner needs a lease of its own to watch,
+ * so there every lease is new.
+ */
+public class BufferPool {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * The smallest and largest size classes, in bytes.
+     */
+    final public static int MIN_SIZE = 4 * 1024;
+    final public static int MAX_SIZE = 1024 * 1024;
+
+    /**
+     * Default number of idle bytes the shared pool keeps. It can be changed
+     * with the echo.bufferPoolBytes system property; 0 keeps none, so every
+     * lease allocates. Setting echo.bufferPoolDebug to true turns on leak
+     * detection.
+     */
+    final public static long DEFAULT_POOL_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * The pool used by the connections and file transfers of this process.
+     */
+    private static final BufferPool SHARED = new BufferPool(
+            Long.getLong("echo.bufferPoolBytes", DEFAULT_POOL_BYTES),
+            Boolean.getBoolean("echo.bufferPoolDebug"));
+
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * A borrowed buffer. Closing the lease gives the buffer back; it must
+     * not be used after that. A lease is meant for one thread at a time.
+     */
+    public static class Lease implements AutoCloseable {
+
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final State state; //what the cleaner gives back, in debug mode only
+        private boolean idle = false; //true while the lease is back in the pool
+        private Lease next; //the next idle lease of its size class
+
+        private Lease(BufferPool pool, ByteBuffer buffer, State state) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.state = state;
+        }
+
+        /**
+         * @return the buffer, cleared, with its limit at the size asked for.
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Gives the buffer back to the pool. Closing a lease again has no
+         * effect, until the pool lends it out again.
+         */
+        @Override
+        public void close() {
+            if (state != null) {
+                state.release(false);
+            } else if (!idle) {
+                idle = true;
+                pool.giveBack(this);
+            }
+        }
+    }
+
+    /**
+     * What a lease holds in debug mode, kept apart from the lease so that
+     * the cleaner can take the buffer back once the lease is collected.
+     */
+    private static class State implements Runnable {
+
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final Throwable taken; //where the lease was taken
+        private boolean released = false;
+
+        private State(BufferPool pool, ByteBuffer buffer, Throwable taken) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.taken = taken;
+        }
+
+        private void release(boolean lost) {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            if (lost) {
+                pool.leaked(taken);
+            }
+            Lease idle = new Lease(pool, buffer, null);
+            idle.idle = true;
+            pool.giveBack(idle);
+        }
+
+        /**
+         * Run by the cleaner once the lease is collected.
+         */
+        @Override
+        public void run() {
+            release(true);
+        }
+    }
+
+    /**
+     * The idle buffers of one size class, with their leases, linked through
+     * the leases so that keeping one allocates nothing.
+     */
+    private static class SizeClass {
+
+        private Lease head;
+
+        synchronized Lease poll() {
+            Lease lease = head;
+            if (lease != null) {
+                head = lease.next;
+                lease.next = null;
+            }
+            return lease;
+        }
+
+        synchronized void push(Lease lease) {
+            lease.next = head;
+            head = lease;
+        }
+    }
+
+    /**
+     * The size classes, smallest first.
+     */
+    private final SizeClass[] classes;
+
+    /**
+     * The most idle bytes kept, and the idle bytes kept now.
+     */
+    private final long maxIdleBytes;
+    private final AtomicLong idleBytes = new AtomicLong();
+
+    /**
+     * Whether leases are watched for being lost, and what watches them for
+     * being collected, null if not in debug mode.
+     */
+    private final boolean debug;
+    private final Cleaner cleaner;
+
+    /**
+     * Leases served from idle buffers and by allocating, buffers given
+     * back, and leases lost without being closed.
+     */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * @param maxIdleBytes the most idle bytes to keep.
+     * @param debug true to report leases lost without being closed.
+     */
+    public BufferPool(long maxIdleBytes, boolean debug) {
+        this.maxIdleBytes = maxIdleBytes;
+        this.debug = debug;
+        this.cleaner = debug ? Cleaner.create() : null;
+        int count = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+        classes = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
+
+// CLASS METHODS ****************************************************
+    /**
+     * @return the pool shared by the connections and file transfers of this
+     * process.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Lends a buffer of at least the given size.
+     *
+     * @param size the number of bytes needed.
+     * @return the lease of a cleared buffer whose limit is the size.
+     */
+    public Lease acquire(int size) {
+        int index = classOf(size);
+        Lease lease = index < 0 ? null : classes[index].poll();
+        ByteBuffer buffer;
+        if (lease != null) {
+            buffer = lease.buffer;
+            idleBytes.addAndGet(-buffer.capacity());
+            hits.increment();
+            buffer.clear();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(index < 0 ? size : MIN_SIZE << index);
+        }
+        buffer.limit(size);
+
+        if (debug) {
+            State state = new State(this, buffer, new Throwable("buffer lease taken here"));
+            lease = new Lease(this, buffer, state);
+            cleaner.register(lease, state);
+        } else if (lease == null) {
+            lease = new Lease(this, buffer, null);
+        } else {
+            lease.idle = false;
+        }
+        return lease;
+    }
+
+    /**
+     * Reads a whole file through a pooled buffer.
+     *
+     * @param file the file to read.
+     * @return the contents of the file.
+     * @exception IOException if the file cannot be read, or is too large
+     * for an array.
+     */
+    public byte[] readFile(File file) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = in.size();
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("file is too large to read at once: " + file);
+            }
+            byte[] data = new byte[(int) length];
+            try (Lease lease = acquire((int) Math.min(Math.max(length, 1), MAX_SIZE))) {
+                ByteBuffer buffer = lease.buffer();
+                int done = 0;
+                while (done < data.length) {
+                    buffer.clear().limit(Math.min(buffer.capacity(), data.length - done));
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer, done + buffer.position()) < 0) {
+                            throw new EOFException("file got shorter while being read: " + file);
+                        }
+                    }
+                    buffer.flip();
+                    int n = buffer.remaining();
+                    buffer.get(data, done, n);
+                    done += n;
+                }
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Writes bytes to a file through a pooled buffer, replacing whatever it
+     * held.
+     *
+     * @param file the file to write.
+     * @param data the bytes to write.
+     * @exception IOException if the file cannot be written.
+     */
+    public void writeFile(File file, byte[] data) throws IOException {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                Lease lease = acquire(Math.min(Math.max(data.length, 1), MAX_SIZE))) {
+            ByteBuffer buffer = lease.buffer();
+            int done = 0;
+            while (done < data.length) {
+                buffer.clear();
+                int n = Math.min(buffer.capacity(), data.length - done);
+                buffer.put(data, done, n).flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                done += n;
+            }
+        }
+    }
+
+    /**
+     * @return the number of leases served from an idle buffer.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of leases that had to allocate a buffer.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of leases served from an idle buffer, between 0
+     * and 1, or 0 if there have been none.
+     */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the number of buffers lent and not given back.
+     */
+    public long getOutstanding() {
+        return hits.sum() + misses.sum() - released.sum();
+    }
+
+    /**
+     * @return the number of idle bytes kept.
+     */
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    /**
+     * @return the number of leases found lost without being closed; always
+     * 0 unless in debug mode.
+     */
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * @return a one line summary of the pool.
+     */
+    @Override
+    public String toString() {
+        return String.format("buffer pool hit ratio=%.2f", getHitRatio())
+                + " outstanding=" + getOutstanding()
+                + " idle=" + getIdleBytes() / 1024 + " KB"
+                + (debug ? " leaks=" + getLeaks() : "");
+    }
+
+    /**
+     * Keeps a returned buffer and its lease for reuse if its class is pooled
+     * and the idle bytes allow, otherwise leaves them to the collector.
+     */
+    private void giveBack(Lease lease) {
+        released.increment();
+        ByteBuffer buffer = lease.buffer;
+        int index = classOf(buffer.capacity());
+        if (index < 0 || buffer.capacity() != MIN_SIZE << index) {
+            return;
+        }
+        if (idleBytes.addAndGet(buffer.capacity()) > maxIdleBytes) {
+            idleBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        classes[index].push(lease);
+    }
+
+    /**
+     * Reports a lease that was collected without being closed.
+     */
+    private void leaked(Throwable taken) {
+        leaks.increment();
+        System.out.println("Buffer lease was never closed; its buffer is taken back");
+        taken.printStackTrace(System.out);
+    }
+
+    /**
+     * @return the index of the smallest size class holding the given size,
+     * or -1 if it is larger than every class.
+     */
+    private static int classOf(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        int rounded = Math.max(MIN_SIZE, Integer.highestOneBit(Math.max(size, 1) - 1) << 1);
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+}
+// End of BufferPool class
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream that gathers what is written to it in a pooled direct
+ * buffer and writes it to a channel in one go when flushed or full. Put
+ * under an ObjectOutputStream, it turns the many small writes the object
+ * stream makes for each message, a kilobyte at a time for arrays, into one
+ * write per message, straight from native memory.
+ *
+ * The buffer is only borrowed while there is something unflushed, so a
+ * connection with nothing to send holds none. Not safe for use by more than
+ * one thread at a time.
+ */
+public class ChannelOutputStream extends OutputStream {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The size of the buffer borrowed from the pool.
+     */
+    final public static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Where the bytes go.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * Where the buffers come from.
+     */
+    private final BufferPool pool;
+
+    /**
+     * The lease of the buffer holding unflushed bytes, or null if there
+     * are none.
+     */
+    private BufferPool.Lease lease = null;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * @param channel the channel to write to.
+     * @param pool where to borrow buffers from.
+     */
+    public ChannelOutputStream(WritableByteChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+    }
+
+// INSTANCE METHODS *************************************************
+    @Override
+    public void write(int b) throws IOException {
+        buffer().put((byte) b);
+        drainIfFull();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer buffer = buffer();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            drainIfFull();
+        }
+    }
+
+    /**
+     * Writes everything buffered to the channel and gives the buffer back.
+     *
+     * @exception IOException if writing to the channel fails.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (lease == null) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            lease.close();
+            lease = null;
+        }
+    }
+
+    /**
+     * Flushes and closes the channel.
+     *
+     * @exception IOException if flushing or closing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the buffer for unflushed bytes, borrowing one if needed.
+     */
+    private ByteBuffer buffer() {
+        if (lease == null) {
+            lease = pool.acquire(BUFFER_SIZE);
+        }
+        return lease.buffer();
+    }
+
+    /**
+     * Writes the buffer out once it is full, keeping it for what follows.
+     * A failed write gives the buffer back, since the channel is no use
+     * after it.
+     */
+    private void drainIfFull() throws IOException {
+        if (lease.buffer().hasRemaining()) {
+            return;
+        }
+        boolean done = false;
+        try {
+            drain();
+            done = true;
+        } finally {
+            if (!done) {
+                lease.close();
+                lease = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel, leaving the buffer empty.
+     */
+    private void drain() throws IOException {
+        ByteBuffer buffer = lease.buffer();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+// End of ChannelOutputStream class
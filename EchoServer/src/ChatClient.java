@@ -1,5 +1,15 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class overrides some of the methods defined in the abstract superclass
@@ -17,6 +27,145 @@ public class ChatClient extends AbstractClient {
      */
     ChatIF clientUI;
 
+    /**
+     * How long the request methods wait for a reply, in milliseconds.
+     */
+    public static final long REQUEST_TIMEOUT = 30000;
+
+    /**
+     * How long download waits for a file, in milliseconds. Large files
+     * arrive in many chunks and can take much longer than other requests.
+     */
+    public static final long DOWNLOAD_TIMEOUT = 600000;
+
+    /**
+     * Files at least this large are uploaded as a delta against the version
+     * on the server, if there is one and the delta is worth sending.
+     */
+    public static final long DELTA_MIN_SIZE = 64 * 1024;
+
+    /**
+     * The chunked downloads under way, keyed by transfer ID, each writing to
+     * a .part file in the downloads directory until its last chunk arrives.
+     */
+    private final ConcurrentHashMap<Long, FileOutputStream> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * Told about each chunk of a range asked for with fetchRange.
+     */
+    public interface ChunkListener {
+
+        /**
+         * Called on the thread that reads from the server for every chunk of
+         * the range, in order.
+         *
+         * @param chunk the chunk.
+         * @throws IOException if the chunk could not be stored, which fails
+         * the request.
+         */
+        void chunkReceived(FileChunk chunk) throws IOException;
+    }
+
+    /**
+     * The failure of a request the server throttled, saying when it may be
+     * sent again.
+     */
+    public static class ThrottledException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfter;
+
+        public ThrottledException(String kind, long retryAfter) {
+            super("Server is throttling your " + kind + ", try again in " + retryAfter + " ms");
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return the number of milliseconds to wait before trying again.
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * The listeners for the chunks of ranges being fetched, keyed by the
+     * request ID of their "#ftpget".
+     */
+    private final ConcurrentHashMap<Long, ChunkListener> chunkListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Fetches large files as several ranges at once and resumes downloads
+     * that were cut off.
+     */
+    private final DownloadManager downloadManager = new DownloadManager(this, new File("downloads"));
+
+    /**
+     * The last request ID handed out, and the requests still waiting for a
+     * reply from the server keyed by their ID.
+     */
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<Envelope>> pendingRequests
+            = new ConcurrentHashMap<>();
+
+    /**
+     * The users in the current room as pushed by the server, the room they
+     * belong to and the presence version they are at. The list is null until
+     * the first snapshot arrives. Guarded by this client.
+     */
+    private TreeSet<String> roomMembers;
+    private String presenceRoom;
+    private long presenceVersion;
+
+    /**
+     * Backoff between reconnect attempts. The delay starts at the minimum,
+     * doubles after every failed attempt up to the maximum, and each wait is
+     * a random time between half the delay and the full delay so that
+     * clients dropped together do not all come back together.
+     */
+    public static final long RECONNECT_MIN_DELAY = 500;
+    public static final long RECONNECT_MAX_DELAY = 30000;
+    public static final int RECONNECT_ATTEMPTS = 20;
+
+    /**
+     * How often a heartbeat is sent to the server, in milliseconds, so the
+     * server can tell a quiet client from a dead connection. All clients in
+     * the process share one timer thread for this.
+     */
+    public static final long HEARTBEAT_INTERVAL = 15000;
+    private static final HashedWheelTimer heartbeatTimer
+            = new HashedWheelTimer("client-heartbeat", 500, 64);
+
+    /**
+     * The next heartbeat for the current connection.
+     */
+    private HashedWheelTimer.Timeout heartbeat;
+
+    /**
+     * The resumable session: the token the server issued, or null if there is
+     * no session to resume, and the number of the last message received on
+     * it. Messages are only counted once the server has confirmed the session
+     * on the current connection.
+     */
+    private volatile String sessionToken;
+    private volatile long lastSeq;
+    private volatile boolean sessionActive;
+
+    /**
+     * The name and room the user asked for, sent again if the server has
+     * forgotten the session by the time we reconnect.
+     */
+    private volatile String userName;
+    private volatile String currentRoom;
+
+    /**
+     * True while the reconnect thread is running, and the delay it will use
+     * for its next attempt.
+     */
+    private volatile boolean reconnecting = false;
+    private volatile long reconnectDelay = RECONNECT_MIN_DELAY;
+
     //Constructors ****************************************************
     /**
      * Constructs an instance of the chat client.
@@ -39,11 +188,40 @@ public class ChatClient extends AbstractClient {
      * @param msg The message from the server.
      */
     public void handleMessageFromServer(Object msg) {
+        // the session greeting is not numbered; everything after it is
+        if (msg instanceof Envelope && "session".equals(((Envelope) msg).getCommand())) {
+            sessionStarted((Envelope) msg);
+            return;
+        }
+        // file chunks are not numbered, a cut off download is not replayed
+        if (msg instanceof FileChunk) {
+            receiveChunk((FileChunk) msg);
+            return;
+        }
+        // nor are replies carrying a whole file
+        if (sessionActive && !(msg instanceof Envelope && ((Envelope) msg).hasFileData())) {
+            lastSeq++;
+        }
+
         if(msg instanceof Envelope)
         {
             Envelope env = (Envelope)msg;
+            if (env.getRequestId() != 0 && env.getCommand() != null && completeRequest(env)) {
+                return;
+            }
             handleCommandFromServer(env);
         }
+        else if (msg instanceof RelayEnvelope)
+        {
+            RelayEnvelope relay = (RelayEnvelope) msg;
+            if (RelayEnvelope.PM.equals(relay.getCommand())) {
+                clientUI.display("PM from " + relay.getSender() + ": " + relay.getText());
+            } else if (relay.getSender() != null) {
+                clientUI.display(relay.getSender() + ": " + relay.getText());
+            } else {
+                clientUI.display(relay.getText());
+            }
+        }
         else
         {
             clientUI.display(msg.toString());
@@ -74,17 +252,13 @@ public class ChatClient extends AbstractClient {
             ArrayList<String> clients = (ArrayList<String>)env.getData();
 
             // Display the list in the GUI so users can see it.
-            clientUI.display("--- Printing out all clients on The List ---");
+            displayUserList(clients);
+            return;
+        }
 
-            if (clients != null) {
-                //loop through the array list and display each entry in the GUI
-                for(int i = 0; i < clients.size(); i++)
-                {
-                    clientUI.display(clients.get(i));
-                }
-            } else {
-                clientUI.display("(no clients found)");
-            }
+        // presence update: a snapshot of the room or a join, leave or rename
+        if (cmd.equals("presence")) {
+            applyPresence((PresenceUpdate) env.getData());
             return;
         }
 
@@ -98,6 +272,64 @@ public class ChatClient extends AbstractClient {
             return;
         }
 
+        // PMs kept by the server while we were away: data = OfflineMessages
+        if (cmd.equals("mailbox")) {
+            ArrayList<?> kept = (ArrayList<?>) env.getData();
+            clientUI.display(kept.size() + " PMs arrived while you were away:");
+            for (Object o : kept) {
+                OfflineMessage m = (OfflineMessage) o;
+                clientUI.display(String.format("[%tF %<tR] ", m.getTime())
+                        + "PM from " + m.getSender() + ": " + m.getText());
+            }
+            return;
+        }
+
+        // throttled notice: arg = kind of limit, data = milliseconds to wait
+        if (cmd.equals("throttled")) {
+            clientUI.display("Server is throttling your " + env.getArg()
+                    + ", try again in " + env.getData() + " ms");
+            return;
+        }
+
+        // resync notice: we fell so far behind in the room that messages were
+        // dropped. arg = room, data = number of messages missed. A new
+        // presence list follows.
+        if (cmd.equals("resync")) {
+            clientUI.display("Missed " + env.getData() + " messages in " + env.getArg()
+                    + " because the connection was too slow");
+            return;
+        }
+
+        // rejected notice: the server is full or overloaded and will close the
+        // connection. arg = reason, data = milliseconds to wait
+        if (cmd.equals("rejected")) {
+            clientUI.display("Server is " + env.getArg()
+                    + ", please log in again in " + env.getData() + " ms");
+            return;
+        }
+
+        // reconnect notice: the server is shutting down. arg = host:port to
+        // reconnect to, or null for the same server, data = milliseconds to
+        // wait. The server closes the connection once its work is done, and
+        // the session is resumed from there.
+        if (cmd.equals("reconnect")) {
+            String target = env.getArg();
+            if (target != null && target.lastIndexOf(':') > 0) {
+                try {
+                    int colon = target.lastIndexOf(':');
+                    int newPort = Integer.parseInt(target.substring(colon + 1));
+                    setHost(target.substring(0, colon));
+                    setPort(newPort);
+                } catch (NumberFormatException e) {
+                    // keep the current server
+                }
+            }
+            reconnectDelay = Math.max((Long) env.getData(), RECONNECT_MIN_DELAY);
+            clientUI.display("Server is shutting down, will reconnect to "
+                    + getHost() + ":" + getPort() + " shortly");
+            return;
+        }
+
         // ftplist response: data is ArrayList<String>
         // We forward a simple special string to the UI that the GUI can parse:
         // "FTPLIST:name1,name2,..."  (preserves empty list as "FTPLIST:")
@@ -126,14 +358,7 @@ public class ChatClient extends AbstractClient {
 
             // write to downloads directory
             try {
-                File dir = new File("downloads");
-                if (!dir.exists()) {
-                    dir.mkdirs();
-                }
-                File out = new File(dir, filename);
-                try (FileOutputStream fos = new FileOutputStream(out)) {
-                    fos.write(bytes);
-                }
+                saveDownload(filename, bytes);
                 clientUI.display("Downloaded file to downloads/" + filename);
             } catch (IOException e) {
                 clientUI.display("Error saving downloaded file: " + e.getMessage());
@@ -146,6 +371,606 @@ public class ChatClient extends AbstractClient {
         // you can add more handling here if server sends other Envelope commands
     }
 
+    /**
+     * Writes one chunk of a download to its .part file, and once the last
+     * chunk is in, moves the file into place and completes the request that
+     * asked for it. A chunk of a transfer whose start was missed is ignored.
+     *
+     * @param chunk The chunk from the server.
+     */
+    private void receiveChunk(FileChunk chunk) {
+        ChunkListener listener = chunk.getRequestId() != 0 ? chunkListeners.get(chunk.getRequestId()) : null;
+        if (listener != null) {
+            receiveRangeChunk(chunk, listener);
+            return;
+        }
+
+        long id = chunk.getTransferId();
+        String name = new File(chunk.getName()).getName();
+        File part = new File("downloads", name + ".part");
+        FileOutputStream out = transfers.get(id);
+        try {
+            if (out == null) {
+                if (chunk.getOffset() != 0) {
+                    return;
+                }
+                part.getParentFile().mkdirs();
+                out = new FileOutputStream(part);
+                transfers.put(id, out);
+            }
+            out.write(chunk.getData());
+            if (!chunk.isLast()) {
+                return;
+            }
+
+            transfers.remove(id);
+            out.close();
+            File file = new File("downloads", name);
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            Envelope done = new Envelope("#ftpget", name, file);
+            done.setRequestId(chunk.getRequestId());
+            if (chunk.getRequestId() == 0 || !completeRequest(done)) {
+                clientUI.display("Downloaded file to downloads/" + name);
+            }
+        } catch (IOException e) {
+            transfers.remove(id);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                }
+            }
+            part.delete();
+            clientUI.display("Error saving downloaded file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands a chunk of a range to the listener that asked for it, and
+     * completes the request once the range is in.
+     *
+     * @param chunk The chunk from the server.
+     * @param listener The listener for its range.
+     */
+    private void receiveRangeChunk(FileChunk chunk, ChunkListener listener) {
+        try {
+            listener.chunkReceived(chunk);
+        } catch (IOException e) {
+            CompletableFuture<Envelope> future = pendingRequests.remove(chunk.getRequestId());
+            if (future != null) {
+                future.completeExceptionally(e);
+            }
+            return;
+        }
+        if (chunk.isLast()) {
+            Envelope done = new Envelope("#ftpget", chunk.getName(), null);
+            done.setRequestId(chunk.getRequestId());
+            completeRequest(done);
+        }
+    }
+
+    /**
+     * Abandons the chunked downloads cut off by a lost connection.
+     */
+    private void abortTransfers() {
+        for (FileOutputStream out : transfers.values()) {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+        }
+        transfers.clear();
+    }
+
+    /**
+     * Writes a downloaded file to the downloads directory.
+     *
+     * @param filename The name of the file.
+     * @param bytes The contents of the file.
+     * @return the file written.
+     */
+    private File saveDownload(String filename, byte[] bytes) throws IOException {
+        File dir = new File("downloads");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File out = new File(dir, new File(filename).getName());
+        try (FileOutputStream fos = new FileOutputStream(out)) {
+            fos.write(bytes);
+        }
+        return out;
+    }
+
+    /**
+     * Sends a command that expects a reply and returns a future for the
+     * reply. The command is tagged with a new request ID which the server
+     * echoes, so any number of requests can be in flight at once. The future
+     * completes on the thread that reads from the server, fails if the server
+     * answers with an error or a throttle notice, and times out if no answer
+     * arrives in time.
+     *
+     * @param env The command to send.
+     * @param timeoutMillis How long to wait for the reply.
+     * @return a future for the server's reply.
+     */
+    public CompletableFuture<Envelope> request(Envelope env, long timeoutMillis) {
+        return request(env, timeoutMillis, null);
+    }
+
+    /**
+     * Sends a command that expects a reply, passing the file chunks that
+     * answer it to a listener as they arrive.
+     *
+     * @param env The command to send.
+     * @param timeoutMillis How long to wait for the reply.
+     * @param listener Told about the chunks that answer the command, or null.
+     * @return a future for the server's reply.
+     */
+    private CompletableFuture<Envelope> request(Envelope env, long timeoutMillis, ChunkListener listener) {
+        long id = nextRequestId.incrementAndGet();
+        env.setRequestId(id);
+
+        CompletableFuture<Envelope> future = new CompletableFuture<>();
+        pendingRequests.put(id, future);
+        if (listener != null) {
+            chunkListeners.put(id, listener);
+        }
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((reply, error) -> {
+                    pendingRequests.remove(id);
+                    chunkListeners.remove(id);
+                });
+
+        try {
+            sendToServer(env);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Asks the server who is in the current room.
+     *
+     * @return a future for the user names.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<ArrayList<String>> who() {
+        return request(new Envelope("who", null, null), REQUEST_TIMEOUT)
+                .thenApply(reply -> (ArrayList<String>) reply.getData());
+    }
+
+    /**
+     * Asks the server for the files available for download.
+     *
+     * @param prefix Only list files whose name starts with this, or null for
+     * every file.
+     * @return a future for the file names.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<ArrayList<String>> listFiles(String prefix) {
+        return request(new Envelope("#ftplist", prefix, null), REQUEST_TIMEOUT)
+                .thenApply(reply -> (ArrayList<String>) reply.getData());
+    }
+
+    /**
+     * Searches the room messages and PMs the server has kept.
+     *
+     * @param query The words to look for, and the room and times to look in.
+     * @return a future for the messages found, newest first.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<ArrayList<SearchHit>> search(SearchQuery query) {
+        return request(new Envelope("#search", null, query), REQUEST_TIMEOUT)
+                .thenApply(reply -> (ArrayList<SearchHit>) reply.getData());
+    }
+
+    /**
+     * Sends several commands for the server to run, in order, in one
+     * dispatch. Only commands the server answers straight away can be
+     * batched: session, resume, endSession, setName, join, who, presence and
+     * pm.
+     *
+     * @param commands The commands to run.
+     * @return a future for the answers, one for each command in the same
+     * order: the envelope the server would have answered it with on its
+     * own, or null if it has no answer.
+     */
+    public CompletableFuture<Envelope[]> batch(Envelope... commands) {
+        return request(new Envelope("batch", null, commands), REQUEST_TIMEOUT)
+                .thenApply(reply -> (Envelope[]) reply.getData());
+    }
+
+    /**
+     * Logs in on a new connection in one round trip: starts a session, sets
+     * our name, joins our room, or the commons if we have none yet, and
+     * shows who is there.
+     */
+    private void login() {
+        String room = currentRoom != null ? currentRoom : "commons";
+        currentRoom = room;
+        batch(new Envelope("session", null, null),
+                new Envelope("setName", null, userName),
+                new Envelope("join", null, room),
+                new Envelope("who", null, null))
+                .whenComplete((replies, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        clientUI.display("Could not log in: " + cause.getMessage());
+                        return;
+                    }
+                    handleCommandFromServer(replies[3]);
+                });
+    }
+
+    /**
+     * Uploads a file to the server. If the server already has a version of
+     * a large file, only what changed is sent: the server's block signatures
+     * are fetched, and a delta against them is sent instead of the file if
+     * it is less than half the size. Anything that gets in the way of a
+     * delta upload falls back to sending the whole file.
+     *
+     * @param file The file to upload.
+     * @return a future for the server's answer.
+     */
+    public CompletableFuture<String> upload(File file) {
+        byte[] data;
+        try {
+            data = BufferPool.shared().readFile(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        String name = file.getName();
+        if (data.length < DELTA_MIN_SIZE) {
+            return uploadWhole(name, data);
+        }
+
+        // only the delta steps fall back; a whole upload that fails is not
+        // sent a second time, its failure goes to the caller
+        return request(new Envelope("#ftpsig", name, null), REQUEST_TIMEOUT)
+                .thenApplyAsync(reply -> FileDelta.compute(data, (BlockSignatures) reply.getData())) // off the reading thread
+                .handle((delta, error) -> error == null ? delta : null) // no signatures, so no delta
+                .thenCompose(delta -> delta != null && delta.getWireSize() < data.length / 2
+                        ? request(new Envelope("#ftpdelta", name, delta), REQUEST_TIMEOUT)
+                                .thenApply(reply -> String.valueOf(reply.getData()))
+                                .exceptionallyCompose(error -> uploadWhole(name, data))
+                        : uploadWhole(name, data));
+    }
+
+    /**
+     * Uploads the whole of a file with "#ftpUpload".
+     *
+     * @param name The name to store the file under.
+     * @param data The contents of the file.
+     * @return a future for the server's answer.
+     */
+    private CompletableFuture<String> uploadWhole(String name, byte[] data) {
+        return request(new Envelope("#ftpUpload", name, data), DOWNLOAD_TIMEOUT)
+                .thenApply(reply -> String.valueOf(reply.getData()));
+    }
+
+    /**
+     * Asks the server for the length, modification time and digest of a
+     * file.
+     *
+     * @param name The name of the file on the server.
+     * @return a future for what the server knows about the file.
+     */
+    public CompletableFuture<FileInfo> stat(String name) {
+        return request(new Envelope("#ftpstat", name, null), REQUEST_TIMEOUT)
+                .thenApply(reply -> (FileInfo) reply.getData());
+    }
+
+    /**
+     * Asks the server whether a file has changed since a copy of it was
+     * downloaded. Sent as a conditional "#ftpget", which the server answers
+     * with a short "not modified" when the copy is current.
+     *
+     * @param name The name of the file on the server.
+     * @param cached What the server said about the file when the copy was
+     * downloaded.
+     * @return a future for what the server knows about the file now, or for
+     * null if the copy is current.
+     */
+    public CompletableFuture<FileInfo> stat(String name, FileInfo cached) {
+        return request(new Envelope("#ftpget", name, cached), REQUEST_TIMEOUT)
+                .thenApply(reply -> reply.getCommand().equals("notmodified") ? null : (FileInfo) reply.getData());
+    }
+
+    /**
+     * Downloads a file from the server into the downloads directory. Large
+     * files are fetched as several ranges at once, a download that was cut
+     * off carries on where it stopped, and the file is checked against the
+     * server's digest before it is put in place.
+     *
+     * @param name The name of the file on the server.
+     * @return a future for the downloaded file.
+     */
+    public CompletableFuture<File> download(String name) {
+        return downloadManager.download(name);
+    }
+
+    /**
+     * @return the download manager used by download.
+     */
+    public DownloadManager getDownloadManager() {
+        return downloadManager;
+    }
+
+    /**
+     * Fetches part of a file from the server. The chunks are handed to the
+     * listener as they arrive, and the future completes once the last one
+     * is in.
+     *
+     * @param name The name of the file on the server.
+     * @param offset Where the part starts.
+     * @param length How long it is.
+     * @param listener Told about each chunk.
+     * @return a future that completes when the whole part has arrived.
+     */
+    public CompletableFuture<Envelope> fetchRange(String name, long offset, long length, ChunkListener listener) {
+        return request(new Envelope("#ftpget", name, new FileRange(offset, length)), DOWNLOAD_TIMEOUT, listener);
+    }
+
+    /**
+     * Downloads a whole file from the server into the downloads directory
+     * with a single "#ftpget", without checking it.
+     *
+     * @param name The name of the file on the server.
+     * @return a future for the downloaded file.
+     */
+    public CompletableFuture<File> fetch(String name) {
+        return request(new Envelope("#ftpget", name, null), DOWNLOAD_TIMEOUT)
+                .thenApply(reply -> {
+                    if (reply.getData() instanceof File) {
+                        return (File) reply.getData(); // sent in chunks, already saved
+                    }
+                    try {
+                        return saveDownload(reply.getArg(), (byte[]) reply.getData());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    /**
+     * Handles the server's confirmation of a session. If it is the session we
+     * asked to resume, we carry on counting from the number the server gives
+     * us; a higher number than ours means some messages were sent while we
+     * were away and are no longer kept. If the server started a different
+     * session it no longer knew ours, so we send our name and room again.
+     *
+     * @param env The session envelope: arg = token, data = last message number.
+     */
+    private void sessionStarted(Envelope env) {
+        String token = env.getArg();
+        long seq = (Long) env.getData();
+        String previous = sessionToken;
+
+        if (token.equals(previous) && seq > lastSeq) {
+            clientUI.display("Missed " + (seq - lastSeq) + " messages while reconnecting");
+        }
+        sessionToken = token;
+        lastSeq = seq;
+        sessionActive = true;
+        reconnectDelay = RECONNECT_MIN_DELAY;
+
+        if (previous != null && !token.equals(previous)) {
+            clientUI.display("Session expired, logging in again");
+            ArrayList<Envelope> relogin = new ArrayList<>();
+            if (userName != null) {
+                relogin.add(new Envelope("setName", null, userName));
+            }
+            if (currentRoom != null) {
+                relogin.add(new Envelope("join", null, currentRoom));
+            }
+            if (!relogin.isEmpty()) {
+                batch(relogin.toArray(new Envelope[0])).exceptionally(error -> {
+                    clientUI.display("Could not log in again after reconnecting.");
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Starts a thread that tries to reconnect to the server, waiting a
+     * jittered, growing delay between attempts. Once connected, the session
+     * is resumed by connectionEstablished. Does nothing if a reconnect is
+     * already under way.
+     */
+    private synchronized void scheduleReconnect() {
+        if (reconnecting) {
+            return;
+        }
+        reconnecting = true;
+
+        Thread reconnector = new Thread(() -> {
+            try {
+                for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && sessionToken != null; attempt++) {
+                    long delay = reconnectDelay;
+                    reconnectDelay = Math.min(delay * 2, RECONNECT_MAX_DELAY);
+                    try {
+                        Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (sessionToken == null || isConnected()) {
+                        return;
+                    }
+                    try {
+                        openConnection();
+                        clientUI.display("Reconnected to server");
+                        return;
+                    } catch (IOException e) {
+                        // try again after a longer delay
+                    }
+                }
+                if (sessionToken != null) {
+                    clientUI.display("Could not reconnect to server. Please log in again.");
+                }
+            } finally {
+                reconnecting = false;
+            }
+        }, "reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    /**
+     * Schedules heartbeats for the current connection, replacing any left
+     * over from an earlier one. Each heartbeat schedules the next until the
+     * connection closes.
+     */
+    private synchronized void scheduleHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
+        heartbeat = heartbeatTimer.schedule(this::sendHeartbeat, HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Sends a heartbeat and schedules the next one. Runs on the heartbeat
+     * timer.
+     */
+    private void sendHeartbeat() {
+        if (!isConnected()) {
+            return;
+        }
+        try {
+            sendToServer(new Envelope("heartbeat", null, null));
+        } catch (IOException e) {
+            return;
+        }
+        synchronized (this) {
+            heartbeat = heartbeatTimer.schedule(this::sendHeartbeat, HEARTBEAT_INTERVAL);
+        }
+    }
+
+    /**
+     * Tells the server that the user is leaving on purpose, so the session
+     * will not be resumed and no reconnect is attempted.
+     */
+    private void endSession() {
+        if (sessionToken != null && isConnected()) {
+            try {
+                sendToServer(new Envelope("endSession", null, null));
+            } catch (IOException e) {
+            }
+        }
+        sessionToken = null;
+        sessionActive = false;
+    }
+
+    /**
+     * Completes the pending request a reply belongs to.
+     *
+     * @param env The reply from the server.
+     * @return true if the reply belonged to a pending request.
+     */
+    private boolean completeRequest(Envelope env) {
+        CompletableFuture<Envelope> future = pendingRequests.remove(env.getRequestId());
+        if (future == null) {
+            return false;
+        }
+
+        if (env.getCommand().equals("error")) {
+            future.completeExceptionally(new IOException(String.valueOf(env.getData())));
+        } else if (env.getCommand().equals("throttled")) {
+            future.completeExceptionally(new ThrottledException(env.getArg(), (Long) env.getData()));
+        } else {
+            future.complete(env);
+        }
+        return true;
+    }
+
+    /**
+     * Fails every request still waiting for a reply, because the connection
+     * they were sent on is gone.
+     */
+    private void failPendingRequests() {
+        IOException closed = new IOException("Connection to server closed");
+        for (Long id : pendingRequests.keySet()) {
+            CompletableFuture<Envelope> future = pendingRequests.remove(id);
+            if (future != null) {
+                future.completeExceptionally(closed);
+            }
+        }
+    }
+
+    /**
+     * Applies a presence update pushed by the server. A delta that does not
+     * follow on from the version we have means we missed something, so we ask
+     * the server for a fresh snapshot instead of applying it.
+     *
+     * @param update The presence update from the server.
+     */
+    private synchronized void applyPresence(PresenceUpdate update) {
+        if (update == null) {
+            return;
+        }
+
+        if (update.getKind().equals(PresenceUpdate.SNAPSHOT)) {
+            roomMembers = new TreeSet<>(update.getMembers());
+            presenceRoom = update.getRoom();
+            presenceVersion = update.getVersion();
+            return;
+        }
+
+        // deltas for another room arrive while a join is on its way; the
+        // snapshot for the new room will follow
+        if (roomMembers == null || !update.getRoom().equals(presenceRoom)) {
+            return;
+        }
+        if (update.getVersion() != presenceVersion + 1) {
+            roomMembers = null;
+            try {
+                sendToServer(new Envelope("presence", null, null));
+            } catch (IOException e) {
+                clientUI.display("Could not resync the user list with the server.");
+            }
+            return;
+        }
+
+        if (update.getKind().equals(PresenceUpdate.JOIN)) {
+            roomMembers.add(update.getName());
+        } else if (update.getKind().equals(PresenceUpdate.LEAVE)) {
+            roomMembers.remove(update.getName());
+        } else if (update.getKind().equals(PresenceUpdate.RENAME)) {
+            roomMembers.remove(update.getOldName());
+            roomMembers.add(update.getName());
+        }
+        presenceVersion = update.getVersion();
+    }
+
+    /**
+     * Returns the users in the current room, as kept up to date by presence
+     * updates from the server.
+     *
+     * @return a copy of the user list, or null if no snapshot has arrived yet.
+     */
+    public synchronized ArrayList<String> getRoomMembers() {
+        return roomMembers == null ? null : new ArrayList<>(roomMembers);
+    }
+
+    /**
+     * Displays a list of users in the UI as a single message.
+     *
+     * @param clients The users to display.
+     */
+    public void displayUserList(List<String> clients) {
+        StringBuilder sb = new StringBuilder("--- Printing out all clients on The List ---");
+        if (clients != null && !clients.isEmpty()) {
+            for (String client : clients) {
+                sb.append('\n').append(client);
+            }
+        } else {
+            sb.append("\n(no clients found)");
+        }
+        clientUI.display(sb.toString());
+    }
+
     /**
      * This method handles all data coming from the UI
      *
@@ -165,10 +990,13 @@ public class ChatClient extends AbstractClient {
         // If first non-whitespace character is '#', treat as command (use trimmed for command parsing)
         if (trimmed.charAt(0) == '#') {
             handleClientCommand(trimmed);
+        } else if (reconnecting) {
+            clientUI.display("Still reconnecting to server, message not sent.");
         } else {
             try {
-                // Send the original message (preserve user's spacing) to the server
-                sendToServer(message);
+                // Send the original message (preserve user's spacing) to the
+                // server, which passes it on to the room without decoding it
+                sendToServer(RelayEnvelope.text(RelayEnvelope.SAY, null, message));
             } catch (IOException e) {
                 clientUI.display("Could not send message to server.  Terminating client.......");
                 quit();
@@ -180,6 +1008,7 @@ public class ChatClient extends AbstractClient {
      * This method terminates the client.
      */
     public void quit() {
+        endSession();
         try {
             closeConnection();
         } catch (IOException e) {
@@ -189,13 +1018,25 @@ public class ChatClient extends AbstractClient {
 
     public void connectionClosed() {
 
+        failPendingRequests();
+        abortTransfers();
+
         System.out.println("Connection closed");
 
     }
 
     protected void connectionException(Exception exception) {
 
-        System.out.println("Server has shut down");
+        failPendingRequests();
+        abortTransfers();
+        sessionActive = false;
+
+        if (sessionToken != null) {
+            clientUI.display("Lost connection to server, reconnecting...");
+            scheduleReconnect();
+        } else {
+            System.out.println("Server has shut down");
+        }
 
     }
 
@@ -205,6 +1046,26 @@ public class ChatClient extends AbstractClient {
      */
     protected void connectionEstablished(){
         System.out.println("Connected to server at "+ getHost() + " on port "+getPort());
+        synchronized (this) {
+            roomMembers = null; // the server sends a new snapshot after login
+        }
+
+        scheduleHeartbeat();
+
+        // start a resumable session, or resume the one we had; a login by
+        // name does the whole handshake in one batch
+        sessionActive = false;
+        try {
+            if (sessionToken == null && userName != null) {
+                login();
+            } else if (sessionToken == null) {
+                sendToServer(new Envelope("session", null, null));
+            } else {
+                sendToServer(new Envelope("resume", sessionToken, lastSeq));
+            }
+        } catch (IOException e) {
+            System.out.println("Could not start a session with the server");
+        }
         // no debug display to GUI here (clean)
     }
     
@@ -218,6 +1079,7 @@ public class ChatClient extends AbstractClient {
 
         if (message.equals("#logoff")) {
             clientUI.display("Disconnecting from server");
+            endSession();
             try {
                 closeConnection();
             } catch (IOException e) {
@@ -246,11 +1108,17 @@ public class ChatClient extends AbstractClient {
 
         }
 
-        if (message.equals("#login")) {
+        //#login, or #login Mike to also set the name and join a room
+        if (message.equals("#login") || message.indexOf("#login ") == 0) {
+            String name = message.length() > 7 ? message.substring(7).trim() : "";
 
             if (isConnected()) {
                 clientUI.display("already connected");
+                if (!name.isEmpty()) {
+                    handleClientCommand("#setName " + name);
+                }
             } else {
+                userName = name.isEmpty() ? null : name;
                 try {
                     openConnection();
                 } catch (IOException e) {
@@ -270,6 +1138,7 @@ public class ChatClient extends AbstractClient {
             //grab the name from the message and add it as the envelopes data
             String name = message.substring(9, message.length());
             env.setData(name);
+            userName = name;
             
             //try sending the envelope to the server
             try {
@@ -290,6 +1159,7 @@ public class ChatClient extends AbstractClient {
             //get the room name
             String room = message.substring(6,message.length());
             env.setData(room);
+            currentRoom = room;
             
             //try sending the envelope to the server
             try {
@@ -302,9 +1172,6 @@ public class ChatClient extends AbstractClient {
         
         // #pm <target> <message>  (robust, without debug)
         if (message.indexOf("#pm") == 0) {
-            Envelope env = new Envelope();
-            env.setCommand("pm");
-
             // Get the rest of the input after "#pm "
             String targetAndText = message.substring(4).trim(); // removes leading/trailing spaces
 
@@ -319,18 +1186,45 @@ public class ChatClient extends AbstractClient {
             String target = targetAndText.substring(0, firstSpace);
             String text = targetAndText.substring(firstSpace + 1);
 
-            env.setArg(target);
-            env.setData(text);
-
-            // try sending the envelope to the server
+            // try sending the message to the server, which passes it on
+            // without decoding it
             try {
-                sendToServer(env);
+                sendToServer(RelayEnvelope.text(RelayEnvelope.PM, target, text));
             } catch (IOException e) {
                 clientUI.display("Could not send message to server.  Terminating client.......");
                 quit();
             }
         }
         
+        // #search [in:<room>] <words>
+        if (message.indexOf("#search") == 0) {
+            String words = message.substring(7).trim();
+            String room = null;
+            if (words.startsWith("in:")) {
+                int space = words.indexOf(' ');
+                room = space < 0 ? words.substring(3) : words.substring(3, space);
+                words = space < 0 ? "" : words.substring(space + 1).trim();
+            }
+            if (words.isEmpty()) {
+                clientUI.display("Search format error. Correct usage: #search [in:<room>] <words>");
+                return;
+            }
+            String searched = words;
+            search(new SearchQuery(words, room, 0, 0, 0)).whenComplete((hits, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    clientUI.display("Search failed: " + cause.getMessage());
+                    return;
+                }
+                clientUI.display(hits.size() + " messages found for \"" + searched + "\"");
+                for (SearchHit hit : hits) {
+                    String where = hit.getRoom() != null ? "#" + hit.getRoom() + " " + hit.getSender()
+                            : "PM " + hit.getSender() + " -> " + hit.getTarget();
+                    clientUI.display(String.format("[%tF %<tR] ", hit.getTime()) + where + ": " + hit.getText());
+                }
+            });
+        }
+
         if(message.equals("#who"))
         {
             Envelope env = new Envelope();
@@ -3,7 +3,9 @@ import java.awt.event.*;
 import java.awt.*;
 import java.io.IOException;
 import java.io.File;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class ClientGUI extends JFrame implements ChatIF {
 
@@ -36,10 +38,18 @@ public class ClientGUI extends JFrame implements ChatIF {
     private JLabel userIdLB = new JLabel("User Id:", JLabel.RIGHT);
     private JLabel messageLB = new JLabel("Message:", JLabel.RIGHT);
 
-    // Message area
-    private JTextArea messageList = new JTextArea();
+    // Message area: a capped ring of the most recent messages behind a JList,
+    // so only the visible rows are ever laid out or painted
+    public static final int MAX_MESSAGES = 5000;
+    private MessageListModel messageModel = new MessageListModel(MAX_MESSAGES);
+    private JList<String> messageList = new JList<>(messageModel);
     private JScrollPane messageScroll = new JScrollPane(messageList);
 
+    // Messages waiting to be shown. display() may be called from any thread;
+    // the flush timer moves everything waiting onto the list once per frame.
+    private final ConcurrentLinkedQueue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final Timer flushTimer = new Timer(16, e -> flushMessages());
+
     // File list combo for remote files (used by FTP File List / Download)
     private JComboBox<String> fileListCombo = new JComboBox<>();
 
@@ -64,11 +74,23 @@ public class ClientGUI extends JFrame implements ChatIF {
         main.setBackground(panelBg);
         getContentPane().add(main);
 
-        messageList.setEditable(false);
-        messageList.setLineWrap(true);
-        messageList.setWrapStyleWord(true);
         messageList.setBackground(messageBg);
         messageList.setFont(new Font("SansSerif", Font.PLAIN, 13));
+        // fixed cell sizes stop the list from measuring every message; rows
+        // still span the full width and long lines show in full as a tooltip
+        messageList.setFixedCellHeight(messageList.getFontMetrics(messageList.getFont()).getHeight() + 2);
+        messageList.setFixedCellWidth(100);
+        messageList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value,
+                    int index, boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                setToolTipText(String.valueOf(value));
+                return this;
+            }
+        });
+        ToolTipManager.sharedInstance().registerComponent(messageList);
+        flushTimer.start();
         messageScroll.setPreferredSize(new Dimension(520, 320));
         messageScroll.setMaximumSize(new Dimension(Integer.MAX_VALUE, 320)); // prevents vertical expansion
         main.add(messageScroll);
@@ -177,8 +199,7 @@ public class ClientGUI extends JFrame implements ChatIF {
                 display("You must enter a User Id to log in");
             } else {
                 display("Logging in as " + userId);
-                send("#login");
-                send("#setName " + userId);
+                send("#login " + userId);
             }
         });
 
@@ -216,18 +237,17 @@ public class ClientGUI extends JFrame implements ChatIF {
                 display("You must login/connect before sending a file.");
                 return;
             }
-            try {
-                byte[] fileBytes = Files.readAllBytes(selectedFile.toPath());
-                Envelope env = new Envelope();
-                env.setCommand("#ftpUpload");            // command agreed earlier
-                env.setArg(selectedFile.getName());      // filename only
-                env.setData(fileBytes);                  // file contents as byte[]
-                client.sendToServer(env);
-                display("Sent file to server: " + selectedFile.getName());
-            } catch (IOException ex) {
-                display("Error reading or sending file: " + ex.getMessage());
-                ex.printStackTrace();
-            }
+            // a file the server already has a version of is sent as a delta
+            String filename = selectedFile.getName();
+            display("Sending file to server: " + filename);
+            client.upload(selectedFile).whenComplete((reply, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    display("Error reading or sending file: " + cause.getMessage());
+                } else {
+                    display(reply);
+                }
+            });
         });
 
         // ftpListB listener
@@ -257,18 +277,29 @@ public class ClientGUI extends JFrame implements ChatIF {
                 display("No file selected in the list.");
                 return;
             }
-            try {
-                Envelope env = new Envelope();
-                env.setCommand("#ftpget");
-                env.setArg(filename);
-                client.sendToServer(env);
-                display("Requested download for: " + filename);
-            } catch (IOException ex) {
-                display("Error requesting download: " + ex.getMessage());
-            }
+            // several downloads can be under way at once; large files come
+            // in parallel ranges and pick up where an earlier attempt stopped
+            display("Requested download for: " + filename);
+            client.download(filename).whenComplete((file, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    display("Error downloading " + filename + ": " + cause.getMessage());
+                } else {
+                    display("Downloaded file to downloads/" + file.getName());
+                }
+            });
         });
 
-        userListB.addActionListener(e -> send("#who"));
+        // User List shows the presence list pushed by the server, and only
+        // falls back to asking the server with #who before it has arrived
+        userListB.addActionListener(e -> {
+            java.util.List<String> members = client.getRoomMembers();
+            if (members != null) {
+                client.displayUserList(members);
+            } else {
+                send("#who");
+            }
+        });
 
         // PM button
         pmB.addActionListener(e -> {
@@ -365,11 +396,28 @@ public class ClientGUI extends JFrame implements ChatIF {
                 } else {
                     downloadB.setEnabled(false);
                 }
-                messageList.insert("File list updated (" + model.getSize() + " files)\n", 0);
+                display("File list updated (" + model.getSize() + " files)");
             });
             return;
         }
 
-        messageList.insert(message + "\n", 0);
+        pendingMessages.offer(message);
+    }
+
+    // move every waiting message onto the list in one model update; runs on
+    // the EDT from the flush timer. Multi-line messages become one row per
+    // line, first line on top.
+    private void flushMessages() {
+        if (pendingMessages.isEmpty()) return;
+
+        ArrayList<String> batch = new ArrayList<>();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            String[] lines = message.split("\n", -1);
+            for (int i = lines.length - 1; i >= 0; i--) {
+                batch.add(lines[i]);
+            }
+        }
+        messageModel.addAll(batch);
     }
 }
\ No newline at end of file
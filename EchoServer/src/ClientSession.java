@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+
+/**
+ * A resumable session. A session outlives the connection it was started on:
+ * when the connection drops, the session keeps the user's name and room and
+ * goes on collecting the messages sent to that user, so that a client that
+ * reconnects with the session's token picks up where it left off.
+ *
+ * Every message sent to the session is numbered, starting at 1, and the
+ * newest ones are kept in a fixed size ring. A resuming client says which
+ * number it saw last and is sent everything after it that is still in the
+ * ring.
+ */
+public class ClientSession {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The secret the client presents to resume this session.
+     */
+    private final String token;
+
+    /**
+     * The newest messages sent to the session; message n is in slot
+     * n % buffer.length.
+     */
+    private final Object[] buffer;
+
+    /**
+     * The number of the newest message sent to the session, 0 if none.
+     */
+    private long lastSeq = 0;
+
+    /**
+     * The connection the session is attached to, or null while detached.
+     */
+    private ConnectionToClient connection;
+
+    /**
+     * The user's name and room, saved when the session is detached.
+     */
+    private String userId;
+    private String room;
+
+    /**
+     * When the session was detached, as returned by
+     * System.currentTimeMillis.
+     */
+    private long detachedAt;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs a new session attached to a connection.
+     *
+     * @param token the secret the client presents to resume the session.
+     * @param bufferSize the number of messages kept for replay.
+     * @param connection the connection the session starts on.
+     */
+    public ClientSession(String token, int bufferSize, ConnectionToClient connection) {
+        this.token = token;
+        this.buffer = new Object[bufferSize];
+        this.connection = connection;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Numbers a message sent to the session and keeps it for replay.
+     *
+     * @param msg the message.
+     */
+    public synchronized void record(Object msg) {
+        lastSeq++;
+        buffer[(int) (lastSeq % buffer.length)] = msg;
+    }
+
+    /**
+     * Returns the messages sent after a given one that are still kept.
+     *
+     * @param seq the number of the last message the client saw.
+     * @return the messages, oldest first.
+     */
+    public synchronized ArrayList<Object> messagesAfter(long seq) {
+        ArrayList<Object> result = new ArrayList<>();
+        for (long n = Math.max(seq, getOldestSeq() - 1) + 1; n <= lastSeq; n++) {
+            result.add(buffer[(int) (n % buffer.length)]);
+        }
+        return result;
+    }
+
+    /**
+     * Detaches the session from its connection, saving the user's name and
+     * room.
+     *
+     * @param userId the user's name, or null.
+     * @param room the user's room, or null.
+     */
+    public synchronized void detach(String userId, String room) {
+        this.connection = null;
+        this.userId = userId;
+        this.room = room;
+        this.detachedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Attaches the session to a new connection.
+     *
+     * @param connection the connection the client resumed on.
+     */
+    public synchronized void attach(ConnectionToClient connection) {
+        this.connection = connection;
+    }
+
+// ACCESSING METHODS ------------------------------------------------
+    /**
+     * @return the secret the client presents to resume the session.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return the number of the newest message sent to the session.
+     */
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return the number of the oldest message still kept for replay.
+     */
+    public synchronized long getOldestSeq() {
+        return Math.max(1, lastSeq - buffer.length + 1);
+    }
+
+    /**
+     * @return the connection the session is attached to, or null.
+     */
+    public synchronized ConnectionToClient getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return true if the session is not attached to a connection.
+     */
+    public synchronized boolean isDetached() {
+        return connection == null;
+    }
+
+    /**
+     * @return the user's name saved when the session was detached.
+     */
+    public synchronized String getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return the user's room saved when the session was detached.
+     */
+    public synchronized String getRoom() {
+        return room;
+    }
+
+    /**
+     * @return when the session was detached.
+     */
+    public synchronized long getDetachedAt() {
+        return detachedAt;
+    }
+}
+// End of ClientSession class
@@ -1 +1 @@
-import java.io.*;import java.net.*;import java.util.*;/** * An instance of this class is created by the server when a client connects. It * accepts messages coming from the client and is responsible for sending data * to the client since the socket is private to this class. The AbstractServer * contains a set of instances of this class and is responsible for adding and * deleting them. */public class ConnectionToClient extends Thread {// INSTANCE VARIABLES ***********************************************    /**     * A reference to the Server that created this instance.     */    private AbstractServer server;    /**     * Sockets are used in the operating system as channels of communication     * between two processes.     *     * @see java.net.Socket     */    private Socket clientSocket;    /**     * Stream used to read from the client.     */    private ObjectInputStream input;    /**     * Stream used to write to the client.     */    private ObjectOutputStream output;    /**     * Indicates if the thread is ready to stop. Set to true when closing of the     * connection is initiated.     */    private boolean readyToStop;    /**     * Map to save information about the client such as its login ID. The     * initial size of the map is small since it is not expected that concrete     * servers will want to store many different types of information about each     * client. Used by the setInfo and getInfo methods.     */    private HashMap savedInfo = new HashMap(10);// CONSTRUCTORS *****************************************************    /**     * Constructs a new connection to a client.     */    ConnectionToClient(ThreadGroup group, Socket clientSocket,            AbstractServer server) throws IOException {        super(group, (Runnable) null);        // Initialize variables        this.clientSocket = clientSocket;        this.server = server;        //Initialize the objects streams        try {            input = new ObjectInputStream(clientSocket.getInputStream());            output = new ObjectOutputStream(clientSocket.getOutputStream());        } catch (IOException ex) {            try {                closeAll();            } catch (IOException exc) {            }            throw ex;  // Rethrow the exception.        }        readyToStop = false;        start(); // Start the thread waits for data from the socket    }// INSTANCE METHODS *************************************************    /**     * Sends an object to the client.     *     * @param msg the message to be sent.     * @exception IOException if an I/O error occur when sending the message.     */    final public void sendToClient(Object msg) throws IOException {        if (clientSocket == null || output == null) {            throw new SocketException("socket does not exist");        }        output.writeObject(msg);    }    /**     * Closes the client. If the connection is already closed, this call has no     * effect.     *     * @exception IOException if an error occurs when closing the socket.     */    final public void close() throws IOException {        readyToStop = true; // Set the flag that tells the thread to stop        try {            closeAll();        } finally {            server.clientDisconnected(this);        }    }// ACCESSING METHODS ------------------------------------------------    /**     * Returns the address of the client.     *     * @return the client's Internet address.     */    final public InetAddress getInetAddress() {        return clientSocket == null ? null : clientSocket.getInetAddress();    }    /**     * Returns a string representation of the client.     *     * @return the client's description.     */    @Override    public String toString() {        return clientSocket == null ? null                : clientSocket.getInetAddress().getHostName()                + " (" + clientSocket.getInetAddress().getHostAddress() + ")";    }    /**     * Saves arbitrary information about this client. Designed to be used by     * concrete subclasses of AbstractServer. Based on a hash map.     *     * @param infoType identifies the type of information     * @param info the information itself.     */    public void setInfo(String infoType, Object info) {        savedInfo.put(infoType, info);    }    /**     * Returns information about the client saved using setInfo.Based on a hash     * map.     *     * @param infoType identifies the type of information     * @return     */    public Object getInfo(String infoType) {        return savedInfo.get(infoType);    }// RUN METHOD -------------------------------------------------------    /**     * Constantly reads the client's input stream. Sends all objects that are     * read to the server. Not to be called.     */    @Override    final public void run() {        server.clientConnected(this);        // This loop reads the input stream and responds to messages        // from clients        try {            // The message from the client            Object msg;            while (!readyToStop) {                // This block waits until it reads a message from the client                // and then sends it for handling by the server                msg = input.readObject();                server.receiveMessageFromClient(msg, this);            }        } catch (IOException | ClassNotFoundException exception) {            if (!readyToStop) {                try {                    closeAll();                } catch (IOException ex) {                }                server.clientException(this, exception);            }        }    }// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------    /**     * Closes all connection to the server.     *     * @exception IOException if an I/O error occur when closing the connection.     */    private void closeAll() throws IOException {        try {            // Close the socket            if (clientSocket != null) {                clientSocket.close();            }            // Close the output stream            if (output != null) {                output.close();            }            // Close the input stream            if (input != null) {                input.close();            }        } finally {            // Set the streams and the sockets to NULL no matter what            // Doing so allows, but does not require, any finalizers            // of these objects to reclaim system resources if and            // when they are garbage collected.            output = null;            input = null;            clientSocket = null;        }    }    /**     * This method is called by garbage collection.     */    protected void finalizing() {        try {            closeAll();        } catch (IOException e) {        }    }}// End of ConnectionToClient class
\ No newline at end of file
+import java.io.*;import java.net.*;import java.util.*;import java.util.concurrent.ConcurrentLinkedQueue;import java.util.concurrent.atomic.AtomicInteger;import java.util.concurrent.locks.ReentrantLock;/** * An instance of this class is created by the server when a client connects. It * accepts messages coming from the client and is responsible for sending data * to the client since the socket is private to this class. The AbstractServer * contains a set of instances of this class and is responsible for adding and * deleting them. */public class ConnectionToClient extends Thread {// INSTANCE VARIABLES ***********************************************    /**     * A reference to the Server that created this instance.     */    private AbstractServer server;    /**     * The listener that accepted the client.     */    private final ServerListener listener;    /**     * Sockets are used in the operating system as channels of communication     * between two processes.     *     * @see java.net.Socket     */    private Socket clientSocket;    /**     * Stream used to read from the client.     */    private ObjectInputStream input;    /**     * Stream used to write to the client.     */    private ObjectOutputStream output;    /**     * Indicates if the thread is ready to stop. Set to true when closing of the     * connection is initiated.     */    private boolean readyToStop;    /**     * Map to save information about the client such as its login ID. The     * initial size of the map is small since it is not expected that concrete     * servers will want to store many different types of information about each     * client. Used by the setInfo and getInfo methods.     */    private HashMap savedInfo = new HashMap(10);    /**     * Rate limits for this client's messages, uploaded bytes and downloaded     * bytes. A null bucket means that there is no limit.     */    private final TokenBucket messageBucket;    private final TokenBucket uploadBucket;    private final TokenBucket downloadBucket;    /**     * Lock held while writing to the output stream, so that messages sent     * from different threads are never interleaved. The lock is fair, so a     * file transfer that takes it again for every chunk lets the chat     * messages that queued up meanwhile go first, and a message never waits     * for more than one chunk.     */    private final ReentrantLock writeLock = new ReentrantLock(true);    /**     * Messages left by senders that found another thread writing, and how     * many there are. Written by whichever thread holds the write lock next.     */    private final ConcurrentLinkedQueue<Object> handedOff = new ConcurrentLinkedQueue<>();    private final AtomicInteger handedOffCount = new AtomicInteger();    /**     * How many messages may wait to be handed off before the client is taken     * to have stopped reading and is dropped.     */    private static final int MAX_HANDED_OFF = 1024;    /**     * When the write in progress began, as returned by System.nanoTime, or 0     * if nothing is being written.     */    private volatile long writingSince = 0;    /**     * How many file transfers are under way to the client. While there are     * any, other senders always hand their messages off to the transfer     * rather than write themselves, since a chunk can fill the socket and     * the next write then waits on the client.     */    private final AtomicInteger transfers = new AtomicInteger();    /**     * Counts the bytes written to the client, so that the output stream can     * be reset by size.     */    private CountingOutputStream outputCounter;    /**     * The output stream is reset after this many messages or bytes. 0     * switches a limit off. Copied from the server when the connection is     * made.     */    private final int resetMessages;    private final long resetBytes;    /**     * Messages written, and the byte count, at the last reset. Guarded by the     * write lock.     */    private int messagesSinceReset = 0;    private long bytesAtReset = 0;    /**     * Whether frames have been written since the last reset, whose strings     * and objects the client has numbered but this stream has not. Guarded     * by the write lock.     */    private boolean framesSinceReset = false;    /**     * The resumable session this connection carries, or null. Every message     * sent while a session is attached is numbered and kept by the session.     * Only changed while holding the write lock.     */    private volatile ClientSession session;    /**     * When a message was last received from the client, as returned by     * System.currentTimeMillis.     */    private volatile long lastActivity = System.currentTimeMillis();// CONSTRUCTORS *****************************************************    /**     * Constructs a new connection to a client.     */    ConnectionToClient(ThreadGroup group, Socket clientSocket,            AbstractServer server, ServerListener listener) {        super(group, (Runnable) null);        // Initialize variables        this.clientSocket = clientSocket;        this.server = server;        this.listener = listener;        TokenBucket[] buckets = server.createBuckets();        this.messageBucket = buckets[0];        this.uploadBucket = buckets[1];        this.downloadBucket = buckets[2];        this.resetMessages = server.getResetMessages();        this.resetBytes = server.getResetBytes();        // The object streams are opened by the connection's own thread, so        // that a client slow to send its stream header never holds up the        // thread accepting connections        readyToStop = false;        start(); // Start the thread waits for data from the socket    }// INSTANCE METHODS *************************************************    /**     * Sends an object to the client. May be called from any thread. If     * another thread is writing to the client, the message is left for that     * thread to write and this call returns at once, so a client that is     * slow to read never holds up the sender. The same happens while a file     * transfer is under way, whose thread writes the message between chunks.     *     * @param msg the message to be sent.     * @exception IOException if an I/O error occur when sending the message.     */    final public void sendToClient(Object msg) throws IOException {        if (transfers.get() > 0 || !writeLock.tryLock()) {            handOff(msg);            return;        }        try {            startWrite();            write(msg);        } finally {            endWrite();        }    }    /**     * Sends a string already serialized in a StringFrame, writing its bytes     * as they are rather than serializing the string again. The client's     * stream numbers every string it reads so that later copies can refer     * back to it, and this stream knows nothing of the one written here, so     * the stream is reset before the next message it serializes itself;     * frames that follow one another need no reset between them. May be     * called from any thread, but the frame must not change meanwhile. If     * another thread is writing, the string is handed to it instead, as for     * sendToClient.     *     * @param frame the serialized string.     * @exception IOException if an I/O error occur when sending the message.     */    final public void sendFrame(StringFrame frame) throws IOException {        if (transfers.get() > 0 || !writeLock.tryLock()) {            // the frame may be reused once this returns, so hand off the string            handOff(frame.getString());            return;        }        try {            startWrite();            // the line is only built as a String if a session keeps it            String line = session != null ? frame.getString() : null;            writeFrame(line, frame.getBuffer(), frame.getLength(), false);        } finally {            endWrite();        }    }    /**     * Sends a message already serialized in an ObjectFrame, writing its     * bytes as they are, the same way as for a StringFrame. The message may     * refer back to objects within itself by their place in a fresh handle     * table, so the stream is reset first unless nothing has been written     * since it last was. If another thread is writing, the message itself is     * handed to it instead.     *     * @param frame the serialized message.     * @exception IOException if an I/O error occur when sending the message.     */    final public void sendFrame(ObjectFrame frame) throws IOException {        if (transfers.get() > 0 || !writeLock.tryLock()) {            handOff(frame.getMessage());            return;        }        try {            startWrite();            writeFrame(frame.getMessage(), frame.getBuffer(), frame.getLength(), true);        } finally {            endWrite();        }    }    /**     * Sends one chunk of a file transfer. Chunks are not numbered by the     * session, since a transfer cut off by a dropped connection is started     * again rather than replayed. The write lock is only held for the one     * chunk, so messages sent meanwhile go out between chunks.     *     * @param chunk the chunk to send.     * @exception IOException if an I/O error occur when sending the chunk.     */    final public void sendChunk(FileChunk chunk) throws IOException {        writeLock.lock();        try {            startWrite();            if (framesSinceReset) {                reset();            }            output.writeObject(chunk);            resetIfDue();            output.flush();        } finally {            endWrite();        }    }    /**     * Marks the start of a file transfer to the client. Until the matching     * endTransfer, messages sent by other threads are left for the     * transfer's thread to write between chunks, so that a client slow to     * take a file holds up only the transfer.     */    final public void beginTransfer() {        transfers.incrementAndGet();    }    /**     * Marks the end of a file transfer begun by beginTransfer, and writes     * anything handed off that the transfer did not get to.     */    final public void endTransfer() {        transfers.decrementAndGet();        if (handedOff.isEmpty() || clientSocket == null) {            return;        }        writeLock.lock();        try {            startWrite();        } catch (IOException ex) {            // the connection is broken; its own thread cleans up            abort();        } finally {            endWrite();        }    }    /**     * Attaches a resumable session to this connection. The greeting is sent     * first and is not numbered; it is followed by the session's messages     * after <code>fromSeq</code>, and from then on every message sent is     * numbered by the session. Nothing else can be sent in between.     *     * @param session the session to attach.     * @param greeting the message telling the client about the session.     * @param fromSeq the number of the last message the client has seen.     * @exception IOException if an I/O error occur when sending.     */    final public void startSession(ClientSession session, Object greeting, long fromSeq)            throws IOException {        writeLock.lock();        try {            startWrite();            if (framesSinceReset) {                reset();            }            output.writeObject(greeting);            resetIfDue();            for (Object msg : session.messagesAfter(fromSeq)) {                output.writeObject(msg);                resetIfDue();            }            output.flush();            session.attach(this);            this.session = session;        } finally {            endWrite();        }    }    /**     * Drops the connection without any cleanup of its own. The thread reading     * from the client then fails and cleans up the way it does for any broken     * connection, calling <code>clientException</code> on the server. Safe to     * call from any thread, and never blocks on the server.     */    final void abort() {        Socket socket = clientSocket;        if (socket != null) {            try {                socket.close();            } catch (IOException e) {            }        }    }    /**     * Closes the client. If the connection is already closed, this call has no     * effect.     *     * @exception IOException if an error occurs when closing the socket.     */    final public void close() throws IOException {        readyToStop = true; // Set the flag that tells the thread to stop        try {            closeAll();        } finally {            server.clientDisconnected(this);        }    }// ACCESSING METHODS ------------------------------------------------    /**     * Returns the address of the client.     *     * @return the client's Internet address.     */    final public InetAddress getInetAddress() {        return clientSocket == null ? null : clientSocket.getInetAddress();    }    /**     * Returns a string representation of the client.     *     * @return the client's description.     */    @Override    public String toString() {        return clientSocket == null ? null                : clientSocket.getInetAddress().getHostName()                + " (" + clientSocket.getInetAddress().getHostAddress() + ")";    }    /**     * Saves arbitrary information about this client. Designed to be used by     * concrete subclasses of AbstractServer. Based on a hash map.     *     * @param infoType identifies the type of information     * @param info the information itself.     */    public void setInfo(String infoType, Object info) {        savedInfo.put(infoType, info);    }    /**     * Returns information about the client saved using setInfo.Based on a hash     * map.     *     * @param infoType identifies the type of information     * @return     */    public Object getInfo(String infoType) {        return savedInfo.get(infoType);    }    /**     * Returns the listener that accepted the client, which tells which     * address and port it connected to and the protocol version it speaks.     *     * @return the listener.     */    final public ServerListener getListener() {        return listener;    }    /**     * Returns the resumable session attached to this connection.     *     * @return the session, or null if the client has not started one.     */    final public ClientSession getSession() {        return session;    }    /**     * Returns when a message was last received from the client.     *     * @return the time, as returned by System.currentTimeMillis.     */    final public long getLastActivity() {        return lastActivity;    }    /**     * Takes one message from this client's message rate limit.     *     * @return 0 if the message may be handled, otherwise the number of     * milliseconds the client should wait before sending again.     */    final public long acquireMessage() {        return acquireMessages(1);    }    /**     * Takes several messages from this client's message rate limit, for     * instance for the commands of a batch.     *     * @param count the number of messages.     * @return 0 if the messages may be handled, otherwise the number of     * milliseconds the client should wait before sending again.     */    final public long acquireMessages(int count) {        return messageBucket == null ? 0 : messageBucket.tryAcquire(count);    }    /**     * Takes bytes from this client's upload rate limit.     *     * @param bytes the size of the upload.     * @return 0 if the upload may proceed, otherwise the number of     * milliseconds the client should wait before trying again.     */    final public long acquireUpload(long bytes) {        return uploadBucket == null ? 0 : uploadBucket.tryAcquire(bytes);    }    /**     * Takes bytes from this client's download rate limit.     *     * @param bytes the size of the download.     * @return 0 if the download may proceed, otherwise the number of     * milliseconds the client should wait before trying again.     */    final public long acquireDownload(long bytes) {        return downloadBucket == null ? 0 : downloadBucket.tryAcquire(bytes);    }// RUN METHOD -------------------------------------------------------    /**     * Constantly reads the client's input stream. Sends all objects that are     * read to the server. Not to be called.     */    @Override    final public void run() {        server.connectionStarted(this);        try {            try {                openStreams();            } catch (IOException exception) {                // the client never finished connecting, so the server was                // never told about it                if (!readyToStop) {                    server.getMetrics().recordConnectionError();                    try {                        closeAll();                    } catch (IOException ex) {                    }                }                return;            }            server.clientConnected(this);            // This loop reads the input stream and responds to messages            // from clients            try {                // The message from the client                Object msg;                while (!readyToStop) {                    // This block waits until it reads a message from the client                    // and then sends it for handling by the server                    msg = input.readObject();                    lastActivity = System.currentTimeMillis();                    server.receiveMessageFromClient(msg, this);                }            } catch (IOException | ClassNotFoundException | RuntimeException exception) {                if (!readyToStop) {                    if (!(exception instanceof EOFException)) {                        server.getMetrics().recordConnectionError();                    }                    try {                        closeAll();                    } catch (IOException ex) {                    }                    server.clientException(this, exception);                }            }        } finally {            server.connectionEnded(this);        }    }// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------    /**     * Leaves a message for the thread holding the write lock, so that a     * sender never waits behind a write held up by a client that is slow to     * read; such a write is ended by the server's send timeout. The holder     * writes what it was left, in order, before giving up the lock. A client     * that has too much left waiting is dropped.     *     * @param msg the message to send.     * @exception IOException if the connection is closed or the client is     * too far behind.     */    private void handOff(Object msg) throws IOException {        if (clientSocket == null) {            throw new SocketException("socket does not exist");        }        if (handedOffCount.incrementAndGet() > MAX_HANDED_OFF) {            handedOffCount.decrementAndGet();            server.getMetrics().recordSlowConsumer();            abort();            throw new SocketException("client is not reading");        }        handedOff.add(msg);        // the holder may have let go of the lock before the message was left;        // a transfer that ends now writes it in endTransfer instead        if (transfers.get() == 0 && writeLock.tryLock()) {            try {                startWrite();            } finally {                endWrite();            }        }    }    /**     * Takes the write lock's place as the thread writing to the socket, after     * checking the connection is open, and writes anything handed off to it.     * Must be called with the write lock held, and followed by endWrite.     *     * @exception IOException if the connection is closed or writing fails.     */    private void startWrite() throws IOException {        if (clientSocket == null || output == null) {            throw new SocketException("socket does not exist");        }        writingSince = System.nanoTime();        Object msg;        while ((msg = handedOff.poll()) != null) {            handedOffCount.decrementAndGet();            write(msg);        }    }    /**     * Ends a write begun by startWrite and gives up the write lock. Messages     * handed off after the last look are written by taking the lock back,     * so none is left behind with nobody writing.     */    private void endWrite() {        writingSince = 0;        writeLock.unlock();        while (!handedOff.isEmpty() && writeLock.tryLock()) {            try {                startWrite();            } catch (IOException ex) {                // the connection is broken; its own thread cleans up                abort();                return;            } finally {                writingSince = 0;                writeLock.unlock();            }        }    }    /**     * Writes one message, numbering it if a session is attached. Must be     * called with the write lock held.     */    private void write(Object msg) throws IOException {        if (session != null && isNumbered(msg)) {            session.record(msg);        }        if (framesSinceReset) {            // the client numbered the frames' strings and this stream did not            reset();        }        output.writeObject(msg);        resetIfDue();        output.flush();    }    /**     * Writes a serialized message as it is, numbering it if a session is     * attached. The client adds what the bytes hold to its handle table     * without this stream knowing, so the stream is reset before it next     * serializes a message itself. Must be called with the write lock held.     *     * @param msg the message, kept by the session; may be null if there is     * none.     * @param buffer the serialized message.     * @param length the number of bytes in it.     * @param fresh true if the bytes refer back to objects by their place in     * a fresh handle table, so must follow a reset.     */    private void writeFrame(Object msg, byte[] buffer, int length, boolean fresh) throws IOException {        if (session != null && isNumbered(msg)) {            session.record(msg);        }        if (fresh && (messagesSinceReset > 0 || framesSinceReset)) {            reset();            output.flush(); // the reset must go out ahead of the bytes        }        outputCounter.write(buffer, 0, length);        framesSinceReset = true;        resetIfDue();        output.flush();    }    /**     * Tells whether a message is numbered and kept by the session. Replies     * carrying file contents are not, like file chunks: they can be as large     * as a chunk, and a download cut off by a dropped connection is started     * again rather than replayed. The client skips them the same way when     * counting what it has seen.     */    private static boolean isNumbered(Object msg) {        return !(msg instanceof Envelope && ((Envelope) msg).hasFileData());    }    /**     * Tells whether the client has so many messages waiting to be handed     * off that room messages for it should be skipped rather than added to     * them. Half of what may wait is left for everything else, so that the     * client is not dropped for falling behind in its room alone.     */    final boolean isBackedUp() {        return handedOffCount.get() >= MAX_HANDED_OFF / 2;    }    /**     * Returns when the write in progress began, as returned by     * System.nanoTime, or 0 if nothing is being written. Used by the server     * to drop clients that have stopped reading.     */    final long getWritingSince() {        return writingSince;    }    /**     * Reads the client's stream header and sends the server's. A client that     * does not send its header within the server's handshake timeout is     * dropped, so a client that connects and goes silent only ever ties up     * its own thread.     *     * @exception IOException if the header cannot be read or written, or     * does not arrive in time.     */    private void openStreams() throws IOException {        Socket socket = clientSocket;        if (socket == null) {            throw new SocketException("socket does not exist");        }        // every message is written out whole, so there is nothing for        // Nagle's algorithm to gain, and a reply held back behind the ack of        // the message before costs the client a delayed ack, some 40 ms        socket.setTcpNoDelay(true);        socket.setSoTimeout(server.getHandshakeTimeout());        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());        socket.setSoTimeout(0);        if (server.getInputFilter() != null) {            in.setObjectInputFilter(server.getInputFilter());        }        writeLock.lock();        try {            if (clientSocket == null) {                throw new SocketException("socket does not exist");            }            outputCounter = new CountingOutputStream(socket.getChannel() != null                    ? new ChannelOutputStream(socket.getChannel(), BufferPool.shared())                    : socket.getOutputStream());            output = new ObjectOutputStream(outputCounter);            output.flush();        } finally {            writeLock.unlock();        }        input = in;    }    /**     * Resets the output stream once enough messages or bytes have been     * written since the last reset, so that the stream stops holding on to     * what it has sent. Must be called with the write lock held.     *     * @exception IOException if an I/O error occurs when writing the reset.     */    private void resetIfDue() throws IOException {        messagesSinceReset++;        if ((resetMessages > 0 && messagesSinceReset >= resetMessages)                || (resetBytes > 0 && outputCounter.getCount() - bytesAtReset >= resetBytes)) {            reset();        }    }    /**     * Resets the output stream, so that both ends forget what has been     * sent. Must be called with the write lock held.     *     * @exception IOException if an I/O error occurs when writing the reset.     */    private void reset() throws IOException {        output.reset();        messagesSinceReset = 0;        framesSinceReset = false;        bytesAtReset = outputCounter.getCount();    }    /**     * Closes all connection to the server.     *     * @exception IOException if an I/O error occur when closing the connection.     */    private void closeAll() throws IOException {        try {            // Close the socket            if (clientSocket != null) {                clientSocket.close();            }            // Close the output stream, once a sender blocked on the socket            // has given up the write lock, since they share its buffer            if (output != null) {                writeLock.lock();                try {                    if (output != null) {                        output.close();                    }                } finally {                    writeLock.unlock();                }            }            // Close the input stream            if (input != null) {                input.close();            }        } finally {            // Set the streams and the sockets to NULL no matter what            // Doing so allows, but does not require, any finalizers            // of these objects to reclaim system resources if and            // when they are garbage collected. The output is only dropped            // under the write lock, which a sender blocked on the socket            // gives up now that it is closed, so that no sender finds it            // gone halfway through a message.            writeLock.lock();            try {                output = null;                clientSocket = null;                // messages that never got written are kept by the session,                // to be sent if the client resumes it                Object msg;                while ((msg = handedOff.poll()) != null) {                    handedOffCount.decrementAndGet();                    if (session != null && isNumbered(msg)) {                        session.record(msg);                    }                }            } finally {                writeLock.unlock();            }            input = null;        }    }    /**     * This method is called by garbage collection.     */    protected void finalizing() {        try {            closeAll();        } catch (IOException e) {        }    }}// End of ConnectionToClient class
\ No newline at end of file
@@ -0,0 +1,42 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that counts the bytes written through it. Used under the
+ * object streams of a connection so that they can be reset after a given
+ * number of bytes.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    /**
+     * The number of bytes written so far.
+     */
+    private long count = 0;
+
+    /**
+     * @param out the stream to write to.
+     */
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    /**
+     * @return the number of bytes written so far.
+     */
+    public long getCount() {
+        return count;
+    }
+}
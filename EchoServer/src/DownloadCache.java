@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the contents of recently downloaded files in memory so that a file
+ * shared in a busy room is read from disk once rather than once per user.
+ * The cache holds at most a fixed number of bytes and evicts the least
+ * recently used file when it is full. Files larger than a quarter of the
+ * budget are never cached so that one big file cannot push out everything
+ * else.
+ *
+ * An entry is only used while the file on disk still has the same size and
+ * modification time, and uploads invalidate the entry for their file name
+ * directly, so a replaced file is never served stale.
+ */
+public class DownloadCache {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * A cached file together with the size and modification time it had when
+     * it was read.
+     */
+    private static class Entry {
+
+        final byte[] data;
+        final long lastModified;
+
+        Entry(byte[] data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The cached files by name, least recently used first. Guarded by this
+     * cache.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The maximum number of bytes held.
+     */
+    private final long budget;
+
+    /**
+     * The number of bytes currently held. Guarded by this cache.
+     */
+    private long size = 0;
+
+    /**
+     * Where hits, misses and evictions are recorded.
+     */
+    private final ServerMetrics metrics;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs an empty cache.
+     *
+     * @param budget the maximum number of bytes to hold, or 0 to disable
+     * caching.
+     * @param metrics where hits, misses and evictions are recorded.
+     */
+    public DownloadCache(long budget, ServerMetrics metrics) {
+        this.budget = budget;
+        this.metrics = metrics;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Returns the contents of a file, from memory if the cached copy is still
+     * current and from disk otherwise. The returned array is shared and must
+     * not be modified.
+     *
+     * @param file the file to read.
+     * @return the contents of the file.
+     * @exception IOException if the file cannot be read.
+     */
+    public byte[] read(File file) throws IOException {
+        String name = file.getName();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null && entry.lastModified == lastModified
+                    && entry.data.length == length) {
+                metrics.recordCacheHit();
+                return entry.data;
+            }
+        }
+
+        metrics.recordCacheMiss();
+        byte[] data = BufferPool.shared().readFile(file);
+        if (isCacheable(data.length)) {
+            put(name, new Entry(data, lastModified));
+        }
+        return data;
+    }
+
+    /**
+     * @param length the size of a file.
+     * @return true if a file of that size would be kept by read.
+     */
+    public boolean isCacheable(long length) {
+        return length <= budget / 4;
+    }
+
+    /**
+     * Drops the cached copy of a file, if there is one. Called when an upload
+     * replaces the file.
+     *
+     * @param name the name of the file.
+     */
+    public synchronized void invalidate(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            size -= entry.data.length;
+        }
+    }
+
+    /**
+     * @return the number of bytes currently held.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Adds an entry and evicts least recently used entries until the cache
+     * is back under its budget.
+     */
+    private synchronized void put(String name, Entry entry) {
+        Entry old = entries.put(name, entry);
+        if (old != null) {
+            size -= old.data.length;
+        }
+        size += entry.data.length;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            size -= eldest.data.length;
+            metrics.recordCacheEviction();
+        }
+    }
+}
+// End of DownloadCache class
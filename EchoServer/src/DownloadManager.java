@@ -0,0 +1,417 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads files from the server for a ChatClient. The manager first asks
+ * the server for the file's length and digest with "#ftpstat". A small file
+ * is then fetched with a single "#ftpget"; a large one is split into ranges,
+ * a few of which are fetched at a time, each written straight to its place
+ * in a .part file that was given its full length up front.
+ *
+ * Which ranges have arrived is kept in a small state file beside the .part
+ * file, so a download that was cut off, even by a restart of the client,
+ * carries on from where it stopped as long as the file on the server has not
+ * changed. Every finished download is checked against the server's SHA-256
+ * digest before it is moved into place.
+ *
+ * The version of every file downloaded is kept beside it, together with the
+ * length and modification time the copy had when it arrived. Downloading the
+ * file again then starts with a conditional "#ftpget" carrying that version,
+ * and if the file on the server has the same contents the copy already here
+ * is used and nothing is transferred. A copy changed since it was downloaded
+ * is fetched again.
+ */
+public class DownloadManager {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * Files larger than this are fetched in ranges of this many bytes, with
+     * up to PARALLEL_RANGES of them under way at once.
+     */
+    public static final long RANGE_SIZE = 4 * 1024 * 1024;
+    public static final int PARALLEL_RANGES = 4;
+
+    /**
+     * The client the files are fetched through.
+     */
+    private final ChatClient client;
+
+    /**
+     * Where the files are put.
+     */
+    private final File dir;
+
+    /**
+     * The downloads under way by file name. Asking for a file that is
+     * already coming gets the download under way instead of a second one.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<File>> active = new ConcurrentHashMap<>();
+
+    /**
+     * A file being fetched in ranges.
+     */
+    private class Transfer {
+
+        final FileInfo info;
+        final File part;
+        final File state;
+        final File target;
+        final int ranges;
+        final CompletableFuture<File> result = new CompletableFuture<>();
+        FileChannel channel;
+
+        /**
+         * The ranges that have arrived, the first range that may not have,
+         * and how many are being fetched. Guarded by this transfer.
+         */
+        final BitSet done = new BitSet();
+        int next = 0;
+        int running = 0;
+        boolean finishing = false;
+
+        Transfer(FileInfo info) {
+            this.info = info;
+            this.part = new File(dir, info.getName() + ".part");
+            this.state = new File(dir, "." + info.getName() + ".ranges");
+            this.target = new File(dir, info.getName());
+            this.ranges = (int) ((info.getLength() + RANGE_SIZE - 1) / RANGE_SIZE);
+        }
+
+        /**
+         * Picks up the ranges already fetched, or sets up a new .part file,
+         * and starts fetching the rest.
+         *
+         * @return a future for the downloaded file.
+         */
+        CompletableFuture<File> start() {
+            try {
+                dir.mkdirs();
+                if (!loadState()) {
+                    state.delete();
+                    try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+                        file.setLength(info.getLength());
+                    }
+                }
+                channel = FileChannel.open(part.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+                return result;
+            }
+            synchronized (this) {
+                startRanges();
+            }
+            return result;
+        }
+
+        /**
+         * Starts fetching ranges until PARALLEL_RANGES are under way or none
+         * are left, and finishes the download once every range is in. Called
+         * holding the lock.
+         */
+        void startRanges() {
+            while (!result.isDone() && running < PARALLEL_RANGES
+                    && (next = done.nextClearBit(next)) < ranges) {
+                running++;
+                fetch(next++);
+            }
+            if (running == 0 && done.cardinality() == ranges && !finishing) {
+                finishing = true;
+                CompletableFuture.runAsync(this::finish); // keep the digest off the reading thread
+            }
+        }
+
+        /**
+         * Asks the server for one range.
+         */
+        void fetch(int index) {
+            long offset = index * RANGE_SIZE;
+            long end = Math.min(offset + RANGE_SIZE, info.getLength());
+            client.fetchRange(info.getName(), offset, end - offset, chunk -> write(chunk, offset, end))
+                    .whenComplete((reply, error) -> rangeDone(index, error));
+        }
+
+        /**
+         * Writes a chunk of a range to its place in the .part file. Runs on
+         * the client's reading thread.
+         */
+        void write(FileChunk chunk, long start, long end) throws IOException {
+            byte[] data = chunk.getData();
+            if (chunk.getLength() != info.getLength()) {
+                throw new IOException(info.getName() + " changed on the server during the download");
+            }
+            if (chunk.getOffset() < start || chunk.getOffset() + data.length > end) {
+                throw new IOException("Server sent a chunk outside the range asked for");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = chunk.getOffset();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        /**
+         * Records a range as in, or retries it later if the server throttled
+         * it, and moves on to the next. Any other failure ends the download;
+         * the ranges already in are kept for the next attempt.
+         */
+        synchronized void rangeDone(int index, Throwable error) {
+            running--;
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                if (cause instanceof ChatClient.ThrottledException && !result.isDone()) {
+                    running++;
+                    CompletableFuture.delayedExecutor(((ChatClient.ThrottledException) cause).getRetryAfter(),
+                            TimeUnit.MILLISECONDS).execute(() -> retry(index));
+                    return;
+                }
+                fail(cause);
+                return;
+            }
+            done.set(index);
+            try {
+                channel.force(false); // the data must be on disk before the state says so
+                saveState();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            startRanges();
+        }
+
+        /**
+         * Fetches a throttled range again.
+         */
+        synchronized void retry(int index) {
+            if (result.isDone()) {
+                running--;
+            } else {
+                fetch(index);
+            }
+        }
+
+        /**
+         * Checks the finished .part file against the server's digest and
+         * moves it into place. A file that does not match is thrown away.
+         */
+        void finish() {
+            try {
+                channel.close();
+                if (!Arrays.equals(FileInfo.sha256(part), info.getSha256())) {
+                    part.delete();
+                    state.delete();
+                    throw new IOException("Download of " + info.getName() + " does not match the server's checksum");
+                }
+                Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                state.delete();
+                result.complete(target);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Ends the download with an error.
+         */
+        void fail(Throwable error) {
+            if (result.completeExceptionally(error)) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /**
+         * Reads the ranges already fetched from the state file.
+         *
+         * @return true if the .part file holds an earlier attempt at the same
+         * version of the file.
+         */
+        boolean loadState() {
+            if (!part.isFile() || !state.isFile() || part.length() != info.getLength()) {
+                return false;
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(state))) {
+                if (in.readLong() != info.getLength() || in.readLong() != info.getLastModified()) {
+                    return false;
+                }
+                byte[] digest = new byte[in.readInt()];
+                in.readFully(digest);
+                if (!Arrays.equals(digest, info.getSha256())) {
+                    return false;
+                }
+                long[] words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                done.or(BitSet.valueOf(words));
+                return true;
+            } catch (IOException | RuntimeException e) {
+                return false; // unreadable, start again
+            }
+        }
+
+        /**
+         * Writes the ranges fetched so far to the state file, replacing it
+         * in one step. Called holding the lock.
+         */
+        void saveState() throws IOException {
+            File temp = new File(dir, state.getName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeLong(info.getLength());
+                out.writeLong(info.getLastModified());
+                out.writeInt(info.getSha256().length);
+                out.write(info.getSha256());
+                long[] words = done.toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+            Files.move(temp.toPath(), state.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs a download manager.
+     *
+     * @param client the client to fetch files through.
+     * @param dir where to put the files.
+     */
+    public DownloadManager(ChatClient client, File dir) {
+        this.client = client;
+        this.dir = dir;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Downloads a file, carrying on from an earlier attempt if there was
+     * one.
+     *
+     * @param name the name of the file on the server.
+     * @return a future for the downloaded file.
+     */
+    public CompletableFuture<File> download(String name) {
+        String safeName = new File(name).getName();
+        CompletableFuture<File> result = new CompletableFuture<>();
+        CompletableFuture<File> existing = active.putIfAbsent(safeName, result);
+        if (existing != null) {
+            return existing;
+        }
+
+        File copy = new File(dir, safeName);
+        FileInfo cached = loadVersion(copy);
+        CompletableFuture<FileInfo> stat = cached != null ? client.stat(safeName, cached) : client.stat(safeName);
+        stat.thenCompose(info -> info == null ? CompletableFuture.completedFuture(copy) : fetch(info))
+                .whenComplete((file, error) -> {
+                    active.remove(safeName, result);
+                    if (error != null) {
+                        result.completeExceptionally(unwrap(error));
+                    } else {
+                        result.complete(file);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Fetches a version of a file and remembers which version the copy is.
+     */
+    private CompletableFuture<File> fetch(FileInfo info) {
+        CompletableFuture<File> fetched = info.getLength() > RANGE_SIZE ? new Transfer(info).start() : fetchWhole(info);
+        return fetched.thenApply(file -> {
+            saveVersion(file, info);
+            return file;
+        });
+    }
+
+    /**
+     * Fetches a small file with a single "#ftpget" and checks it.
+     */
+    private CompletableFuture<File> fetchWhole(FileInfo info) {
+        return client.fetch(info.getName()).thenApply(file -> {
+            try {
+                if (!Arrays.equals(FileInfo.sha256(file), info.getSha256())) {
+                    file.delete();
+                    throw new IOException("Download of " + info.getName() + " does not match the server's checksum");
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return file;
+        });
+    }
+
+    /**
+     * Reads the version of a downloaded copy.
+     *
+     * @param copy the copy in the downloads directory.
+     * @return what the server said about the file when the copy was
+     * downloaded, or null if there is no copy, or it was changed since.
+     */
+    private FileInfo loadVersion(File copy) {
+        File version = new File(dir, "." + copy.getName() + ".version");
+        if (!copy.isFile() || !version.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(version))) {
+            if (in.readLong() != copy.length() || in.readLong() != copy.lastModified()) {
+                return null;
+            }
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            byte[] digest = new byte[in.readInt()];
+            in.readFully(digest);
+            return new FileInfo(copy.getName(), length, lastModified, digest);
+        } catch (IOException | RuntimeException e) {
+            return null; // unreadable, fetch it again
+        }
+    }
+
+    /**
+     * Records the version of a copy just downloaded. A version that cannot
+     * be recorded only means the file is fetched in full next time.
+     *
+     * @param copy the copy in the downloads directory.
+     * @param info what the server said about the file.
+     */
+    private void saveVersion(File copy, FileInfo info) {
+        File version = new File(dir, "." + copy.getName() + ".version");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(version))) {
+            out.writeLong(copy.length());
+            out.writeLong(copy.lastModified());
+            out.writeLong(info.getLength());
+            out.writeLong(info.getLastModified());
+            out.writeInt(info.getSha256().length);
+            out.write(info.getSha256());
+        } catch (IOException e) {
+            version.delete();
+        }
+    }
+
+    /**
+     * @return the cause of a failure passed through a chain of futures.
+     */
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
+// End of DownloadManager class
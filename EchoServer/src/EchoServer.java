@@ -1,8 +1,25 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputFilter;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EchoServer extends AbstractServer {
     //Class variables *************************************************
@@ -12,9 +29,278 @@ public class EchoServer extends AbstractServer {
      */
     final public static int DEFAULT_PORT = 5555;
 
+    /**
+     * The backlog of listeners added on the command line or with the
+     * echo.listeners system property that do not give one.
+     */
+    final public static int DEFAULT_BACKLOG = 10;
+
+    /**
+     * Default rate limits for each client. They can be changed with the
+     * echo.messageRate, echo.messageBurst, echo.uploadRate, echo.uploadBurst,
+     * echo.downloadRate and echo.downloadBurst system properties. A rate of 0
+     * switches the limit off.
+     */
+    final public static double DEFAULT_MESSAGE_RATE = 20;
+    final public static long DEFAULT_MESSAGE_BURST = 40;
+    final public static double DEFAULT_UPLOAD_RATE = 4 * 1024 * 1024;
+    final public static long DEFAULT_UPLOAD_BURST = 16 * 1024 * 1024;
+    final public static double DEFAULT_DOWNLOAD_RATE = 8 * 1024 * 1024;
+    final public static long DEFAULT_DOWNLOAD_BURST = 32 * 1024 * 1024;
+
+    /**
+     * Default admission limits. They can be changed with the echo.maxClients
+     * and echo.maxInFlight system properties. A limit of 0 switches it off.
+     */
+    final public static int DEFAULT_MAX_CLIENTS = 500;
+    final public static int DEFAULT_MAX_IN_FLIGHT = 200;
+
+    /**
+     * How long a rejected client is told to wait before trying again. A
+     * random amount up to the same value is added so that rejected clients
+     * do not all come back at once.
+     */
+    final public static long RETRY_AFTER = 2000;
+
+    /**
+     * How long a graceful shutdown waits for work in progress, in
+     * milliseconds, and over how long clients are spread out when they are
+     * told to reconnect. The first can be changed with the echo.drainTimeout
+     * system property. Setting echo.reconnectTo to host:port sends clients
+     * to another server instead of back to this one.
+     */
+    final public static long DEFAULT_DRAIN_TIMEOUT = 10000;
+    final public static long RECONNECT_SPREAD = 5000;
+
+    /**
+     * The only classes clients may send. Everything a client sends is one of
+     * the envelopes, or an array of them for a batch, carrying nothing but
+     * strings, numbers and byte arrays, so the server never builds any other
+     * object graph a client chooses.
+     */
+    final public static String INPUT_FILTER = "maxdepth=5;Envelope;RelayEnvelope;FileRange;FileInfo;FileDelta;SearchQuery;"
+            + "java.lang.String;java.lang.Long;java.lang.Number;!*";
+
+    /**
+     * Default size of the file I/O executor. They can be changed with the
+     * echo.ioThreads and echo.ioQueue system properties.
+     */
+    final public static int DEFAULT_IO_THREADS = 4;
+    final public static int DEFAULT_IO_QUEUE = 256;
+
+    /**
+     * Default memory budget of the download cache in bytes. It can be changed
+     * with the echo.downloadCacheBytes system property; 0 disables the cache.
+     */
+    final public static long DEFAULT_DOWNLOAD_CACHE_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * How long a disconnected session can be resumed, in milliseconds, and
+     * how many messages it keeps for replay. They can be changed with the
+     * echo.sessionGrace and echo.sessionBuffer system properties.
+     */
+    final public static long DEFAULT_SESSION_GRACE = 120000;
+    final public static int DEFAULT_SESSION_BUFFER = 256;
+
+    /**
+     * Files larger than this are sent in chunks of this many bytes, so that
+     * chat to the same client is not held up behind a big download.
+     */
+    final public static int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * How many recent messages each room keeps for its members' writers, and
+     * how many writer threads send room messages. A member that falls this
+     * many messages behind misses them and is resynced. They can be changed
+     * with the echo.roomRing and echo.broadcastWriters system properties.
+     */
+    final public static int DEFAULT_ROOM_RING = 1024;
+    final public static int DEFAULT_BROADCAST_WRITERS =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * How long a client may stay silent before its connection is closed, in
+     * milliseconds. Clients send a heartbeat every
+     * ChatClient.HEARTBEAT_INTERVAL, so this allows a few to go missing. It
+     * can be changed with the echo.idleTimeout system property; 0 switches
+     * idle detection off.
+     */
+    final public static long DEFAULT_IDLE_TIMEOUT = 45000;
+
+    /**
+     * How long a new client may take to send its stream header, and how long
+     * a write to a client may be held up by it not reading, before the
+     * client is dropped, in milliseconds. They can be changed with the
+     * echo.handshakeTimeout and echo.sendTimeout system properties; 0
+     * switches the limit off.
+     */
+    final public static int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+    final public static int DEFAULT_SEND_TIMEOUT = 10000;
+
+    /**
+     * How many of the latest room messages and PMs are kept for "#search".
+     * It can be changed with the echo.searchMaxDocs system property; 0
+     * switches search off.
+     */
+    final public static int DEFAULT_SEARCH_MAX_DOCS = 250000;
+
+    /**
+     * How many PMs are kept for a user who is not connected, in
+     * mailbox/pm.log, until they set their name again. It can be changed
+     * with the echo.mailboxSize system property; 0 switches mailboxes off.
+     *
+     * Mailboxes are off unless switched on, because names are not checked:
+     * the kept PMs go to whichever connection sets the name first, whoever
+     * it is. Only switch them on where the users can be trusted with each
+     * other's names.
+     */
+    final public static int DEFAULT_MAILBOX_SIZE = 0;
+
+    /**
+     * The most commands a "batch" may hold, and the commands it may hold:
+     * those answered while the batch is dispatched. File transfers and
+     * searches answer later from the I/O executor, so they are sent on their
+     * own.
+     */
+    final public static int MAX_BATCH = 16;
+    final public static Set<String> BATCH_COMMANDS = Set.of(
+            "session", "resume", "endSession", "setName", "join", "who", "presence", "pm");
+
+    //Instance variables **********************************************
+    /**
+     * The presence version of every room that has had someone join, leave or
+     * change name. Only used while holding the server lock.
+     */
+    private HashMap<String, Long> roomVersions = new HashMap<>();
+
+    /**
+     * The connections in each room, kept in step with each client's "room"
+     * info by setRoom, so that sending to a room only visits its members.
+     * Only used while holding the server lock.
+     */
+    private HashMap<String, ArrayList<ConnectionToClient>> roomMembers = new HashMap<>();
+
+    /**
+     * Reused to frame a chat line for a room with no members, which is only
+     * kept for its users who are reconnecting. Lines for a room with members
+     * are framed in the room's ring. Only used while holding the server
+     * lock.
+     */
+    private StringFrame relayFrame = new StringFrame();
+
+    /**
+     * The ring of recent messages for each room with members, and the
+     * threads that send them out. Rings are only used while holding the
+     * server lock.
+     */
+    private HashMap<String, BroadcastRing> rings = new HashMap<>();
+    private int roomRing = Integer.getInteger("echo.roomRing", DEFAULT_ROOM_RING);
+    private BroadcastWriter[] writers;
+
+    /**
+     * Runs the blocking file work of uploads, downloads and file listings so
+     * that message dispatch never waits on the disk.
+     */
+    private IOExecutor ioExecutor;
+
+    /**
+     * Recently downloaded files kept in memory, so that popular files are
+     * not read from disk for every request.
+     */
+    private DownloadCache downloadCache;
+
+    /**
+     * The messages relayed so far, indexed for "#search", or null if search
+     * is switched off.
+     */
+    private SearchIndex searchIndex;
+
+    /**
+     * The PMs kept for users who were not connected, or null if mailboxes
+     * are switched off.
+     */
+    private MailboxStore mailboxes;
+
+    /**
+     * While a batch is dispatched, the command of it being run and the
+     * answer it gave, which goes into the batch's combined answer instead of
+     * being sent. Only used while holding the server lock.
+     */
+    private Envelope batchCommand;
+    private Envelope batchReply;
+
+    /**
+     * Every resumable session by token, and the ones whose connection has
+     * dropped. Detached sessions go on receiving their room's messages and
+     * their PMs until they are resumed or expire. Only used while holding
+     * the server lock.
+     */
+    private HashMap<String, ClientSession> sessions = new HashMap<>();
+    private LinkedHashSet<ClientSession> detachedSessions = new LinkedHashSet<>();
+    private long sessionGrace = Long.getLong("echo.sessionGrace", DEFAULT_SESSION_GRACE);
+    private int sessionBuffer = Integer.getInteger("echo.sessionBuffer", DEFAULT_SESSION_BUFFER);
+    private SecureRandom tokenRandom = new SecureRandom();
+
+    /**
+     * The last ID handed out to a chunked file transfer.
+     */
+    private AtomicLong nextTransferId = new AtomicLong();
+
+    /**
+     * The answers to "#ftpstat" by file name, kept so that the digest of a
+     * big file is only worked out once. An entry is only used while the file
+     * still has the same length and modification time, and uploads remove
+     * the entry for their file.
+     */
+    private ConcurrentHashMap<String, FileInfo> fileInfos = new ConcurrentHashMap<>();
+
+    /**
+     * Where clients are sent when the server shuts down, as host:port, or
+     * null to have them come back here.
+     */
+    private String reconnectTo = System.getProperty("echo.reconnectTo");
+
     //Constructors ****************************************************
     public EchoServer(int port) {
         super(port);
+        setMessageRateLimit(
+                Double.parseDouble(System.getProperty("echo.messageRate", "" + DEFAULT_MESSAGE_RATE)),
+                Long.getLong("echo.messageBurst", DEFAULT_MESSAGE_BURST));
+        setUploadRateLimit(
+                Double.parseDouble(System.getProperty("echo.uploadRate", "" + DEFAULT_UPLOAD_RATE)),
+                Long.getLong("echo.uploadBurst", DEFAULT_UPLOAD_BURST));
+        setDownloadRateLimit(
+                Double.parseDouble(System.getProperty("echo.downloadRate", "" + DEFAULT_DOWNLOAD_RATE)),
+                Long.getLong("echo.downloadBurst", DEFAULT_DOWNLOAD_BURST));
+        setMaxClients(Integer.getInteger("echo.maxClients", DEFAULT_MAX_CLIENTS));
+        setMaxInFlight(Integer.getInteger("echo.maxInFlight", DEFAULT_MAX_IN_FLIGHT));
+        setIdleTimeout(Long.getLong("echo.idleTimeout", DEFAULT_IDLE_TIMEOUT));
+        setHandshakeTimeout(Integer.getInteger("echo.handshakeTimeout", DEFAULT_HANDSHAKE_TIMEOUT));
+        setSendTimeout(Integer.getInteger("echo.sendTimeout", DEFAULT_SEND_TIMEOUT));
+        setInputFilter(ObjectInputFilter.Config.createFilter(INPUT_FILTER));
+        writers = new BroadcastWriter[Integer.getInteger("echo.broadcastWriters", DEFAULT_BROADCAST_WRITERS)];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new BroadcastWriter("broadcast-" + (i + 1), this::memberLapped);
+        }
+        scheduleWriterCheck();
+        ioExecutor = new IOExecutor("file-io",
+                Integer.getInteger("echo.ioThreads", DEFAULT_IO_THREADS),
+                Integer.getInteger("echo.ioQueue", DEFAULT_IO_QUEUE), getMetrics());
+        downloadCache = new DownloadCache(
+                Long.getLong("echo.downloadCacheBytes", DEFAULT_DOWNLOAD_CACHE_BYTES), getMetrics());
+        int searchMaxDocs = Integer.getInteger("echo.searchMaxDocs", DEFAULT_SEARCH_MAX_DOCS);
+        if (searchMaxDocs > 0) {
+            searchIndex = new SearchIndex(searchMaxDocs);
+        }
+        int mailboxSize = Integer.getInteger("echo.mailboxSize", DEFAULT_MAILBOX_SIZE);
+        if (mailboxSize > 0) {
+            try {
+                mailboxes = new MailboxStore(new File("mailbox", "pm.log"), mailboxSize);
+            } catch (IOException e) {
+                System.out.println("ERROR - Could not open the mailboxes, PMs to users not connected"
+                        + " will be lost: " + e.getMessage());
+            }
+        }
         try {
             this.listen(); //Start listening for connections
         } catch (Exception ex) {
@@ -31,6 +317,8 @@ public class EchoServer extends AbstractServer {
             Envelope env = (Envelope) msg;
             //handle command
             handleCommandFromClient(env, client);
+        } else if (msg instanceof RelayEnvelope) {
+            relay((RelayEnvelope) msg, client);
         } else {
             System.out.println("Message received: " + msg + " from " + client);
 
@@ -38,11 +326,13 @@ public class EchoServer extends AbstractServer {
             String room = (String) client.getInfo("room");
             if (room == null) {
                 room = "commons";
-                client.setInfo("room", room);
+                setRoom(client, room);
             }
 
             // if the client has a user ID add it to their messages
-            if (client.getInfo("UserId") != null) {
+            if (client.getInfo("UserId") != null && msg instanceof String) {
+                relayToRoom(client, (String) msg, room);
+            } else if (client.getInfo("UserId") != null) {
                 this.sendToAllClientsInRoom(client.getInfo("UserId") + ": " + msg, room);
             } else {
                 this.sendToAllClientsInRoom(msg, room);
@@ -58,10 +348,36 @@ public class EchoServer extends AbstractServer {
             return;
         }
 
+        // command: batch - run several commands, in order, in this one
+        // dispatch and answer them all at once
+        // data: Envelope[] of the commands
+        if (env.getCommand().equals("batch")) {
+            runBatch(client, env);
+            return;
+        }
+
         // command: setName
         if (env.getCommand().equals("setName")) {
             String userId = (String) env.getData();
-            client.setInfo("UserId", userId);
+            String oldName = (String) client.getInfo("UserId");
+            setUserId(client, userId);
+
+            // hand over the PMs that came while the user was away; the name
+            // is taken on trust, which is why mailboxes must be switched on
+            if (mailboxes != null && userId != null && !userId.equals(oldName)) {
+                submitFileTask(client, env, () -> deliverMailbox(client, userId));
+            }
+
+            // a named user shows up in the room's presence list
+            String room = (String) client.getInfo("room");
+            if (room != null && userId != null) {
+                if (oldName == null) {
+                    publishPresence(room, PresenceUpdate.JOIN, userId, null, client);
+                    sendPresenceSnapshot(client, room);
+                } else if (!oldName.equals(userId)) {
+                    publishPresence(room, PresenceUpdate.RENAME, userId, oldName, null);
+                }
+            }
             return;
         }
 
@@ -71,7 +387,19 @@ public class EchoServer extends AbstractServer {
             if (room == null) {
                 room = "commons";
             }
-            client.setInfo("room", room);
+            String oldRoom = (String) client.getInfo("room");
+            setRoom(client, room);
+
+            // tell both rooms about the move, then give the client the new
+            // room's presence list
+            String name = (String) client.getInfo("UserId");
+            if (name != null && !room.equals(oldRoom)) {
+                if (oldRoom != null) {
+                    publishPresence(oldRoom, PresenceUpdate.LEAVE, name, null, client);
+                }
+                publishPresence(room, PresenceUpdate.JOIN, name, null, client);
+            }
+            sendPresenceSnapshot(client, room);
             if (client.getInfo("UserId") != null) {
                 String UserId = (String) client.getInfo("UserId");
                 System.out.println("<" + UserId + " has joined room " + room + ">");
@@ -98,6 +426,47 @@ public class EchoServer extends AbstractServer {
 
             // Forward the envelope to the target user by userId
             sendToClientByUserId(forward, target);
+            if (searchIndex != null) {
+                searchIndex.addPrivateMessage(sender, target, text);
+            }
+            return;
+        }
+
+        // command: session - start a resumable session on this connection.
+        // The reply carries the token in arg and the number of the last
+        // message already sent (0) in data; everything after it is numbered.
+        if (env.getCommand().equals("session")) {
+            if (client.getSession() == null) {
+                startSession(client, newSession(client), 0);
+            }
+            return;
+        }
+
+        // command: resume - reattach a session after a reconnect
+        // arg: token, data: number of the last message the client saw
+        if (env.getCommand().equals("resume")) {
+            resumeSession(client, env.getArg(), (Long) env.getData());
+            return;
+        }
+
+        // command: endSession - the user logged off, so the session will not
+        // be resumed
+        if (env.getCommand().equals("endSession")) {
+            ClientSession session = client.getSession();
+            if (session != null) {
+                sessions.remove(session.getToken());
+            }
+            return;
+        }
+
+        // command: presence - the client lost track of the presence versions
+        // and wants a fresh snapshot of its room
+        if (env.getCommand().equals("presence")) {
+            String room = (String) client.getInfo("room");
+            if (room == null) {
+                room = "commons";
+            }
+            sendPresenceSnapshot(client, room);
             return;
         }
 
@@ -111,12 +480,7 @@ public class EchoServer extends AbstractServer {
             Envelope returnEnv = new Envelope();
             returnEnv.setCommand("who");
             returnEnv.setData(clientList);
-            try {
-                client.sendToClient(returnEnv);
-            } catch (IOException e) {
-                System.out.println("Something went wrong when trying to send who return envelope");
-                e.printStackTrace();
-            }
+            reply(client, env, returnEnv);
             return;
         }
 
@@ -129,207 +493,1254 @@ public class EchoServer extends AbstractServer {
 
             if (filename == null || dataObj == null || !(dataObj instanceof byte[])) {
                 System.out.println("Invalid #ftpUpload envelope received from " + client);
-                try {
-                    client.sendToClient("Error: invalid upload (missing filename or data).");
-                } catch (IOException ignore) {
-                }
+                replyError(client, env, "Error: invalid upload (missing filename or data).");
                 return;
             }
 
             byte[] fileBytes = (byte[]) dataObj;
 
+            long retryAfter = client.acquireUpload(fileBytes.length);
+            if (retryAfter > 0) {
+                replyThrottled(client, env, "upload", retryAfter);
+                return;
+            }
+
             // Sanitize filename
             String safeName = new File(filename).getName();
 
-            // Ensure uploads directory exists
-            File dir = new File("uploads");
-            if (!dir.exists()) {
-                if (!dir.mkdirs()) {
-                    String msg = "Error: Failed to create uploads directory on server.";
-                    System.out.println(msg);
-                    try {
-                        client.sendToClient(msg);
-                    } catch (IOException ignore) {
-                    }
-                    return;
-                }
+            // Save the file on the I/O executor so the disk never holds up chat
+            submitFileTask(client, env, () -> saveUpload(client, env, safeName, fileBytes));
+            return;
+        }
+
+        // #ftpsig - send the block signatures of a file in uploads/, so the
+        // client can send a new version of it as a delta
+        if (env.getCommand().equals("#ftpsig")) {
+            String filename = env.getArg();
+            if (filename == null) {
+                replyError(client, env, "Error: missing filename for ftpsig.");
+                return;
             }
+            String safeName = new File(filename).getName();
+            submitFileTask(client, env, () -> sendSignatures(client, env, safeName));
+            return;
+        }
 
-            File out = new File(dir, safeName);
-            try (FileOutputStream fos = new FileOutputStream(out)) {
-                fos.write(fileBytes);
-                System.out.println("Saved uploaded file " + out.getAbsolutePath() + " from " + client);
-                try {
-                    client.sendToClient("Upload successful: " + out.getName());
-                } catch (IOException ignore) {
-                }
-            } catch (IOException e) {
-                System.out.println("Error saving uploaded file from " + client + ": " + e.getMessage());
-                e.printStackTrace();
-                try {
-                    client.sendToClient("Error saving file: " + e.getMessage());
-                } catch (IOException ignore) {
-                }
+        // #ftpdelta - rebuild a file in uploads/ from its current version and
+        // the FileDelta in data
+        if (env.getCommand().equals("#ftpdelta")) {
+            String filename = env.getArg();
+            if (filename == null || !(env.getData() instanceof FileDelta)) {
+                replyError(client, env, "Error: invalid delta upload (missing filename or delta).");
+                return;
+            }
+            FileDelta delta = (FileDelta) env.getData();
+            long retryAfter = client.acquireUpload(delta.getWireSize());
+            if (retryAfter > 0) {
+                replyThrottled(client, env, "upload", retryAfter);
+                return;
             }
+            String safeName = new File(filename).getName();
+            submitFileTask(client, env, () -> saveDelta(client, env, safeName, delta));
             return;
         }
 
         // #ftplist - return list of filenames in uploads/
+        // arg: optional prefix the filenames must start with
         if (env.getCommand().equals("#ftplist")) {
-            File dir = new File("uploads");
-            ArrayList<String> list = new ArrayList<>();
-            if (dir.exists() && dir.isDirectory()) {
-                File[] files = dir.listFiles();
-                if (files != null) {
-                    for (File f : files) {
-                        if (f.isFile()) {
-                            list.add(f.getName());
-                        }
-                    }
-                }
-            }
-            Envelope returnEnv = new Envelope();
-            returnEnv.setCommand("ftplist"); // response command
-            returnEnv.setData(list);
-            try {
-                client.sendToClient(returnEnv);
-            } catch (IOException e) {
-                System.out.println("Failed to send ftplist to " + client);
-                e.printStackTrace();
+            submitFileTask(client, env, () -> sendFileList(client, env, env.getArg()));
+            return;
+        }
+
+        // #ftpstat - send the length, modification time and digest of a file
+        if (env.getCommand().equals("#ftpstat")) {
+            String filename = env.getArg();
+            if (filename == null) {
+                replyError(client, env, "Error: missing filename for ftpstat.");
+                return;
             }
+            String safeName = new File(filename).getName();
+            submitFileTask(client, env, () -> sendFileInfo(client, env, safeName));
             return;
         }
 
         // #ftpget - send the requested file back to requesting client
+        // data: optional FileRange to send only part of the file, or the
+        // FileInfo of the client's copy to only answer if the file changed
         if (env.getCommand().equals("#ftpget")) {
             String filename = env.getArg();
             if (filename == null) {
-                try {
-                    client.sendToClient("Error: missing filename for ftpget.");
-                } catch (IOException ignore) {
-                }
+                replyError(client, env, "Error: missing filename for ftpget.");
                 return;
             }
             String safeName = new File(filename).getName();
-            File f = new File("uploads", safeName);
-            if (!f.exists() || !f.isFile()) {
-                try {
-                    client.sendToClient("Error: file not found: " + safeName);
-                } catch (IOException ignore) {
-                }
+            if (env.getData() instanceof FileRange) {
+                FileRange range = (FileRange) env.getData();
+                submitFileTask(client, env, () -> sendRange(client, env, safeName, range));
+            } else if (env.getData() instanceof FileInfo) {
+                FileInfo cached = (FileInfo) env.getData();
+                submitFileTask(client, env, () -> sendIfModified(client, env, safeName, cached));
+            } else {
+                submitFileTask(client, env, () -> sendFile(client, env, safeName));
+            }
+            return;
+        }
+
+        // #search - find earlier room messages and PMs holding some words
+        // data: the SearchQuery
+        if (env.getCommand().equals("#search")) {
+            if (!(env.getData() instanceof SearchQuery)) {
+                replyError(client, env, "Error: invalid search (missing query).");
                 return;
             }
-            try {
-                byte[] data = Files.readAllBytes(f.toPath());
-                Envelope returnEnv = new Envelope();
-                returnEnv.setCommand("#ftpget"); // response command with file bytes
-                returnEnv.setArg(safeName);
-                returnEnv.setData(data);
-                client.sendToClient(returnEnv);
-            } catch (IOException e) {
-                System.out.println("Error reading file for ftpget: " + e.getMessage());
-                e.printStackTrace();
-                try {
-                    client.sendToClient("Error: could not read file: " + e.getMessage());
-                } catch (IOException ignore) {
-                }
+            if (searchIndex == null) {
+                replyError(client, env, "Error: search is switched off on this server.");
+                return;
+            }
+            SearchQuery query = (SearchQuery) env.getData();
+            if (SearchIndex.words(query.getText()).isEmpty()) {
+                replyError(client, env, "Error: nothing to search for.");
+                return;
             }
+            String userId = (String) client.getInfo("UserId");
+            submitFileTask(client, env, () -> search(client, env, userId, query));
             return;
         }
     }
 
-    public ArrayList<String> getAllClientsInRoom(String room) {
-        ArrayList<String> result = new ArrayList<String>();
-
-        if (room == null) {
-            return result;
+    /**
+     * Runs the commands of a batch one after another without letting go of
+     * the server lock, so nothing another client does comes between them.
+     * Each command acts as if sent on its own, except that its answer, if it
+     * has one, is kept; the kept answers are sent together, in the order of
+     * the commands, as the data of one "batch" envelope, with null for a
+     * command that gave none. Messages a command sends other than its answer,
+     * such as a presence snapshot, are sent as usual, before the batch's
+     * answer.
+     *
+     * @param client - The client that sent the batch
+     * @param env - The batch, data = Envelope[] of the commands
+     */
+    private void runBatch(ConnectionToClient client, Envelope env) {
+        if (!(env.getData() instanceof Envelope[])) {
+            replyError(client, env, "Error: invalid batch (missing commands).");
+            return;
         }
-
-        //get array of all clients
-        Thread[] clientThreadList = getClientConnections();
-        if (clientThreadList == null) {
-            return result;
+        Envelope[] commands = (Envelope[]) env.getData();
+        if (commands.length > MAX_BATCH) {
+            replyError(client, env, "Error: a batch may hold at most " + MAX_BATCH + " commands.");
+            return;
+        }
+        // the batch itself was one message; its other commands count too
+        long retryAfter = commands.length > 1 ? client.acquireMessages(commands.length - 1) : 0;
+        if (retryAfter > 0) {
+            replyThrottled(client, env, "messages", retryAfter);
+            return;
         }
+        getMetrics().recordBatch(commands.length);
 
-        //loop through all clients
-        for (Thread t : clientThreadList) {
-            if (!(t instanceof ConnectionToClient)) {
+        Envelope[] replies = new Envelope[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            Envelope command = commands[i];
+            if (command == null || !BATCH_COMMANDS.contains(command.getCommand())) {
+                String name = command == null ? null : command.getCommand();
+                replies[i] = new Envelope("error", null, "Error: " + name + " cannot be batched.");
                 continue;
             }
-            ConnectionToClient currClient = (ConnectionToClient) t;
-            Object clientRoom = currClient.getInfo("room");
-            if (clientRoom != null && room.equals(clientRoom)) {
-                if (currClient.getInfo("UserId") != null) {
-                    result.add((String) currClient.getInfo("UserId"));
-                }
+            // answers carry the batch's request ID, so errors come back as
+            // envelopes rather than plain text
+            command.setRequestId(env.getRequestId());
+            batchCommand = command;
+            batchReply = null;
+            try {
+                handleCommandFromClient(command, client);
+            } finally {
+                replies[i] = batchReply;
+                batchCommand = null;
+                batchReply = null;
+            }
+            if (replies[i] != null) {
+                replies[i].setRequestId(0);
             }
         }
-        return result;
+        reply(client, env, new Envelope("batch", null, replies));
     }
 
     /**
-     * Send message to all clients in specified room
+     * Hands file work for a command to the I/O executor, or tells the client
+     * to try again later if the executor is too busy to take it.
      *
-     * @param msg - The message to send
-     * @param room - The room to send to
+     * @param client - The client that sent the command
+     * @param request - The command the work belongs to
+     * @param task - The file work, which replies to the client itself
      */
-    public void sendToAllClientsInRoom(Object msg, String room) {
-        if (room == null) {
+    private void submitFileTask(ConnectionToClient client, Envelope request, Runnable task) {
+        if (isDraining()) {
+            replyError(client, request, "Error: server is shutting down, please try again after reconnecting.");
             return;
         }
-
-        //get array of all clients
-        Thread[] clientThreadList = getClientConnections();
-        if (clientThreadList == null) {
-            return;
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                getMetrics().recordHandlerError();
+                System.out.println("Error handling " + request.getCommand() + " from " + client + ": " + e);
+                e.printStackTrace();
+                replyError(client, request, "Error: the server failed to handle " + request.getCommand() + ".");
+            }
+        };
+        if (!ioExecutor.submit(guarded)) {
+            replyError(client, request, "Error: server is busy with file transfers, please try again.");
         }
+    }
 
-        //loop through all clients
-        for (int i = 0; i < clientThreadList.length; i++) {
-            if (!(clientThreadList[i] instanceof ConnectionToClient)) {
-                continue;
+    /**
+     * Saves an uploaded file into uploads/. Runs on the I/O executor.
+     *
+     * @param client - The client that uploaded the file
+     * @param request - The #ftpUpload command
+     * @param safeName - The sanitized file name
+     * @param fileBytes - The contents of the file
+     */
+    private void saveUpload(ConnectionToClient client, Envelope request, String safeName, byte[] fileBytes) {
+        // Ensure uploads directory exists
+        File dir = new File("uploads");
+        if (!dir.exists()) {
+            if (!dir.mkdirs()) {
+                String msg = "Error: Failed to create uploads directory on server.";
+                System.out.println(msg);
+                replyError(client, request, msg);
+                return;
             }
-            ConnectionToClient currClient = ((ConnectionToClient) clientThreadList[i]);
+        }
 
-            Object clientRoom = currClient.getInfo("room");
-            if (clientRoom != null && room.equals(clientRoom)) {
-                try {
-                    //send message to client
-                    currClient.sendToClient(msg);
-                } catch (Exception ex) {
-                    System.out.println("Failed to send to client " + currClient + ": " + ex.getMessage());
-                }
+        // Write to a temporary file and move it into place, so an upload cut
+        // short by a shutdown never leaves a truncated file behind. Each
+        // upload gets a file of its own, so two uploads of the same name at
+        // once cannot write into each other; the last one moved in wins.
+        File out = new File(dir, safeName);
+        File part = null;
+        try {
+            part = Files.createTempFile(dir.toPath(), "." + safeName, ".part").toFile();
+            BufferPool.shared().writeFile(part, fileBytes);
+            Files.move(part.toPath(), out.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            downloadCache.invalidate(safeName);
+            fileInfos.remove(safeName);
+            System.out.println("Saved uploaded file " + out.getAbsolutePath() + " from " + client);
+            reply(client, request, "Upload successful: " + out.getName());
+        } catch (IOException e) {
+            if (part != null) {
+                part.delete();
             }
+            System.out.println("Error saving uploaded file from " + client + ": " + e.getMessage());
+            e.printStackTrace();
+            replyError(client, request, "Error saving file: " + e.getMessage());
         }
     }
 
-    public void sendToClientByUserId(Object msg, String target) {
-        if (target == null) {
+    /**
+     * Sends the block signatures of a file in uploads/ to a client. Runs on
+     * the I/O executor.
+     *
+     * @param client - The client that asked
+     * @param request - The #ftpsig command
+     * @param safeName - The sanitized file name
+     */
+    private void sendSignatures(ConnectionToClient client, Envelope request, String safeName) {
+        File f = new File("uploads", safeName);
+        if (!f.exists() || !f.isFile()) {
+            replyError(client, request, "Error: file not found: " + safeName);
             return;
         }
+        try {
+            FileInfo info = getFileInfo(f, safeName);
+            BlockSignatures sigs = BlockSignatures.compute(safeName, f, info.getSha256());
+            reply(client, request, new Envelope("ftpsig", safeName, sigs));
+        } catch (IOException e) {
+            System.out.println("Error reading file for ftpsig: " + e.getMessage());
+            replyError(client, request, "Error: could not read file: " + e.getMessage());
+        }
+    }
 
-        //get array of all clients
-        Thread[] clientThreadList = getClientConnections();
-        if (clientThreadList == null) {
+    /**
+     * Rebuilds a file in uploads/ from its current version and a delta sent
+     * by a client. The new file is written to a temporary file, checked
+     * against the digest the client sent, and moved into place in one step,
+     * so the old version stays whole until the new one is complete. Runs on
+     * the I/O executor.
+     *
+     * @param client - The client that uploaded the delta
+     * @param request - The #ftpdelta command
+     * @param safeName - The sanitized file name
+     * @param delta - The changes from the current version
+     */
+    private void saveDelta(ConnectionToClient client, Envelope request, String safeName, FileDelta delta) {
+        File dir = new File("uploads");
+        File base = new File(dir, safeName);
+        if (!base.exists() || !base.isFile()) {
+            replyError(client, request, "Error: file not found: " + safeName);
             return;
         }
 
-        //loop through all clients
-        for (int i = 0; i < clientThreadList.length; i++) {
-            if (!(clientThreadList[i] instanceof ConnectionToClient)) {
+        // rebuilt into a temporary file of its own, as in saveUpload, so
+        // that it never meets another upload of the same name
+        File part = null;
+        try {
+            FileInfo info = getFileInfo(base, safeName);
+            if (!Arrays.equals(info.getSha256(), delta.getBaseSha256())
+                    || delta.getBlockSize() != BlockSignatures.blockSizeFor(info.getLength())) {
+                replyError(client, request, "Error: " + safeName + " changed since its signatures were sent.");
+                return;
+            }
+            part = Files.createTempFile(dir.toPath(), "." + safeName, ".part").toFile();
+            try (FileChannel in = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+                    OutputStream out = new ChannelOutputStream(FileChannel.open(part.toPath(),
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING), BufferPool.shared())) {
+                delta.apply(in, info.getLength(), out);
+            }
+            if (!Arrays.equals(FileInfo.sha256(part), delta.getSha256())) {
+                part.delete();
+                replyError(client, request, "Error: rebuilt file does not match, please upload it again.");
+                return;
+            }
+            Files.move(part.toPath(), base.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            downloadCache.invalidate(safeName);
+            fileInfos.remove(safeName);
+            System.out.println("Saved delta upload of " + base.getAbsolutePath() + " from " + client);
+            reply(client, request, "Upload successful: " + safeName + " (sent " + delta.getLiteralLength()
+                    + " new bytes, reused " + delta.getBlocksCopied() + " blocks)");
+        } catch (IOException e) {
+            if (part != null) {
+                part.delete();
+            }
+            System.out.println("Error saving delta upload from " + client + ": " + e.getMessage());
+            replyError(client, request, "Error saving file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the list of files in uploads/ to a client. Runs on the I/O
+     * executor.
+     *
+     * @param client - The client that asked
+     * @param request - The #ftplist command
+     * @param prefix - Only list files starting with this, or null for all
+     */
+    private void sendFileList(ConnectionToClient client, Envelope request, String prefix) {
+        File dir = new File("uploads");
+        ArrayList<String> list = new ArrayList<>();
+        if (dir.exists() && dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.isFile() && !f.getName().startsWith(".")
+                            && (prefix == null || f.getName().startsWith(prefix))) {
+                        list.add(f.getName());
+                    }
+                }
+            }
+        }
+        Envelope returnEnv = new Envelope();
+        returnEnv.setCommand("ftplist"); // response command
+        returnEnv.setData(list);
+        reply(client, request, returnEnv);
+    }
+
+    /**
+     * Reads a file from uploads/ and sends it to a client. Runs on the I/O
+     * executor.
+     *
+     * @param client - The client that asked
+     * @param request - The #ftpget command
+     * @param safeName - The sanitized file name
+     */
+    private void sendFile(ConnectionToClient client, Envelope request, String safeName) {
+        File f = new File("uploads", safeName);
+        if (!f.exists() || !f.isFile()) {
+            replyError(client, request, "Error: file not found: " + safeName);
+            return;
+        }
+        long retryAfter = client.acquireDownload(f.length());
+        if (retryAfter > 0) {
+            replyThrottled(client, request, "download", retryAfter);
+            return;
+        }
+        if (f.length() > CHUNK_SIZE) {
+            sendFileInChunks(client, request, f, safeName, 0, f.length());
+            return;
+        }
+        try {
+            byte[] data = downloadCache.read(f);
+            Envelope returnEnv = new Envelope();
+            returnEnv.setCommand("#ftpget"); // response command with file bytes
+            returnEnv.setArg(safeName);
+            returnEnv.setData(data);
+            reply(client, request, returnEnv);
+        } catch (IOException e) {
+            System.out.println("Error reading file for ftpget: " + e.getMessage());
+            e.printStackTrace();
+            replyError(client, request, "Error: could not read file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends part of a file from uploads/ to a client as a run of chunks.
+     * Runs on the I/O executor.
+     *
+     * @param client - The client that asked
+     * @param request - The #ftpget command
+     * @param safeName - The sanitized file name
+     * @param range - The part of the file wanted
+     */
+    private void sendRange(ConnectionToClient client, Envelope request, String safeName, FileRange range) {
+        File f = new File("uploads", safeName);
+        if (!f.exists() || !f.isFile()) {
+            replyError(client, request, "Error: file not found: " + safeName);
+            return;
+        }
+        long length = f.length();
+        long offset = range.getOffset();
+        if (offset < 0 || offset >= length || range.getLength() <= 0) {
+            replyError(client, request, "Error: range is outside the file: " + safeName);
+            return;
+        }
+        long end = offset + Math.min(range.getLength(), length - offset);
+        long retryAfter = client.acquireDownload(end - offset);
+        if (retryAfter > 0) {
+            replyThrottled(client, request, "download", retryAfter);
+            return;
+        }
+        sendFileInChunks(client, request, f, safeName, offset, end);
+    }
+
+    /**
+     * Sends part or all of a file as a run of chunks. A file small enough
+     * for the download cache is cut into chunks from the cached copy, so a
+     * popular file is read from disk once however many users fetch it; a
+     * bigger one is read from disk one chunk at a time. Messages to the
+     * client go out between the chunks. Stops early if the I/O executor is
+     * shut down.
+     *
+     * @param client - The client that asked
+     * @param request - The #ftpget command
+     * @param f - The file
+     * @param safeName - The sanitized file name
+     * @param offset - Where to start
+     * @param end - Where to stop
+     */
+    private void sendFileInChunks(ConnectionToClient client, Envelope request, File f, String safeName,
+            long offset, long end) {
+        long transferId = nextTransferId.incrementAndGet();
+        client.beginTransfer(); // replies sent meanwhile go out between chunks
+        try {
+            if (downloadCache.isCacheable(f.length())) {
+                sendCachedChunks(client, request, transferId, downloadCache.read(f), safeName, offset, end);
+            } else {
+                sendDiskChunks(client, request, transferId, f, safeName, offset, end);
+            }
+        } catch (IOException e) {
+            System.out.println("Error sending file " + safeName + " to " + client + ": " + e.getMessage());
+            replyError(client, request, "Error: could not send file: " + e.getMessage());
+        } finally {
+            client.endTransfer();
+        }
+    }
+
+    /**
+     * Sends part of a file's contents, already in memory, as a run of chunks.
+     */
+    private void sendCachedChunks(ConnectionToClient client, Envelope request, long transferId,
+            byte[] contents, String safeName, long offset, long end) throws IOException {
+        if (contents.length < end) {
+            throw new EOFException("file got shorter while being sent");
+        }
+        while (offset < end) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("server is shutting down");
+            }
+            byte[] data = Arrays.copyOfRange(contents, (int) offset, (int) Math.min(offset + CHUNK_SIZE, end));
+            client.sendChunk(new FileChunk(transferId, request.getRequestId(), safeName,
+                    offset, contents.length, end, data));
+            offset += data.length;
+        }
+    }
+
+    /**
+     * Sends part of a file as a run of chunks, reading each from disk just
+     * before it is sent.
+     */
+    private void sendDiskChunks(ConnectionToClient client, Envelope request, long transferId,
+            File f, String safeName, long offset, long end) throws IOException {
+        long length = f.length();
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                BufferPool.Lease lease = BufferPool.shared().acquire(CHUNK_SIZE)) {
+            // the file is read into a pooled direct buffer, so the disk
+            // writes to it without going through a temporary one
+            ByteBuffer buffer = lease.buffer();
+            while (offset < end) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("server is shutting down");
+                }
+                buffer.clear().limit((int) Math.min(CHUNK_SIZE, end - offset));
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException("file got shorter while being sent");
+                    }
+                }
+                byte[] data = new byte[buffer.flip().remaining()];
+                buffer.get(data);
+                client.sendChunk(new FileChunk(transferId, request.getRequestId(), safeName,
+                        offset, length, end, data));
+                offset += data.length;
+            }
+        }
+    }
+
+    /**
+     * Answers a "#search" with the newest messages found, as a list of
+     * SearchHits. Runs on the I/O executor, so a search never holds up
+     * dispatch.
+     *
+     * @param client - The client that asked
+     * @param request - The #search command
+     * @param userId - The user searching, who may also find their own PMs
+     * @param query - What to look for
+     */
+    private void search(ConnectionToClient client, Envelope request, String userId, SearchQuery query) {
+        long start = System.nanoTime();
+        ArrayList<SearchHit> hits = searchIndex.search(userId, query);
+        getMetrics().recordSearch(System.nanoTime() - start);
+        reply(client, request, new Envelope("#search", query.getText(), hits));
+    }
+
+    /**
+     * Sends the length, modification time and SHA-256 digest of a file in
+     * uploads/ to a client. The digest is worked out the first time and
+     * then kept until the file changes. Runs on the I/O executor.
+     *
+     * @param client - The client that asked
+     * @param request - The #ftpstat command
+     * @param safeName - The sanitized file name
+     */
+    private void sendFileInfo(ConnectionToClient client, Envelope request, String safeName) {
+        File f = new File("uploads", safeName);
+        if (!f.exists() || !f.isFile()) {
+            replyError(client, request, "Error: file not found: " + safeName);
+            return;
+        }
+        try {
+            reply(client, request, new Envelope("ftpstat", safeName, getFileInfo(f, safeName)));
+        } catch (IOException e) {
+            System.out.println("Error reading file for ftpstat: " + e.getMessage());
+            replyError(client, request, "Error: could not read file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers a conditional download. If the client's copy has the same
+     * contents as the file in uploads/, the client is told it has not been
+     * modified; otherwise it is sent the file's new FileInfo, as for
+     * "#ftpstat", so that it can fetch the file the way that suits its
+     * size. Runs on the I/O executor.
+     *
+     * @param client - The client that asked
+     * @param request - The #ftpget command
+     * @param safeName - The sanitized file name
+     * @param cached - What the server said about the client's copy
+     */
+    private void sendIfModified(ConnectionToClient client, Envelope request, String safeName, FileInfo cached) {
+        File f = new File("uploads", safeName);
+        if (!f.exists() || !f.isFile()) {
+            replyError(client, request, "Error: file not found: " + safeName);
+            return;
+        }
+        try {
+            FileInfo info = getFileInfo(f, safeName);
+            if (info.getLength() == cached.getLength()
+                    && Arrays.equals(info.getSha256(), cached.getSha256())) {
+                getMetrics().recordNotModified();
+                reply(client, request, new Envelope("notmodified", safeName, null));
+            } else {
+                reply(client, request, new Envelope("ftpstat", safeName, info));
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading file for ftpget: " + e.getMessage());
+            replyError(client, request, "Error: could not read file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the length, modification time and digest of a file in
+     * uploads/, working out the digest only if the file changed since it
+     * was last asked for.
+     *
+     * @param f - The file
+     * @param safeName - The sanitized file name
+     * @return what the server knows about the file
+     */
+    private FileInfo getFileInfo(File f, String safeName) throws IOException {
+        FileInfo info = fileInfos.get(safeName);
+        if (info == null || info.getLength() != f.length() || info.getLastModified() != f.lastModified()) {
+            long length = f.length();
+            long lastModified = f.lastModified();
+            info = new FileInfo(safeName, length, lastModified, FileInfo.sha256(f));
+            fileInfos.put(safeName, info);
+        }
+        return info;
+    }
+
+    /**
+     * Sends the answer to a command back to the client that sent it. The
+     * request ID of the command is copied onto the answer so the client can
+     * match them up. A plain text answer to a command that has a request ID
+     * is wrapped in an "ok" envelope so it can carry the ID. The answer to a
+     * command run as part of a batch is kept for the batch's answer instead.
+     *
+     * @param client - The client that sent the command
+     * @param request - The command being answered
+     * @param response - The answer, an Envelope or a String
+     */
+    private void reply(ConnectionToClient client, Envelope request, Object response) {
+        // the answer to a command of a batch goes into the batch's answer;
+        // only the dispatching thread holds the lock while a batch runs
+        if (request == batchCommand && Thread.holdsLock(this)) {
+            batchReply = response instanceof Envelope ? (Envelope) response : new Envelope("ok", null, response);
+            return;
+        }
+        if (request.getRequestId() != 0) {
+            if (!(response instanceof Envelope)) {
+                response = new Envelope("ok", null, response);
+            }
+            ((Envelope) response).setRequestId(request.getRequestId());
+        }
+        try {
+            client.sendToClient(response);
+        } catch (IOException e) {
+            getMetrics().recordSendFailure();
+            System.out.println("Failed to reply to " + client + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tells a client that its command failed. Commands with a request ID get
+     * an "error" envelope, everything else gets the plain text as before.
+     *
+     * @param client - The client that sent the command
+     * @param request - The command that failed
+     * @param message - What went wrong
+     */
+    private void replyError(ConnectionToClient client, Envelope request, String message) {
+        reply(client, request, request.getRequestId() != 0 ? new Envelope("error", null, message) : message);
+    }
+
+    /**
+     * Tells a client that a transfer went over its rate limit. Counts the
+     * throttle in the server metrics.
+     *
+     * @param client - The client that sent the command
+     * @param request - The command that was throttled
+     * @param kind - "upload" or "download"
+     * @param retryAfter - Milliseconds before the client may try again
+     */
+    private void replyThrottled(ConnectionToClient client, Envelope request, String kind, long retryAfter) {
+        getMetrics().recordThrottled(kind);
+        reply(client, request, new Envelope("throttled", kind, retryAfter));
+    }
+
+    public ArrayList<String> getAllClientsInRoom(String room) {
+        ArrayList<String> result = new ArrayList<String>();
+
+        if (room == null) {
+            return result;
+        }
+
+        synchronized (this) {
+            ArrayList<ConnectionToClient> members = roomMembers.get(room);
+            if (members != null) {
+                for (ConnectionToClient currClient : members) {
+                    if (currClient.getInfo("UserId") != null) {
+                        result.add((String) currClient.getInfo("UserId"));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send message to all clients in specified room
+     *
+     * @param msg - The message to send
+     * @param room - The room to send to
+     */
+    public void sendToAllClientsInRoom(Object msg, String room) {
+        sendToAllClientsInRoom(msg, room, null);
+    }
+
+    /**
+     * Send message to all clients in specified room except one. The message
+     * is serialized and put in the room's ring once and the broadcast writers
+     * send it to the members, so this returns without waiting for any of
+     * them.
+     *
+     * @param msg - The message to send
+     * @param room - The room to send to
+     * @param except - The client to skip, or null to send to everyone
+     */
+    public synchronized void sendToAllClientsInRoom(Object msg, String room, ConnectionToClient except) {
+        if (room == null) {
+            return;
+        }
+        publishToRoom(msg, room, except);
+        recordForDetached(msg, room);
+    }
+
+    /**
+     * Puts a message in a room's ring and wakes the writers. A message that
+     * is not already in a frame is serialized into one here, so that the
+     * writers never serialize it again for each member.
+     *
+     * @param msg - The message, which must not change afterwards
+     * @param room - The room to send to
+     * @param except - The client to skip, or null
+     */
+    private void publishToRoom(Object msg, String room, ConnectionToClient except) {
+        BroadcastRing ring = rings.get(room);
+        if (ring == null) {
+            return; // nobody in the room
+        }
+        if (!(msg instanceof StringFrame || msg instanceof ObjectFrame)) {
+            try {
+                msg = ObjectFrame.of(msg);
+            } catch (IOException e) {
+                // left as it is; sending it to each member reports the failure
+            }
+        }
+        ring.publish(msg, except);
+        for (BroadcastWriter writer : writers) {
+            writer.signal();
+        }
+    }
+
+    /**
+     * Helps a client that fell too far behind in its room to get back in
+     * step: it is told how many messages it missed and sent a new presence
+     * list. Called on a broadcast writer, which must not wait on the client
+     * or the server lock, so the work is queued on the I/O executor.
+     *
+     * @param client - The client that fell behind
+     * @param room - The room
+     * @param missed - The number of messages it missed
+     */
+    private void memberLapped(ConnectionToClient client, String room, long missed) {
+        getMetrics().recordBroadcastLapped();
+        if (!ioExecutor.submit(() -> resync(client, room, missed))) {
+            getMetrics().recordSendFailure(); // the client stays out of step
+        }
+    }
+
+    /**
+     * Sends a client that fell behind in its room what it needs to get back
+     * in step. Runs on the I/O executor.
+     *
+     * @param client - The client that fell behind
+     * @param room - The room
+     * @param missed - The number of messages it missed
+     */
+    private void resync(ConnectionToClient client, String room, long missed) {
+        try {
+            client.sendToClient(new Envelope("resync", room, missed));
+        } catch (IOException e) {
+            getMetrics().recordSendFailure();
+            return;
+        }
+        synchronized (this) {
+            if (room.equals(client.getInfo("room"))) {
+                sendPresenceSnapshot(client, room);
+            }
+        }
+    }
+
+    /**
+     * Checks the broadcast writers for one held up sending to a client, a
+     * few times per MAX_SEND_MILLIS, for as long as the program runs. Runs
+     * on the timer thread.
+     */
+    private void scheduleWriterCheck() {
+        getTimer().schedule(() -> {
+            for (BroadcastWriter writer : writers) {
+                writer.checkStalled();
+            }
+            scheduleWriterCheck();
+        }, BroadcastWriter.MAX_SEND_MILLIS / 2);
+    }
+
+    /**
+     * @return true if the broadcast writers have sent everything. Also used
+     * by the benchmarks.
+     */
+    boolean broadcastIdle() {
+        for (BroadcastWriter writer : writers) {
+            if (!writer.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes on a chat line or private message without decoding its text.
+     * The sender is filled in from the connection. A chat line from a named
+     * user has its text bytes copied into the same frame as a line sent as
+     * a String, so the room is sent a plain chat line either way; a private
+     * message is forwarded sharing the text bytes as they are.
+     *
+     * @param relay - The message from the client
+     * @param client - The client that sent it
+     */
+    private void relay(RelayEnvelope relay, ConnectionToClient client) {
+        String sender = (String) client.getInfo("UserId");
+        if (RelayEnvelope.SAY.equals(relay.getCommand())) {
+            String room = (String) client.getInfo("room");
+            if (room == null) {
+                room = "commons";
+                setRoom(client, room);
+            }
+            if (sender != null) {
+                relayToRoom(client, relay.getPayload(), room);
+            } else {
+                sendToAllClientsInRoom(relay.forward(null), room);
+            }
+            if (searchIndex != null) {
+                searchIndex.addRoomMessage(room, sender, relay.getPayload()); // decoded by the indexer
+            }
+        } else if (RelayEnvelope.PM.equals(relay.getCommand())) {
+            sender = sender == null ? "(unknown)" : sender;
+            sendToClientByUserId(relay.forward(sender), relay.getTarget());
+            if (searchIndex != null) {
+                searchIndex.addPrivateMessage(sender, relay.getTarget(), relay.getPayload());
+            }
+        }
+    }
+
+    /**
+     * Relays a chat line from a named user to everyone in a room. The line
+     * is serialized once, into the frame of the ring slot it is published
+     * in, and the same bytes are written to every member, so relaying
+     * allocates nothing. The line is only built as a String if a session
+     * has to keep it for replay.
+     *
+     * @param sender - The client that sent the line
+     * @param text - The text of the line
+     * @param room - The room to send to
+     */
+    private synchronized void relayToRoom(ConnectionToClient sender, String text, String room) {
+        String userId = (String) sender.getInfo("UserId");
+        if (searchIndex != null) {
+            searchIndex.addRoomMessage(room, userId, text);
+        }
+        StringFrame frame = nextFrame(room);
+        if (!frame.set(userId, (byte[]) sender.getInfo("prefix"), text)) {
+            sendToAllClientsInRoom(userId + ": " + text, room); // too long for a frame
+            return;
+        }
+        publishRelayFrame(frame, room);
+    }
+
+    /**
+     * Relays a chat line from a named user whose text came as UTF-8 bytes,
+     * the same way as one that came as a String. The bytes are copied into
+     * the frame as they are.
+     *
+     * @param sender - The client that sent the line
+     * @param text - The text of the line in UTF-8
+     * @param room - The room to send to
+     */
+    private synchronized void relayToRoom(ConnectionToClient sender, byte[] text, String room) {
+        String userId = (String) sender.getInfo("UserId");
+        StringFrame frame = nextFrame(room);
+        if (!frame.set(userId, (byte[]) sender.getInfo("prefix"), text)) {
+            sendToAllClientsInRoom(userId + ": " + new String(text, StandardCharsets.UTF_8), room);
+            return;
+        }
+        publishRelayFrame(frame, room);
+    }
+
+    /**
+     * @return the frame to fill with the next chat line for a room.
+     */
+    private StringFrame nextFrame(String room) {
+        BroadcastRing ring = rings.get(room);
+        return ring != null ? ring.nextFrame() : relayFrame;
+    }
+
+    /**
+     * Sends a framed chat line to a room, and keeps it for the room's users
+     * who are reconnecting. If any client has a session, the line is built
+     * as a String here once, rather than by each member's writer for its
+     * session.
+     *
+     * @param frame - The line, from nextFrame
+     * @param room - The room to send to
+     */
+    private void publishRelayFrame(StringFrame frame, String room) {
+        if (!sessions.isEmpty()) {
+            frame.getString();
+        }
+        publishToRoom(frame, room, null);
+        if (!detachedSessions.isEmpty()) {
+            recordForDetached(frame.getString(), room);
+        }
+    }
+
+    /**
+     * Keeps a message sent to a room for the users in the room who are
+     * reconnecting.
+     *
+     * @param msg - The message
+     * @param room - The room it was sent to
+     */
+    private void recordForDetached(Object msg, String room) {
+        for (ClientSession session : detachedSessions) {
+            if (room.equals(session.getRoom())) {
+                session.record(msg);
+            }
+        }
+    }
+
+    /**
+     * Moves a client to another room, keeping the room index and the room
+     * rings in step. The client gets the new room's messages from the next
+     * one published on.
+     *
+     * @param client - The client that moves
+     * @param room - The new room, or null to take the client out of its room
+     */
+    private synchronized void setRoom(ConnectionToClient client, String room) {
+        String oldRoom = (String) client.getInfo("room");
+        BroadcastWriter.Subscription subscription =
+                (BroadcastWriter.Subscription) client.getInfo("subscription");
+        if (subscription != null) {
+            subscription.cancel();
+            client.setInfo("subscription", null);
+        }
+        if (oldRoom != null) {
+            ArrayList<ConnectionToClient> members = roomMembers.get(oldRoom);
+            if (members != null) {
+                members.remove(client);
+                if (members.isEmpty()) {
+                    roomMembers.remove(oldRoom);
+                    rings.remove(oldRoom);
+                }
+            }
+        }
+        client.setInfo("room", room);
+        if (room != null) {
+            roomMembers.computeIfAbsent(room, r -> new ArrayList<>()).add(client);
+            BroadcastRing ring = rings.computeIfAbsent(room, r -> new BroadcastRing(r, roomRing));
+            BroadcastWriter writer = writers[Math.floorMod(System.identityHashCode(client), writers.length)];
+            client.setInfo("subscription", writer.subscribe(client, ring));
+        }
+    }
+
+    /**
+     * Sets a client's user name, along with the prefix for its chat lines
+     * already encoded for relaying.
+     *
+     * @param client - The client
+     * @param userId - The user name, or null
+     */
+    private void setUserId(ConnectionToClient client, String userId) {
+        client.setInfo("UserId", userId);
+        client.setInfo("prefix", userId == null ? null : StringFrame.encode(userId + ": "));
+    }
+
+    /**
+     * Pushes a presence delta to every client in a room and moves the room
+     * to its next version.
+     *
+     * @param room - The room that changed
+     * @param kind - PresenceUpdate.JOIN, LEAVE or RENAME
+     * @param name - The user that joined, left or was renamed
+     * @param oldName - The previous name of a renamed user
+     * @param except - A client that should not get the delta, or null
+     */
+    private void publishPresence(String room, String kind, String name, String oldName,
+            ConnectionToClient except) {
+        long version = roomVersions.getOrDefault(room, 0L) + 1;
+        roomVersions.put(room, version);
+        PresenceUpdate update = PresenceUpdate.delta(kind, room, version, name, oldName);
+        sendToAllClientsInRoom(new Envelope("presence", room, update), room, except);
+    }
+
+    /**
+     * Sends the full presence list of a room to one client.
+     *
+     * @param client - The client to send to
+     * @param room - The room to list
+     */
+    private void sendPresenceSnapshot(ConnectionToClient client, String room) {
+        long version = roomVersions.getOrDefault(room, 0L);
+        PresenceUpdate update = PresenceUpdate.snapshot(room, version, getAllClientsInRoom(room));
+        try {
+            client.sendToClient(new Envelope("presence", room, update));
+        } catch (IOException e) {
+            getMetrics().recordSendFailure();
+            System.out.println("Failed to send presence snapshot to " + client);
+        }
+    }
+
+    /**
+     * Takes a disconnecting client out of its room and tells the rest of the
+     * room that the user left.
+     *
+     * @param client - The client that went away
+     */
+    private void removeFromRoom(ConnectionToClient client) {
+        String room = (String) client.getInfo("room");
+        String name = (String) client.getInfo("UserId");
+        setRoom(client, null);
+        if (room != null && name != null) {
+            publishPresence(room, PresenceUpdate.LEAVE, name, null, client);
+        }
+    }
+
+    /**
+     * Creates a new resumable session for a client.
+     *
+     * @param client - The client the session starts on
+     * @return the session
+     */
+    private ClientSession newSession(ConnectionToClient client) {
+        byte[] secret = new byte[16];
+        tokenRandom.nextBytes(secret);
+        StringBuilder token = new StringBuilder();
+        for (byte b : secret) {
+            token.append(String.format("%02x", b));
+        }
+        ClientSession session = new ClientSession(token.toString(), sessionBuffer, client);
+        sessions.put(session.getToken(), session);
+        return session;
+    }
+
+    /**
+     * Attaches a session to a client and tells the client about it.
+     *
+     * @param client - The client to attach to
+     * @param session - The session
+     * @param fromSeq - The number of the last message the client will not
+     * be sent again
+     */
+    private void startSession(ConnectionToClient client, ClientSession session, long fromSeq) {
+        try {
+            client.startSession(session, new Envelope("session", session.getToken(), fromSeq), fromSeq);
+        } catch (IOException e) {
+            getMetrics().recordSendFailure();
+            System.out.println("Failed to start session for " + client + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Resumes a session on a new connection. The user's name and room are
+     * restored and every kept message the client has not seen is replayed.
+     * If the old connection is still open (the client noticed the drop
+     * before the server did) it is closed first. An unknown or expired
+     * token gets a fresh session, which tells the client to log in again.
+     *
+     * @param client - The new connection
+     * @param token - The session token the client presented
+     * @param lastSeq - The number of the last message the client saw
+     */
+    private void resumeSession(ConnectionToClient client, String token, Long lastSeq) {
+        ClientSession session = token == null ? null : sessions.get(token);
+        if (session == null || client.getSession() != null) {
+            if (client.getSession() == null) {
+                startSession(client, newSession(client), 0);
+            }
+            return;
+        }
+
+        ConnectionToClient old = session.getConnection();
+        if (old != null) {
+            try {
+                old.close(); // detaches the session through clientDisconnected
+            } catch (IOException e) {
+            }
+        }
+
+        detachedSessions.remove(session);
+        long fromSeq = Math.max(lastSeq == null ? 0 : lastSeq, session.getOldestSeq() - 1);
+        startSession(client, session, fromSeq);
+
+        String room = session.getRoom() == null ? "commons" : session.getRoom();
+        setUserId(client, session.getUserId());
+        setRoom(client, room);
+        if (session.getUserId() != null) {
+            publishPresence(room, PresenceUpdate.JOIN, session.getUserId(), null, client);
+        }
+        sendPresenceSnapshot(client, room);
+        System.out.println("<" + session.getUserId() + " resumed session in room " + room + ">");
+    }
+
+    /**
+     * Detaches a disconnecting client's session so it can be resumed later.
+     * The session keeps collecting messages for the user in the meantime.
+     *
+     * @param client - The client that went away
+     */
+    private void detachSession(ConnectionToClient client) {
+        ClientSession session = client.getSession();
+        if (session == null || session.getConnection() != client
+                || !sessions.containsKey(session.getToken())) {
+            return;
+        }
+        session.detach((String) client.getInfo("UserId"), (String) client.getInfo("room"));
+        detachedSessions.add(session);
+        scheduleSessionExpiry(session, sessionGrace);
+    }
+
+    /**
+     * Queues the check of a detached session on the I/O executor once the
+     * given delay has passed. The check takes the server lock, which the
+     * timer thread must not wait on, as every other timeout would wait with
+     * it; if the executor's queue is full, the check is put off for another
+     * RETRY_AFTER rather than dropped, so that the session is still
+     * forgotten. Once the executor is shut down the check is dropped.
+     *
+     * @param session - The session to check
+     * @param delay - How long to wait, in ms
+     */
+    private void scheduleSessionExpiry(ClientSession session, long delay) {
+        getTimer().schedule(() -> {
+            if (!ioExecutor.submit(() -> expireSession(session)) && !ioExecutor.isShutdown()) {
+                scheduleSessionExpiry(session, RETRY_AFTER);
+            }
+        }, delay);
+    }
+
+    /**
+     * Forgets a detached session if it has not been resumed in time. Runs on
+     * the I/O executor once the grace period after a detach has passed; a
+     * session that was resumed and detached again since has a later check of
+     * its own.
+     *
+     * @param session - The session to check
+     */
+    private void expireSession(ClientSession session) {
+        synchronized (this) {
+            if (session.isDetached()
+                    && System.currentTimeMillis() - session.getDetachedAt() >= sessionGrace) {
+                detachedSessions.remove(session);
+                sessions.remove(session.getToken());
+            }
+        }
+    }
+
+    public void sendToClientByUserId(Object msg, String target) {
+        if (target == null) {
+            return;
+        }
+
+        //get array of all clients
+        Thread[] clientThreadList = getClientConnections();
+        if (clientThreadList == null) {
+            return;
+        }
+
+        //loop through all clients
+        boolean delivered = false;
+        for (int i = 0; i < clientThreadList.length; i++) {
+            if (!(clientThreadList[i] instanceof ConnectionToClient)) {
                 continue;
             }
             ConnectionToClient currClient = ((ConnectionToClient) clientThreadList[i]);
 
             Object uid = currClient.getInfo("UserId");
             if (uid != null && target.equals(uid)) {
+                delivered = true;
                 try {
                     currClient.sendToClient(msg);
                 } catch (Exception ex) {
+                    getMetrics().recordSendFailure();
                     System.out.println("Failed to send pm to " + target + ": " + ex.getMessage());
                 }
             }
         }
+        //keep the message if the target is reconnecting
+        for (ClientSession session : detachedSessions) {
+            if (target.equals(session.getUserId())) {
+                delivered = true;
+                session.record(msg);
+            }
+        }
+        //or until they come back if they are not connected at all
+        if (!delivered && mailboxes != null) {
+            keepForOffline(msg, target);
+        }
+    }
+
+    /**
+     * Puts a PM for a user who is not connected in their mailbox.
+     *
+     * @param msg - The "pm" envelope or relayed PM
+     * @param target - The user it is for
+     */
+    private void keepForOffline(Object msg, String target) {
+        String sender;
+        byte[] text;
+        if (msg instanceof RelayEnvelope) {
+            sender = ((RelayEnvelope) msg).getSender();
+            text = ((RelayEnvelope) msg).getPayload();
+        } else if (msg instanceof Envelope && "pm".equals(((Envelope) msg).getCommand())) {
+            sender = ((Envelope) msg).getArg();
+            text = String.valueOf(((Envelope) msg).getData()).getBytes(StandardCharsets.UTF_8);
+        } else {
+            return;
+        }
+        try {
+            mailboxes.deposit(target, System.currentTimeMillis(), sender == null ? "(unknown)" : sender, text);
+        } catch (IOException e) {
+            System.out.println("Failed to keep pm for " + target + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a user the PMs kept for them while they were away, all in one
+     * "mailbox" envelope carrying the user in arg and the OfflineMessages in
+     * data. Runs on the I/O executor. Messages that cannot be sent are put
+     * back. Nothing shows that the client is the user it says it is; see
+     * DEFAULT_MAILBOX_SIZE.
+     *
+     * @param client - The client that set its name
+     * @param userId - The user
+     */
+    private void deliverMailbox(ConnectionToClient client, String userId) {
+        ArrayList<OfflineMessage> kept;
+        try {
+            kept = mailboxes.take(userId);
+        } catch (IOException e) {
+            System.out.println("Failed to read mailbox of " + userId + ": " + e.getMessage());
+            return;
+        }
+        if (kept.isEmpty()) {
+            return;
+        }
+        try {
+            client.sendToClient(new Envelope("mailbox", userId, kept));
+        } catch (IOException e) {
+            getMetrics().recordSendFailure();
+            System.out.println("Failed to deliver mailbox to " + userId + ": " + e.getMessage());
+            try {
+                for (OfflineMessage m : kept) {
+                    mailboxes.deposit(userId, m.getTime(), m.getSender(), m.getText().getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException ex) {
+                System.out.println("Failed to put back mailbox of " + userId + ": " + ex.getMessage());
+            }
+        }
     }
 
     protected void serverStarted() {
@@ -340,6 +1751,102 @@ public class EchoServer extends AbstractServer {
         System.out.println("Server has stopped listening for connections.");
     }
 
+    protected void listeningException(Throwable exception) {
+        System.out.println("ERROR - Could not accept a connection: " + exception
+                + (isListening() ? "" : ". Server has stopped listening."));
+    }
+
+    /**
+     * Logs a message whose handling threw, and answers it with an error so
+     * that a client waiting on a request is not left to time out.
+     */
+    protected void messageFailed(ConnectionToClient client, Object msg, RuntimeException exception) {
+        System.out.println("Error handling " + msg + " from " + client + ": " + exception);
+        exception.printStackTrace();
+        if (msg instanceof Envelope) {
+            Envelope env = (Envelope) msg;
+            replyError(client, env, "Error: the server failed to handle " + env.getCommand() + ".");
+        }
+    }
+
+    protected void serverClosed() {
+        if (searchIndex != null) {
+            searchIndex.stop();
+            System.out.println(searchIndex);
+        }
+        if (mailboxes != null) {
+            System.out.println(mailboxes);
+            mailboxes.close();
+        }
+        System.out.println("Server closed. " + getMetrics());
+    }
+
+    /**
+     * Tells a client that the server is going away and when to reconnect.
+     * The envelope carries the server to reconnect to in arg (null for this
+     * one) and the number of milliseconds to wait in data. Clients wait a
+     * random part of the spread so they do not all come back at once.
+     */
+    protected Object shutdownNotice(ConnectionToClient client) {
+        long reconnectAfter = RECONNECT_SPREAD / 2
+                + ThreadLocalRandom.current().nextLong(RECONNECT_SPREAD);
+        return new Envelope("reconnect", reconnectTo, reconnectAfter);
+    }
+
+    /**
+     * Lets the uploads, downloads and file listings already queued finish
+     * during a graceful shutdown.
+     */
+    protected int drainServer(long timeoutMillis) {
+        // let the writers finish sending what the rooms already have
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!broadcastIdle() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        int dropped = ioExecutor.drain(Math.max(0, deadline - System.currentTimeMillis()));
+        if (dropped > 0) {
+            System.out.println("<Shutdown dropped " + dropped + " file transfers>");
+        }
+        return dropped;
+    }
+
+    /**
+     * Heartbeat envelopes only show that the client is still there. The
+     * connection has already noted the activity, so there is nothing to do.
+     */
+    protected boolean handleHeartbeat(Object msg, ConnectionToClient client) {
+        return msg instanceof Envelope && "heartbeat".equals(((Envelope) msg).getCommand());
+    }
+
+    /**
+     * Tells a client turned away by admission control when to come back. The
+     * envelope carries the reason in arg and the number of milliseconds to
+     * wait in data.
+     */
+    protected Object connectionRejected(InetAddress address, String reason) {
+        System.out.println("<Rejected connection from " + address + ": server " + reason + ">");
+        long retryAfter = RETRY_AFTER + ThreadLocalRandom.current().nextLong(RETRY_AFTER);
+        return new Envelope("rejected", reason, retryAfter);
+    }
+
+    /**
+     * Tells a client that went over one of its rate limits to slow down.
+     * The envelope carries the kind of limit in arg and the number of
+     * milliseconds to wait in data.
+     */
+    protected void clientThrottled(ConnectionToClient client, String kind, long retryAfter) {
+        try {
+            client.sendToClient(new Envelope("throttled", kind, retryAfter));
+        } catch (IOException e) {
+            getMetrics().recordSendFailure();
+            System.out.println("Failed to send throttle notice to " + client);
+        }
+    }
+
     //Class methods ***************************************************
     public static void main(String[] args) {
         int port = 0; //Port to listen on
@@ -352,6 +1859,42 @@ public class EchoServer extends AbstractServer {
 
         EchoServer sv = new EchoServer(port);
 
+        // more addresses and ports to accept clients on, as
+        // [address:]port[/backlog][@protocol], given after the port or in
+        // echo.listeners separated by commas
+        ArrayList<String> specs = new ArrayList<>(Arrays.asList(args).subList(Math.min(1, args.length), args.length));
+        String moreListeners = System.getProperty("echo.listeners");
+        if (moreListeners != null) {
+            specs.addAll(Arrays.asList(moreListeners.split(",")));
+        }
+        for (String spec : specs) {
+            try {
+                ServerListener listener = addListener(sv, spec.trim());
+                System.out.println("Server also listening for connections on " + listener
+                        + " (backlog " + listener.getBacklog() + ", protocol " + listener.getProtocolVersion() + ")");
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("ERROR - Could not listen on " + spec + ": " + e);
+            }
+        }
+
+        String captureFile = System.getProperty("echo.capture");
+        if (captureFile != null) {
+            try {
+                sv.startCapture(new File(captureFile));
+                System.out.println("Recording traffic to " + captureFile);
+            } catch (IOException e) {
+                System.out.println("ERROR - Could not record traffic: " + e.getMessage());
+            }
+        }
+        long drainTimeout = Long.getLong("echo.drainTimeout", DEFAULT_DRAIN_TIMEOUT);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                sv.shutdownGracefully(drainTimeout);
+            } catch (IOException e) {
+                System.out.println("Error during shutdown: " + e.getMessage());
+            }
+        }, "shutdown"));
+
         try {
             sv.listen(); //Start listening for connections
         } catch (Exception ex) {
@@ -360,15 +1903,63 @@ public class EchoServer extends AbstractServer {
 
     }
 
+    /**
+     * Adds a listener to a server from its description, as
+     * [address:]port[/backlog][@protocol]. An IPv6 address goes in square
+     * brackets.
+     *
+     * @param sv - The server
+     * @param spec - The description
+     * @return the listener
+     * @exception IOException if the address is unknown or the port cannot be
+     * listened on
+     */
+    private static ServerListener addListener(EchoServer sv, String spec) throws IOException {
+        int protocol = AbstractServer.DEFAULT_PROTOCOL_VERSION;
+        int backlog = DEFAULT_BACKLOG;
+        int at = spec.lastIndexOf('@');
+        if (at >= 0) {
+            protocol = Integer.parseInt(spec.substring(at + 1));
+            spec = spec.substring(0, at);
+        }
+        int slash = spec.lastIndexOf('/');
+        if (slash >= 0) {
+            backlog = Integer.parseInt(spec.substring(slash + 1));
+            spec = spec.substring(0, slash);
+        }
+        InetAddress address = null;
+        int colon = spec.lastIndexOf(':');
+        if (colon >= 0) {
+            String host = spec.substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            address = InetAddress.getByName(host);
+            spec = spec.substring(colon + 1);
+        }
+        return sv.addListener(address, Integer.parseInt(spec), backlog, protocol);
+    }
+
     protected void clientConnected(ConnectionToClient client) {
 
         System.out.println("<Client Connected:" + client + ". Placing them in room commons>");
-        client.setInfo("room", "commons");
+        setRoom(client, "commons");
+
+    }
 
+    synchronized protected void clientDisconnected(ConnectionToClient client) {
+        detachSession(client);
+        removeFromRoom(client);
     }
 
     synchronized protected void clientException(
             ConnectionToClient client, Throwable exception) {
-        System.out.println("<Client has disconnected>");
+        if (exception instanceof EOFException) {
+            System.out.println("<Client has disconnected>");
+        } else {
+            System.out.println("<Client connection failed: " + exception + ">");
+        }
+        detachSession(client);
+        removeFromRoom(client);
     }
 }
\ No newline at end of file
@@ -13,6 +13,7 @@ public class Envelope implements Serializable{
     private String command; //the name of the command
     private String arg; //an argument needed to complete the command
     private Object data; //the data required for the command
+    private long requestId; //matches a reply to its request, 0 if no reply is expected
 
     public Envelope() {
     }
@@ -46,6 +47,20 @@ public class Envelope implements Serializable{
     public void setData(Object data) {
         this.data = data;
     }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    //true if the data is the contents of a file; replies like this are not
+    //numbered by a resumable session, as a cut off download is started again
+    public boolean hasFileData() {
+        return data instanceof byte[];
+    }
     
     
 }
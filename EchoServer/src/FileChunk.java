@@ -0,0 +1,73 @@
+import java.io.Serializable;
+
+/**
+ * One piece of a file sent by the server. Files larger than one chunk are
+ * sent as a run of chunks instead of a single "#ftpget" Envelope, so that
+ * chat and other messages to the same client can go out between the chunks
+ * rather than waiting for the whole file. Each transfer is a channel of its
+ * own, told apart by its transfer ID, so several downloads to one client can
+ * be under way at once. A "#ftpget" for a FileRange is answered with the
+ * chunks of just that range.
+ */
+public class FileChunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long transferId; //the transfer this chunk belongs to, unique per server
+    private long requestId; //the #ftpget being answered, 0 if it had no request ID
+    private String name; //the name of the file
+    private long offset; //where in the file this chunk starts
+    private long length; //the length of the whole file
+    private long end; //where the range being sent ends, the length unless a range was asked for
+    private byte[] data; //the bytes of this chunk
+
+    public FileChunk(long transferId, long requestId, String name, long offset, long length, byte[] data) {
+        this(transferId, requestId, name, offset, length, length, data);
+    }
+
+    public FileChunk(long transferId, long requestId, String name, long offset, long length, long end, byte[] data) {
+        this.transferId = transferId;
+        this.requestId = requestId;
+        this.name = name;
+        this.offset = offset;
+        this.length = length;
+        this.end = end;
+        this.data = data;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return true if this is the last chunk of the file, or of the range
+     * asked for.
+     */
+    public boolean isLast() {
+        return offset + data.length >= end;
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A new version of a file described as changes to the version the server
+ * has, sent with "#ftpdelta" in place of the whole file. The new file is a
+ * run of operations: copy a run of whole blocks of the server's version, or
+ * take the next so many bytes of literal data sent along with the delta. Worked
+ * out by the client against the server's BlockSignatures, so only the parts
+ * of the file that changed cross the network.
+ *
+ * The delta names the version it was made against and carries the digest of
+ * the new file, so the server can refuse a delta for a file that changed
+ * meanwhile and check the file it rebuilds.
+ */
+public class FileDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String name; //the name of the file
+    private byte[] baseSha256; //the digest of the server's version the delta was made against
+    private int blockSize; //the block size of that version's signatures
+    private long length; //the length of the new file
+    private byte[] sha256; //the digest of the new file
+    private long[] ops; //minus the length of literal data to take, or the first of a run of blocks to copy followed by how many
+    private byte[] literals; //the literal data, in the order it is taken
+
+    public FileDelta(String name, byte[] baseSha256, int blockSize, long length, byte[] sha256,
+            long[] ops, byte[] literals) {
+        this.name = name;
+        this.baseSha256 = baseSha256;
+        this.blockSize = blockSize;
+        this.length = length;
+        this.sha256 = sha256;
+        this.ops = ops;
+        this.literals = literals;
+    }
+
+    /**
+     * Works out the delta that turns the server's version of a file into
+     * a new one. Slides a window the size of a block along the new file; where
+     * the weak checksum and then the MD5 digest of the window match a block
+     * of the server's version, that block is copied, and everything between
+     * matches is sent as literal data.
+     *
+     * @param data the new file.
+     * @param sigs the signatures of the server's version.
+     * @return the delta.
+     */
+    public static FileDelta compute(byte[] data, BlockSignatures sigs) {
+        int blockSize = sigs.getBlockSize();
+
+        // the blocks hashed by weak checksum into a table of chains, head
+        // holding the first block of each chain plus one and next the rest,
+        // so the byte by byte search boxes nothing
+        int blocks = sigs.getBlockCount();
+        int mask = Integer.highestOneBit(Math.max(1, blocks) * 2) - 1;
+        int[] head = new int[mask + 1];
+        int[] next = new int[blocks];
+        for (int i = blocks - 1; i >= 0; i--) {
+            int bucket = mix(sigs.getWeak(i)) & mask;
+            next[i] = head[bucket] - 1;
+            head[bucket] = i + 1;
+        }
+
+        MessageDigest md5 = BlockSignatures.md5();
+        byte[] digest = new byte[16];
+        ByteArrayOutputStream literals = new ByteArrayOutputStream();
+        long[] ops = new long[16];
+        int opCount = 0;
+
+        int pos = 0;
+        int literalStart = 0;
+        int sum = data.length >= blockSize ? BlockSignatures.weakChecksum(data, 0, blockSize) : 0;
+        while (pos + blockSize <= data.length) {
+            int match = -1;
+            boolean digested = false;
+            for (int block = head[mix(sum) & mask] - 1; block >= 0; block = next[block]) {
+                if (sigs.getWeak(block) != sum) {
+                    continue;
+                }
+                if (!digested) {
+                    BlockSignatures.strongChecksum(md5, data, pos, blockSize, digest, 0);
+                    digested = true;
+                }
+                if (sigs.strongMatches(block, digest)) {
+                    match = block;
+                    break;
+                }
+            }
+
+            if (match >= 0) {
+                if (opCount + 3 > ops.length) {
+                    ops = Arrays.copyOf(ops, ops.length * 2);
+                }
+                if (pos > literalStart) {
+                    literals.write(data, literalStart, pos - literalStart);
+                    ops[opCount++] = -(pos - literalStart);
+                } else if (opCount >= 2 && ops[opCount - 2] >= 0
+                        && ops[opCount - 2] + ops[opCount - 1] == match) {
+                    ops[opCount - 1]++; // carries on the run of blocks before
+                    match = -1;
+                }
+                if (match >= 0) {
+                    ops[opCount++] = match;
+                    ops[opCount++] = 1;
+                }
+                pos += blockSize;
+                literalStart = pos;
+                if (pos + blockSize <= data.length) {
+                    sum = BlockSignatures.weakChecksum(data, pos, blockSize);
+                }
+            } else {
+                if (pos + blockSize < data.length) {
+                    sum = BlockSignatures.roll(sum, data[pos], data[pos + blockSize], blockSize);
+                }
+                pos++;
+            }
+        }
+        if (data.length > literalStart) {
+            if (opCount + 1 > ops.length) {
+                ops = Arrays.copyOf(ops, ops.length + 1);
+            }
+            literals.write(data, literalStart, data.length - literalStart);
+            ops[opCount++] = -(data.length - literalStart);
+        }
+
+        return new FileDelta(sigs.getName(), sigs.getSha256(), blockSize, data.length,
+                FileInfo.sha256(data), Arrays.copyOf(ops, opCount), literals.toByteArray());
+    }
+
+    /**
+     * Spreads the bits of a weak checksum over the low bits used to pick a
+     * bucket.
+     */
+    private static int mix(int sum) {
+        int h = sum * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Rebuilds the new file from the server's version and writes it out.
+     *
+     * @param base the server's version.
+     * @param baseLength the length of the server's version.
+     * @param out where the new file is written.
+     * @exception IOException if the server's version cannot be read, or the
+     * delta asks for blocks or literal data it does not have.
+     */
+    public void apply(FileChannel base, long baseLength, OutputStream out) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        long blocks = (baseLength + blockSize - 1) / blockSize;
+        int literal = 0;
+        long written = 0;
+        for (int i = 0; i < ops.length; i++) {
+            long op = ops[i];
+            if (op >= 0) {
+                long count = i + 1 < ops.length ? ops[++i] : 0;
+                if (count <= 0 || count > blocks || op > blocks - count) {
+                    throw new IOException("delta refers to blocks past the end of the file");
+                }
+                for (long b = op; b < op + count; b++) {
+                    long position = b * blockSize;
+                    int size = (int) Math.min(blockSize, baseLength - position);
+                    block.clear().limit(size);
+                    while (block.hasRemaining()) {
+                        if (base.read(block, position + block.position()) < 0) {
+                            throw new IOException("file got shorter while the delta was applied");
+                        }
+                    }
+                    out.write(block.array(), 0, size);
+                    written += size;
+                }
+            } else {
+                if (-op <= 0 || -op > literals.length - literal) {
+                    throw new IOException("delta is missing literal data");
+                }
+                out.write(literals, literal, (int) -op);
+                literal += (int) -op;
+                written += -op;
+            }
+        }
+        if (written != length) {
+            throw new IOException("delta rebuilds " + written + " bytes, not " + length);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getBaseSha256() {
+        return baseSha256;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public byte[] getSha256() {
+        return sha256;
+    }
+
+    /**
+     * @return the number of blocks of the server's version reused.
+     */
+    public int getBlocksCopied() {
+        long copied = 0;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] >= 0) {
+                copied += ops[++i];
+            }
+        }
+        return (int) copied;
+    }
+
+    /**
+     * @return the number of bytes of literal data carried.
+     */
+    public int getLiteralLength() {
+        return literals.length;
+    }
+
+    /**
+     * @return roughly how many bytes the delta takes on the wire.
+     */
+    public long getWireSize() {
+        return literals.length + 8L * ops.length + 128;
+    }
+}
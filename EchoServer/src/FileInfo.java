@@ -0,0 +1,83 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * What the server knows about a file in uploads/, sent in answer to
+ * "#ftpstat". A client uses the length to split a download into ranges,
+ * the length and modification time to tell whether a partial download is
+ * still of the same file, and the SHA-256 digest to check the finished
+ * download.
+ */
+public class FileInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String name; //the name of the file
+    private long length; //its length in bytes
+    private long lastModified; //when it was last changed, in milliseconds since the epoch
+    private byte[] sha256; //the SHA-256 digest of its contents
+
+    public FileInfo(String name, long length, long lastModified, byte[] sha256) {
+        this.name = name;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.sha256 = sha256;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public byte[] getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Works out the SHA-256 digest of the contents of a file held in memory.
+     */
+    public static byte[] sha256(byte[] data) {
+        return sha256Digest().digest(data);
+    }
+
+    /**
+     * Works out the SHA-256 digest of a file, as the server does for
+     * "#ftpstat" and a client does to check a download.
+     */
+    public static byte[] sha256(File f) throws IOException {
+        MessageDigest digest = sha256Digest();
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return a new SHA-256 digest.
+     */
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.Serializable;
+
+/**
+ * The part of a file a "#ftpget" asks for. Sent as the data of the command;
+ * the server answers with FileChunks covering just that part, the last of
+ * which ends the range. Lets a download be picked up where it stopped, and
+ * split into several ranges fetched at the same time.
+ */
+public class FileRange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long offset; //where the range starts
+    private long length; //how many bytes it covers, cut short at the end of the file
+
+    public FileRange(long offset, long length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A timer for very large numbers of timeouts that are usually cancelled or
+ * pushed back, such as idle checks on every connection. Timeouts are hashed
+ * into the slots of a wheel that one thread turns a slot every tick, so
+ * scheduling and cancelling cost the same no matter how many timeouts exist,
+ * and there is a single thread however many connections are watched. The
+ * price is precision: a timeout fires up to one tick late.
+ *
+ * Tasks run on the timer's thread, so they must be short and should not
+ * block; a task that needs to do real work should hand it off.
+ */
+public class HashedWheelTimer {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * A scheduled task. Only the timer thread touches the fields other than
+     * <code>cancelled</code>.
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadline; //in nanoseconds, as System.nanoTime
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running if it has not run yet. Cancelled
+         * timeouts are dropped the next time the wheel passes their slot.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return true if the timeout was cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * The length of one tick in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * The slots of the wheel. Only touched by the timer thread.
+     */
+    private final ArrayList<Timeout>[] wheel;
+
+    /**
+     * Timeouts scheduled since the last tick, waiting to be put in a slot.
+     */
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The name of the timer thread.
+     */
+    private final String name;
+
+    /**
+     * The timer thread, started when the first timeout is scheduled, and the
+     * group it goes in: that of the thread that made the timer, not of
+     * whichever thread happens to schedule first.
+     */
+    private Thread worker;
+    private final ThreadGroup group = Thread.currentThread().getThreadGroup();
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs a timer. The thread is not started until it is needed.
+     *
+     * @param name the name of the timer thread.
+     * @param tickMillis the length of one tick in milliseconds.
+     * @param wheelSize the number of slots in the wheel.
+     */
+    public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+        this.name = name;
+        this.tickNanos = tickMillis * 1_000_000L;
+        // an array of a generic type can only be made unchecked
+        @SuppressWarnings("unchecked")
+        ArrayList<Timeout>[] slots = (ArrayList<Timeout>[]) new ArrayList<?>[wheelSize];
+        this.wheel = slots;
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Schedules a task to run once after a delay.
+     *
+     * @param task the task.
+     * @param delayMillis the delay in milliseconds.
+     * @return a handle that can cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        startIfNeeded();
+        Timeout timeout = new Timeout(task, System.nanoTime() + delayMillis * 1_000_000L);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Starts the timer thread if it is not running yet.
+     */
+    private synchronized void startIfNeeded() {
+        if (worker == null) {
+            worker = new Thread(group, this::turn, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+// RUN METHOD -------------------------------------------------------
+    /**
+     * Turns the wheel one slot every tick and runs the timeouts that are due.
+     * Not to be called.
+     */
+    private void turn() {
+        long start = System.nanoTime();
+        long tick = 0;
+
+        while (true) {
+            long sleepNanos = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000L, (int) (sleepNanos % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            // Put newly scheduled timeouts into their slots
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (timeout.cancelled) {
+                    continue;
+                }
+                long due = Math.max((timeout.deadline - start) / tickNanos, tick);
+                timeout.remainingRounds = (due - tick) / wheel.length;
+                wheel[(int) (due % wheel.length)].add(timeout);
+            }
+
+            // Run what is due in this tick's slot
+            ArrayList<Timeout> slot = wheel[(int) (tick % wheel.length)];
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                timeout = slot.get(i);
+                if (!timeout.cancelled && timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                    continue;
+                }
+
+                // remove by moving the last entry into this place
+                slot.set(i, slot.get(slot.size() - 1));
+                slot.remove(slot.size() - 1);
+
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException ex) {
+                        System.out.println("Timer task failed: " + ex);
+                    }
+                }
+            }
+            tick++;
+        }
+    }
+}
+// End of HashedWheelTimer class
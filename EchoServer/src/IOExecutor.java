@@ -0,0 +1,121 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, bounded pool of threads for blocking file work such as saving
+ * uploads and reading downloads. Message dispatch hands disk work to this
+ * pool and carries on, so a slow disk never holds the server lock. When the
+ * queue is full new work is refused rather than queued without limit, and
+ * the caller tells the client to try again later.
+ *
+ * Every task's time spent waiting in the queue and running is recorded in
+ * the server metrics, along with the number of refused tasks.
+ */
+public class IOExecutor {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The threads doing the file work.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Where task latencies and refusals are recorded.
+     */
+    private final ServerMetrics metrics;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs the executor and starts its threads.
+     *
+     * @param name the prefix for the thread names.
+     * @param threads the number of threads doing file work.
+     * @param queueSize the number of tasks that may wait for a thread.
+     * @param metrics where latencies and refusals are recorded.
+     */
+    public IOExecutor(String name, int threads, int queueSize, ServerMetrics metrics) {
+        this.metrics = metrics;
+
+        // threads are made when tasks are first submitted, often by a
+        // connection thread, so they are put in the constructor's group
+        // rather than joining the group of the server's connections
+        AtomicInteger count = new AtomicInteger();
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(group, r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), factory,
+                new ThreadPoolExecutor.AbortPolicy());
+
+        metrics.setIoQueueDepthGauge(this::getQueueDepth);
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Queues a task to run on one of the file threads.
+     *
+     * @param task the file work, including the reply to the client.
+     * @return true if the task was queued, false if the queue is full or the
+     * executor has been shut down.
+     */
+    public boolean submit(Runnable task) {
+        long queued = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                long started = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    metrics.recordIoTask(started - queued, System.nanoTime() - started);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            metrics.recordIoRejected();
+            return false;
+        }
+    }
+
+    /**
+     * Stops taking new tasks and waits for the queued ones to finish. Tasks
+     * still queued when the time runs out are dropped, and running ones are
+     * interrupted.
+     *
+     * @param timeoutMillis how long to wait.
+     * @return the number of tasks that were dropped or interrupted.
+     */
+    public int drain(long timeoutMillis) {
+        pool.shutdown();
+        try {
+            if (pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        int running = pool.getActiveCount();
+        return pool.shutdownNow().size() + running;
+    }
+
+    /**
+     * @return true once the executor has stopped taking new tasks.
+     */
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+}
+// End of IOExecutor class
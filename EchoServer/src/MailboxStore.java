@@ -0,0 +1,470 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps private messages for users who are not connected, until they come
+ * back. The messages themselves live only in a file the store appends to;
+ * in memory there is just an index from each user to where their messages
+ * are in the file, one long per message, so thousands of mailboxes left
+ * waiting cost next to nothing. A mailbox holds at most a fixed number of
+ * messages, and the oldest is dropped to make room for a new one.
+ *
+ * The file starts with MAGIC and VERSION, followed by one record after
+ * another: the kind of record as a byte, the length of the rest as an int,
+ * and the rest. A DEPOSIT holds the user it is for, the time, the sender
+ * and the text in UTF-8; a CLEAR only the user, whose messages up to then
+ * have been delivered. Reading the file from the start rebuilds the index,
+ * so mailboxes survive a restart; a record cut short by a crash is cut off.
+ *
+ * Delivered and dropped messages stay in the file until it is compacted.
+ * Once the file is more waste than messages, a thread of the store's own
+ * copies the messages still waiting into a new file and swaps it in,
+ * without holding up deposits and deliveries meanwhile.
+ */
+public class MailboxStore {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * Identifies a mailbox file and its format.
+     */
+    public static final int MAGIC = 0x45434d42; // "ECMB"
+    public static final int VERSION = 1;
+    private static final int HEADER = 8;
+
+    /**
+     * The kinds of record.
+     */
+    static final byte DEPOSIT = 1;
+    static final byte CLEAR = 2;
+
+    /**
+     * The longest record kept. Where a message is and how long it is are
+     * kept together in one long, with the length in the low bits.
+     */
+    private static final int LENGTH_BITS = 24;
+    private static final int MAX_RECORD = (1 << LENGTH_BITS) - 1;
+
+    /**
+     * The file is compacted once it holds at least this many bytes of
+     * delivered and dropped messages, and more of them than of messages
+     * still waiting.
+     */
+    public static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final int maxMessages;
+
+    /**
+     * The file, where the next record goes, and how many bytes of it are
+     * messages still waiting. Guarded by the store.
+     */
+    private FileChannel channel;
+    private long end;
+    private long liveBytes = 0;
+
+    /**
+     * Where each user's messages are, oldest first. Arrays are replaced
+     * rather than changed, so compaction can work on a copy of the map.
+     * Guarded by the store.
+     */
+    private final HashMap<String, long[]> index = new HashMap<>();
+
+    /**
+     * Set while a compaction is running. Guarded by the store.
+     */
+    private boolean compacting = false;
+
+    /**
+     * Messages kept, delivered, dropped because a mailbox was full or the
+     * message too long, and compactions done.
+     */
+    private final LongAdder deposited = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Opens the mailbox file, creating it if there is none, and rebuilds
+     * the index from it.
+     *
+     * @param file the file to keep messages in.
+     * @param maxMessages the most messages a mailbox holds.
+     * @exception IOException if the file cannot be opened or is not a
+     * mailbox file.
+     */
+    public MailboxStore(File file, int maxMessages) throws IOException {
+        this.file = file;
+        this.maxMessages = Math.max(1, maxMessages);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        try {
+            if (channel.size() == 0) {
+                writeFully(channel, header(), 0);
+                end = HEADER;
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Keeps a message for a user. If their mailbox is full the oldest
+     * message in it is dropped.
+     *
+     * @param target the user it is for.
+     * @param time when it was sent.
+     * @param sender the user that sent it.
+     * @param text the text in UTF-8.
+     * @return true if the message was kept, false if it was too long.
+     * @exception IOException if the message could not be written.
+     */
+    public synchronized boolean deposit(String target, long time, String sender, byte[] text)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(text.length + 64);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeUTF(target);
+        out.writeLong(time);
+        out.writeUTF(sender);
+        out.write(text);
+        byte[] record = record(DEPOSIT, body.toByteArray());
+        if (record.length > MAX_RECORD) {
+            dropped.increment();
+            return false;
+        }
+
+        // written straight through to the operating system, which keeps it
+        // even if the server dies; nothing waits for it to reach the disk
+        writeFully(channel, record, end);
+        add(target, end << LENGTH_BITS | record.length);
+        end += record.length;
+        liveBytes += record.length;
+        deposited.increment();
+        maybeCompact();
+        return true;
+    }
+
+    /**
+     * Takes the messages kept for a user out of their mailbox.
+     *
+     * @param target the user.
+     * @return the messages, oldest first; empty if there are none.
+     * @exception IOException if the messages could not be read, in which
+     * case they stay in the mailbox.
+     */
+    public synchronized ArrayList<OfflineMessage> take(String target) throws IOException {
+        ArrayList<OfflineMessage> messages = new ArrayList<>();
+        long[] box = index.get(target);
+        if (box == null) {
+            return messages;
+        }
+        long bytes = 0;
+        for (long entry : box) {
+            ByteBuffer record = read(channel, entry);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    record.array(), 5, record.capacity() - 5));
+            in.readUTF(); // the target
+            long time = in.readLong();
+            String sender = in.readUTF();
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            messages.add(new OfflineMessage(time, sender, text));
+            bytes += length(entry);
+        }
+
+        byte[] clear = clearRecord(target);
+        writeFully(channel, clear, end);
+        end += clear.length;
+        index.remove(target);
+        liveBytes -= bytes;
+        delivered.add(messages.size());
+        maybeCompact();
+        return messages;
+    }
+
+    /**
+     * Closes the file. Mailboxes can no longer be used.
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * @return the number of users with messages waiting.
+     */
+    public synchronized int getMailboxCount() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of messages waiting.
+     */
+    public synchronized long getMessageCount() {
+        long count = 0;
+        for (long[] box : index.values()) {
+            count += box.length;
+        }
+        return count;
+    }
+
+    /**
+     * @return the size of the file.
+     */
+    public synchronized long getFileBytes() {
+        return end;
+    }
+
+    /**
+     * @return the number of messages kept, delivered and dropped so far.
+     */
+    public long getDeposited() {
+        return deposited.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of compactions done.
+     */
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    /**
+     * Returns a one line summary of the store.
+     *
+     * @return the summary.
+     */
+    @Override
+    public String toString() {
+        return "mailboxes: " + getMessageCount() + " messages for " + getMailboxCount() + " users, "
+                + getFileBytes() / 1024 + " KB file, kept=" + getDeposited() + " delivered=" + getDelivered()
+                + " dropped=" + getDropped() + " compactions=" + getCompactions();
+    }
+
+    /**
+     * Adds where a message is to a user's mailbox, dropping the oldest if
+     * it is full.
+     */
+    private void add(String target, long entry) {
+        long[] box = index.get(target);
+        if (box == null) {
+            box = new long[] {entry};
+        } else if (box.length >= maxMessages) {
+            int excess = box.length - maxMessages + 1;
+            for (int i = 0; i < excess; i++) {
+                liveBytes -= length(box[i]);
+                dropped.increment();
+            }
+            box = Arrays.copyOfRange(box, excess, box.length + 1);
+            box[box.length - 1] = entry;
+        } else {
+            box = Arrays.copyOf(box, box.length + 1);
+            box[box.length - 1] = entry;
+        }
+        index.put(target, box);
+    }
+
+    /**
+     * Rebuilds the index by reading the file from the start, cutting off a
+     * record left half written.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(0)), 64 * 1024));
+        if (size < HEADER || in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException(file + " is not a mailbox file this version can read");
+        }
+        long pos = HEADER;
+        while (pos < size) {
+            byte kind;
+            int length;
+            byte[] body;
+            try {
+                kind = in.readByte();
+                length = in.readInt();
+                if (length < 0 || pos + 5 + length > size) {
+                    break;
+                }
+                body = new byte[length];
+                in.readFully(body);
+            } catch (EOFException e) {
+                break;
+            }
+            String target = new DataInputStream(new ByteArrayInputStream(body)).readUTF();
+            if (kind == DEPOSIT) {
+                add(target, pos << LENGTH_BITS | (5 + length));
+                liveBytes += 5 + length;
+            } else if (kind == CLEAR) {
+                long[] box = index.remove(target);
+                if (box != null) {
+                    for (long entry : box) {
+                        liveBytes -= length(entry);
+                    }
+                }
+            }
+            pos += 5 + length;
+        }
+        if (pos < size) {
+            System.out.println("Mailbox file " + file + " was cut short, dropping its last "
+                    + (size - pos) + " bytes");
+            channel.truncate(pos);
+        }
+        end = pos;
+        dropped.reset(); // messages dropped before the restart were already counted
+    }
+
+    /**
+     * Starts a compaction if the file is mostly waste and none is running.
+     */
+    private void maybeCompact() {
+        long waste = end - HEADER - liveBytes;
+        if (compacting || waste < COMPACT_MIN_BYTES || waste <= liveBytes) {
+            return;
+        }
+        compacting = true;
+        Thread compactor = new Thread(this::compact, "mailbox-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Copies the messages waiting into a new file and swaps it in. The
+     * messages waiting when it starts are copied without holding the lock;
+     * only records written meanwhile are copied with it held, as they are,
+     * before the new file takes the old one's place.
+     */
+    private void compact() {
+        File tmp = new File(file.getPath() + ".compact");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            HashMap<String, long[]> snapshot;
+            long copiedTo;
+            FileChannel in;
+            synchronized (this) {
+                snapshot = new HashMap<>(index);
+                copiedTo = end;
+                in = channel; // only replaced by compaction
+            }
+
+            writeFully(out, header(), 0);
+            long pos = HEADER;
+            HashMap<Long, Long> moved = new HashMap<>();
+            for (long[] box : snapshot.values()) {
+                for (long entry : box) {
+                    ByteBuffer record = read(in, entry);
+                    writeFully(out, record.array(), pos);
+                    moved.put(entry, pos << LENGTH_BITS | length(entry));
+                    pos += length(entry);
+                }
+            }
+
+            out.force(true); // before the lock, so deposits never wait on the disk
+
+            synchronized (this) {
+                long tail = end - copiedTo;
+                out.position(pos);
+                for (long done = 0; done < tail; ) {
+                    done += in.transferTo(copiedTo + done, tail - done, out);
+                }
+                long shift = (pos - copiedTo) << LENGTH_BITS;
+                for (Map.Entry<String, long[]> e : index.entrySet()) {
+                    long[] box = e.getValue().clone();
+                    for (int i = 0; i < box.length; i++) {
+                        box[i] = box[i] >>> LENGTH_BITS < copiedTo ? moved.get(box[i]) : box[i] + shift;
+                    }
+                    e.setValue(box);
+                }
+                channel.close();
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                end = pos + tail;
+                compactions.increment();
+            }
+        } catch (IOException e) {
+            System.out.println("Mailbox compaction of " + file + " failed: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+// CLASS METHODS ****************************************************
+    private static long length(long entry) {
+        return entry & MAX_RECORD;
+    }
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION).array();
+    }
+
+    private static byte[] record(byte kind, byte[] body) {
+        return ByteBuffer.allocate(5 + body.length).put(kind).putInt(body.length).put(body).array();
+    }
+
+    private static byte[] clearRecord(String target) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new DataOutputStream(body).writeUTF(target);
+        return record(CLEAR, body.toByteArray());
+    }
+
+    /**
+     * Reads the whole record an index entry points at.
+     */
+    private static ByteBuffer read(FileChannel channel, long entry) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate((int) length(entry));
+        long pos = entry >>> LENGTH_BITS;
+        while (record.hasRemaining()) {
+            if (channel.read(record, pos + record.position()) < 0) {
+                throw new EOFException("mailbox file is shorter than its index");
+            }
+        }
+        return record;
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long pos) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+    }
+}
+// End of MailboxStore class
@@ -0,0 +1,81 @@
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+/**
+ * List model for the chat window. Messages are kept in a fixed size ring so
+ * memory stays bounded no matter how long the client runs; once the ring is
+ * full the oldest message is dropped for every new one. The newest message
+ * is at index 0, matching the "most recent at top" order of the old text
+ * area.
+ *
+ * Must only be used on the event dispatch thread.
+ */
+public class MessageListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] ring; //the messages, oldest ones overwritten first
+    private int newest = -1; //the slot holding the newest message
+    private int size = 0; //the number of messages held
+
+    /**
+     * @param capacity the maximum number of messages kept.
+     */
+    public MessageListModel(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.ring = new String[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        int slot = newest - index;
+        if (slot < 0) {
+            slot += ring.length;
+        }
+        return ring[slot];
+    }
+
+    /**
+     * @return the maximum number of messages kept.
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Adds a batch of messages, oldest first, and tells the list about it
+     * with at most one removal and one insertion event.
+     *
+     * @param messages the messages to add, in the order they arrived.
+     */
+    public void addAll(List<String> messages) {
+        int count = messages.size();
+        if (count == 0) {
+            return;
+        }
+
+        // only the newest capacity messages of a huge batch can be shown
+        int skip = Math.max(0, count - ring.length);
+        int adding = count - skip;
+
+        int dropping = Math.max(0, size + adding - ring.length);
+        if (dropping > 0) {
+            size -= dropping;
+            fireIntervalRemoved(this, size, size + dropping - 1);
+        }
+
+        for (int i = skip; i < count; i++) {
+            newest = (newest + 1) % ring.length;
+            ring[newest] = messages.get(i);
+        }
+        size += adding;
+        fireIntervalAdded(this, 0, adding - 1);
+    }
+}
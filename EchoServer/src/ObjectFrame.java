@@ -0,0 +1,85 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * A message serialized once, byte for byte as ObjectOutputStream writes it
+ * at the start of a stream or just after a reset, so that it can be sent to
+ * every member of a room without being serialized again for each of them.
+ * Used for room messages that are not plain chat lines, such as relayed
+ * chat whose text is passed on as the client sent it, and presence updates.
+ *
+ * The bytes may refer back to objects within the message, numbered from the
+ * start of the stream's handle table, so they must be written to a stream
+ * that has just been reset; ConnectionToClient.sendFrame takes care of that.
+ *
+ * A frame and its message are never changed once made, and can be handed to
+ * other threads.
+ */
+public class ObjectFrame {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The number of bytes in the header that starts every object stream.
+     */
+    private static final int STREAM_HEADER = 4;
+
+    /**
+     * The message, for anything that needs the object itself, such as a
+     * session keeping it for replay.
+     */
+    private final Object message;
+
+    /**
+     * The serialized message, without the stream header.
+     */
+    private final byte[] buffer;
+
+// CONSTRUCTORS *****************************************************
+    private ObjectFrame(Object message, byte[] buffer) {
+        this.message = message;
+        this.buffer = buffer;
+    }
+
+// CLASS METHODS ****************************************************
+    /**
+     * Serializes a message into a frame.
+     *
+     * @param message the message, which must not change afterwards.
+     * @return the frame.
+     * @exception IOException if the message cannot be serialized.
+     */
+    public static ObjectFrame of(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(message);
+        }
+        byte[] all = bytes.toByteArray();
+        byte[] buffer = new byte[all.length - STREAM_HEADER];
+        System.arraycopy(all, STREAM_HEADER, buffer, 0, buffer.length);
+        return new ObjectFrame(message, buffer);
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * @return the serialized message.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes in the serialized message.
+     */
+    public int getLength() {
+        return buffer.length;
+    }
+
+    /**
+     * @return the message itself.
+     */
+    public Object getMessage() {
+        return message;
+    }
+}
+// End of ObjectFrame class
@@ -0,0 +1,33 @@
+import java.io.Serializable;
+
+/**
+ * A private message kept for a user who was not connected when it was sent.
+ * The server sends all of a user's kept messages at once, as the data of a
+ * "mailbox" envelope, when the user next sets their name.
+ */
+public class OfflineMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long time; //when it was sent, in milliseconds since the epoch
+    private String sender; //the user that sent it
+    private String text; //what it said
+
+    public OfflineMessage(long time, String sender, String text) {
+        this.time = time;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A change to the list of users in a room, pushed by the server in a
+ * "presence" Envelope. A client first receives a snapshot with every user in
+ * the room and then small join, leave and rename deltas. Every update carries
+ * the room's version number; a client that sees a gap in the versions asks
+ * for a new snapshot.
+ */
+public class PresenceUpdate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String SNAPSHOT = "snapshot";
+    public static final String JOIN = "join";
+    public static final String LEAVE = "leave";
+    public static final String RENAME = "rename";
+
+    private String kind; //one of SNAPSHOT, JOIN, LEAVE or RENAME
+    private String room; //the room that changed
+    private long version; //the room's version after this change
+    private String name; //the user that joined, left or was renamed
+    private String oldName; //the previous name of a renamed user
+    private ArrayList<String> members; //every user in the room, snapshots only
+
+    public PresenceUpdate(String kind, String room, long version) {
+        this.kind = kind;
+        this.room = room;
+        this.version = version;
+    }
+
+    public static PresenceUpdate snapshot(String room, long version, ArrayList<String> members) {
+        PresenceUpdate update = new PresenceUpdate(SNAPSHOT, room, version);
+        update.members = members;
+        return update;
+    }
+
+    public static PresenceUpdate delta(String kind, String room, long version, String name, String oldName) {
+        PresenceUpdate update = new PresenceUpdate(kind, room, version);
+        update.name = name;
+        update.oldName = oldName;
+        return update;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOldName() {
+        return oldName;
+    }
+
+    public ArrayList<String> getMembers() {
+        return members;
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A chat line or private message that the server passes on without looking
+ * inside. The server only reads the routing fields: the command, the target
+ * user of a private message, and the sender, which it fills in itself. The
+ * text travels as UTF-8 bytes, so the server copies it along as it is and
+ * never builds a String or any other object out of what a client wrote.
+ *
+ * For a "say" the server sends the line to everyone in the sender's room,
+ * copied as it is into a plain chat line with the sender's name in front,
+ * the same as a line sent as a String. For a "pm" it forwards the envelope
+ * to every connection of the target user.
+ */
+public class RelayEnvelope implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String SAY = "say";
+    public static final String PM = "pm";
+
+    private String command; //SAY or PM
+    private String target; //the user a PM is for, null for SAY
+    private String sender; //the user that sent it, filled in by the server
+    private byte[] payload; //the text in UTF-8, never decoded by the server
+
+    public RelayEnvelope(String command, String target, byte[] payload) {
+        this.command = command;
+        this.target = target;
+        this.payload = payload;
+    }
+
+    public static RelayEnvelope text(String command, String target, String text) {
+        return new RelayEnvelope(command, target, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a copy addressed from the given sender, sharing the payload.
+     * Used by the server so that a client cannot choose whose name its
+     * messages appear under.
+     */
+    public RelayEnvelope forward(String sender) {
+        RelayEnvelope forward = new RelayEnvelope(command, target, payload);
+        forward.sender = sender;
+        return forward;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.Serializable;
+
+/**
+ * A message found by a "#search": when it was sent, where to and by whom,
+ * and what it said. A private message has no room, and the user it was
+ * sent to as its target.
+ */
+public class SearchHit implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long time; //when the server relayed it, in milliseconds since the epoch
+    private String room; //the room it was sent to, null for a PM
+    private String sender; //the user that sent it
+    private String target; //the user a PM was sent to, null for a room message
+    private String text; //what it said
+
+    public SearchHit(long time, String room, String sender, String target, String text) {
+        this.time = time;
+        this.room = room;
+        this.sender = sender;
+        this.target = target;
+        this.text = text;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
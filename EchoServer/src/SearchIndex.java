@@ -0,0 +1,775 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An inverted index of the messages relayed by the server, so that users
+ * can search what was said without every message being read through. For
+ * each word, the index keeps the list of messages holding it; a search
+ * reads the lists of its words and keeps the messages found in all of
+ * them.
+ *
+ * The threads handling clients only put a message on a bounded queue and
+ * never wait; a thread of the index's own adds the messages to it. If the
+ * queue is full the message is not indexed and is counted instead, so
+ * indexing can never slow the server down.
+ *
+ * New messages go into a small buffer that is searched as it is. When the
+ * buffer is full it is written out as a segment that never changes, whose
+ * lists hold the gaps between message numbers in as few bytes as they
+ * need. Segments are merged MERGE_FACTOR at a time into bigger ones, so a
+ * search only has a few to read however long the server runs. When the
+ * index holds more messages than it may, the oldest segment is dropped.
+ *
+ * Room messages can be found by anyone; a private message only by the two
+ * users it was between.
+ */
+public class SearchIndex {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * How many messages may wait to be indexed, and how many go into the
+     * buffer before it is written out as a segment.
+     */
+    public static final int QUEUE_SIZE = 65536;
+    public static final int SEGMENT_DOCS = 4096;
+
+    /**
+     * How many segments of the same size are merged into one.
+     */
+    public static final int MERGE_FACTOR = 8;
+
+    /**
+     * Words longer than this are not indexed, and searches return at most
+     * this many messages.
+     */
+    public static final int MAX_WORD_LENGTH = 64;
+    public static final int MAX_RESULTS = 100;
+
+    /**
+     * Put in front of a room's name to make the word every message sent to
+     * the room is indexed under. Words are only letters and digits, so it
+     * cannot be mistaken for one.
+     */
+    private static final String ROOM_WORD = "\u0000";
+
+    /**
+     * A message waiting to be indexed, and then one in the buffer. The text
+     * of a relayed message arrives as UTF-8 and is only decoded by the
+     * indexing thread.
+     */
+    private static class Message {
+
+        long time;
+        final String room;
+        final String sender;
+        final String target;
+        Object text;
+
+        Message(long time, String room, String sender, String target, Object text) {
+            this.time = time;
+            this.room = room;
+            this.sender = sender;
+            this.target = target;
+            this.text = text;
+        }
+    }
+
+    /**
+     * The list of messages holding a word, as the gaps between their
+     * numbers, seven bits to a byte.
+     */
+    private static class Postings {
+
+        byte[] data = new byte[4];
+        int length = 0;
+        int count = 0;
+        int last = -1;
+
+        void add(int doc) {
+            int gap = doc - last;
+            last = doc;
+            count++;
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            }
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+        }
+
+        int[] decode() {
+            return SearchIndex.decode(data, 0, count);
+        }
+    }
+
+    /**
+     * Messages that can be searched: the buffer or a segment. Messages are
+     * numbered from 0 within each, in the order they were sent.
+     */
+    private abstract static class Docs {
+
+        /**
+         * The number of the first message across the whole index.
+         */
+        final long base;
+
+        Docs(long base) {
+            this.base = base;
+        }
+
+        abstract int size();
+
+        abstract long time(int doc);
+
+        abstract String room(int doc);
+
+        abstract String sender(int doc);
+
+        abstract String target(int doc);
+
+        abstract String text(int doc);
+
+        /**
+         * @return the messages holding a word, in order, or null if none.
+         */
+        abstract int[] postings(String word);
+
+        /**
+         * @return the first message sent at or after a time.
+         */
+        int firstAtOrAfter(long time) {
+            int lo = 0;
+            int hi = size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (time(mid) < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * The messages indexed since the last segment was written. Guarded by
+     * the index.
+     */
+    private static class Buffer extends Docs {
+
+        final ArrayList<Message> messages = new ArrayList<>(SEGMENT_DOCS);
+        final HashMap<String, Postings> postings = new HashMap<>();
+
+        Buffer(long base) {
+            super(base);
+        }
+
+        void add(Message msg, Iterable<String> words) {
+            int doc = messages.size();
+            messages.add(msg);
+            for (String word : words) {
+                postings.computeIfAbsent(word, w -> new Postings()).add(doc);
+            }
+        }
+
+        int size() {
+            return messages.size();
+        }
+
+        long time(int doc) {
+            return messages.get(doc).time;
+        }
+
+        String room(int doc) {
+            return messages.get(doc).room;
+        }
+
+        String sender(int doc) {
+            return messages.get(doc).sender;
+        }
+
+        String target(int doc) {
+            return messages.get(doc).target;
+        }
+
+        String text(int doc) {
+            return (String) messages.get(doc).text;
+        }
+
+        int[] postings(String word) {
+            Postings p = postings.get(word);
+            return p == null ? null : p.decode();
+        }
+    }
+
+    /**
+     * Messages written out together, never changed afterwards. The words
+     * are sorted and the lists of all of them are kept end to end in one
+     * array, so a segment is a handful of objects however many words it
+     * holds. The level counts how many times its messages have been merged.
+     */
+    private static class Segment extends Docs {
+
+        final int level;
+        final long[] times;
+        final String[] rooms;
+        final String[] senders;
+        final String[] targets;
+        final String[] texts;
+        final String[] words;
+        final int[] counts;
+        final int[] offsets;
+        final byte[] data;
+
+        Segment(long base, int level, long[] times, String[] rooms, String[] senders, String[] targets,
+                String[] texts, Map<String, Postings> postings) {
+            super(base);
+            this.level = level;
+            this.times = times;
+            this.rooms = rooms;
+            this.senders = senders;
+            this.targets = targets;
+            this.texts = texts;
+            words = postings.keySet().toArray(new String[0]);
+            Arrays.sort(words);
+            counts = new int[words.length];
+            offsets = new int[words.length];
+            int length = 0;
+            for (String word : words) {
+                length += postings.get(word).length;
+            }
+            data = new byte[length];
+            int offset = 0;
+            for (int i = 0; i < words.length; i++) {
+                Postings p = postings.get(words[i]);
+                System.arraycopy(p.data, 0, data, offset, p.length);
+                counts[i] = p.count;
+                offsets[i] = offset;
+                offset += p.length;
+            }
+        }
+
+        int size() {
+            return times.length;
+        }
+
+        long time(int doc) {
+            return times[doc];
+        }
+
+        String room(int doc) {
+            return rooms[doc];
+        }
+
+        String sender(int doc) {
+            return senders[doc];
+        }
+
+        String target(int doc) {
+            return targets[doc];
+        }
+
+        String text(int doc) {
+            return texts[doc];
+        }
+
+        int[] postings(String word) {
+            int i = Arrays.binarySearch(words, word);
+            return i < 0 ? null : decode(data, offsets[i], counts[i]);
+        }
+    }
+
+    private final ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread indexer;
+
+    /**
+     * The segments, oldest first, and the buffer after them. The list is
+     * replaced rather than changed, only by the indexing thread, and both
+     * are guarded by the index.
+     */
+    private List<Segment> segments = Collections.emptyList();
+    private Buffer buffer = new Buffer(0);
+
+    /**
+     * The most messages kept, and the most put into one segment by merging.
+     */
+    private final int maxDocs;
+    private final int maxMergeDocs;
+
+    /**
+     * The time of the last message indexed. Messages are numbered in the
+     * order they were sent, so times never go backwards.
+     */
+    private long lastTime = 0;
+
+    /**
+     * Messages indexed, messages not indexed because the queue was full,
+     * and segments merged.
+     */
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+
+    private volatile boolean stopped = false;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Creates an empty index and starts its indexing thread.
+     *
+     * @param maxDocs the most messages to keep; the oldest are dropped a
+     * segment at a time.
+     */
+    public SearchIndex(int maxDocs) {
+        this.maxDocs = Math.max(maxDocs, SEGMENT_DOCS);
+        // at least one full merge of buffer-sized segments, or an index
+        // whose eighth is smaller than that would never merge at all
+        this.maxMergeDocs = Math.max(this.maxDocs / MERGE_FACTOR, SEGMENT_DOCS * MERGE_FACTOR);
+        indexer = new Thread(this::indexMessages, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Indexes a message sent to a room. Never blocks.
+     *
+     * @param room the room.
+     * @param sender the user that sent it.
+     * @param text the text, as a String or as UTF-8 bytes.
+     */
+    public void addRoomMessage(String room, String sender, Object text) {
+        offer(new Message(System.currentTimeMillis(), room, sender, null, text));
+    }
+
+    /**
+     * Indexes a private message. Never blocks.
+     *
+     * @param sender the user that sent it.
+     * @param target the user it was sent to.
+     * @param text the text, as a String or as UTF-8 bytes.
+     */
+    public void addPrivateMessage(String sender, String target, Object text) {
+        offer(new Message(System.currentTimeMillis(), null, sender, target, text));
+    }
+
+    private void offer(Message msg) {
+        if (stopped || msg.text == null) {
+            return;
+        }
+        if (!queue.offer(msg)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Finds the newest messages a user may see that hold every word of a
+     * query, narrowed down to a room and a time span if it asks.
+     *
+     * @param user the user searching, or null to only find room messages.
+     * @param query what to look for.
+     * @return the messages found, newest first; empty if the query has no
+     * words.
+     */
+    public ArrayList<SearchHit> search(String user, SearchQuery query) {
+        ArrayList<SearchHit> hits = new ArrayList<>();
+        LinkedHashSet<String> words = words(query.getText());
+        if (words.isEmpty()) {
+            return hits;
+        }
+        if (query.getRoom() != null) {
+            words.add(ROOM_WORD + query.getRoom());
+        }
+        String[] wanted = words.toArray(new String[0]);
+        int limit = query.getLimit() > 0 ? Math.min(query.getLimit(), MAX_RESULTS) : MAX_RESULTS;
+
+        List<Segment> searched;
+        synchronized (this) {
+            collect(buffer, user, wanted, query, hits, limit);
+            searched = segments;
+        }
+        for (int i = searched.size() - 1; i >= 0 && hits.size() < limit; i--) {
+            collect(searched.get(i), user, wanted, query, hits, limit);
+        }
+        return hits;
+    }
+
+    /**
+     * Adds the messages of one segment or the buffer that match, newest
+     * first, until there are enough.
+     */
+    private void collect(Docs docs, String user, String[] words, SearchQuery query,
+            ArrayList<SearchHit> hits, int limit) {
+        int size = docs.size();
+        if (size == 0) {
+            return;
+        }
+        int lo = 0;
+        int hi = size;
+        if (query.getFrom() > 0) {
+            if (docs.time(size - 1) < query.getFrom()) {
+                return;
+            }
+            lo = docs.firstAtOrAfter(query.getFrom());
+        }
+        if (query.getTo() > 0) {
+            if (docs.time(0) >= query.getTo()) {
+                return;
+            }
+            hi = docs.firstAtOrAfter(query.getTo());
+        }
+        if (lo >= hi) {
+            return;
+        }
+
+        // read the shortest list first, then keep what the others also hold
+        int[][] lists = new int[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            lists[i] = docs.postings(words[i]);
+            if (lists[i] == null) {
+                return;
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+        int[] found = lists[0];
+        int count = found.length;
+        for (int k = 1; k < lists.length && count > 0; k++) {
+            count = intersect(found, count, lists[k]);
+        }
+
+        for (int i = count - 1; i >= 0 && hits.size() < limit; i--) {
+            int doc = found[i];
+            if (doc >= hi) {
+                continue;
+            }
+            if (doc < lo) {
+                break;
+            }
+            String room = docs.room(doc);
+            if (room == null && (user == null
+                    || !user.equals(docs.sender(doc)) && !user.equals(docs.target(doc)))) {
+                continue; // a private message between other users
+            }
+            hits.add(new SearchHit(docs.time(doc), room, docs.sender(doc), docs.target(doc), docs.text(doc)));
+        }
+    }
+
+    /**
+     * Stops indexing. Messages already indexed can still be searched.
+     */
+    public void stop() {
+        stopped = true;
+        indexer.interrupt();
+    }
+
+    /**
+     * @return the number of messages indexed so far.
+     */
+    public long getIndexed() {
+        return indexed.sum();
+    }
+
+    /**
+     * @return the number of messages not indexed because the indexing
+     * thread fell behind.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of merges done.
+     */
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    /**
+     * @return the number of segments.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of messages that can be searched.
+     */
+    public synchronized long getSize() {
+        long size = buffer.size();
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the segments' lists of messages take.
+     */
+    public synchronized long getPostingsBytes() {
+        long bytes = 0;
+        for (Segment s : segments) {
+            bytes += s.data.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a one line summary of the index.
+     *
+     * @return the summary.
+     */
+    @Override
+    public String toString() {
+        return "search index: " + getSize() + " messages in " + getSegmentCount() + " segments, "
+                + getPostingsBytes() / 1024 + " KB of postings, indexed=" + getIndexed()
+                + " dropped=" + getDropped() + " merges=" + getMerges();
+    }
+
+// RUN METHOD -------------------------------------------------------
+    /**
+     * Indexes queued messages until the index is stopped. Not to be called.
+     */
+    private void indexMessages() {
+        while (!stopped) {
+            Message msg;
+            try {
+                msg = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (msg != null) {
+                index(msg);
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the buffer, and writes the buffer out when it is
+     * full. Only called by the indexing thread, and by benchmarks that have
+     * not started it.
+     */
+    void index(Message msg) {
+        if (msg.text instanceof byte[]) {
+            msg.text = new String((byte[]) msg.text, StandardCharsets.UTF_8);
+        }
+        msg.text = String.valueOf(msg.text);
+        LinkedHashSet<String> words = words((String) msg.text);
+        if (msg.room != null) {
+            words.add(ROOM_WORD + msg.room);
+        }
+        Buffer full = null;
+        synchronized (this) {
+            msg.time = lastTime = Math.max(lastTime, msg.time);
+            buffer.add(msg, words);
+            if (buffer.size() >= SEGMENT_DOCS) {
+                full = buffer;
+            }
+        }
+        indexed.increment();
+        if (full != null) {
+            flush(full);
+        }
+    }
+
+    /**
+     * Indexes a message sent to a room straight away, on the caller's
+     * thread. For benchmarks; the server uses addRoomMessage.
+     */
+    void indexRoomMessage(long time, String room, String sender, String text) {
+        index(new Message(time, room, sender, null, text));
+    }
+
+    /**
+     * Writes a full buffer out as a segment and starts a new one. Nothing
+     * else changes the buffer once it is full, so the segment is built
+     * without holding the lock.
+     */
+    private void flush(Buffer full) {
+        int size = full.size();
+        long[] times = new long[size];
+        String[] rooms = new String[size];
+        String[] senders = new String[size];
+        String[] targets = new String[size];
+        String[] texts = new String[size];
+        for (int i = 0; i < size; i++) {
+            Message m = full.messages.get(i);
+            times[i] = m.time;
+            rooms[i] = m.room;
+            senders[i] = m.sender;
+            targets[i] = m.target;
+            texts[i] = (String) m.text;
+        }
+        Segment segment = new Segment(full.base, 0, times, rooms, senders, targets, texts, full.postings);
+        synchronized (this) {
+            ArrayList<Segment> next = new ArrayList<>(segments);
+            next.add(segment);
+            segments = next;
+            buffer = new Buffer(full.base + size);
+        }
+        mergeSegments();
+        dropOldSegments();
+    }
+
+    /**
+     * Merges the newest segments while MERGE_FACTOR of them have the same
+     * level and together are not too big, like carrying in a sum. Only the
+     * indexing thread changes the segments, so they are merged without
+     * holding the lock, and searches go on reading the old ones meanwhile.
+     */
+    private void mergeSegments() {
+        while (true) {
+            List<Segment> current;
+            synchronized (this) {
+                current = segments;
+            }
+            int n = current.size();
+            if (n < MERGE_FACTOR) {
+                return;
+            }
+            List<Segment> tail = current.subList(n - MERGE_FACTOR, n);
+            int level = tail.get(0).level;
+            int size = 0;
+            for (Segment s : tail) {
+                if (s.level != level) {
+                    return;
+                }
+                size += s.size();
+            }
+            if (size > maxMergeDocs) {
+                return;
+            }
+            Segment merged = merge(tail, level + 1, size);
+            synchronized (this) {
+                ArrayList<Segment> next = new ArrayList<>(current.subList(0, n - MERGE_FACTOR));
+                next.add(merged);
+                segments = next;
+            }
+            merges.increment();
+        }
+    }
+
+    /**
+     * Builds one segment out of several that follow on from each other.
+     */
+    private static Segment merge(List<Segment> parts, int level, int size) {
+        long[] times = new long[size];
+        String[] rooms = new String[size];
+        String[] senders = new String[size];
+        String[] targets = new String[size];
+        String[] texts = new String[size];
+        HashMap<String, Postings> postings = new HashMap<>();
+        int offset = 0;
+        for (Segment s : parts) {
+            int n = s.size();
+            System.arraycopy(s.times, 0, times, offset, n);
+            System.arraycopy(s.rooms, 0, rooms, offset, n);
+            System.arraycopy(s.senders, 0, senders, offset, n);
+            System.arraycopy(s.targets, 0, targets, offset, n);
+            System.arraycopy(s.texts, 0, texts, offset, n);
+            for (int i = 0; i < s.words.length; i++) {
+                Postings p = postings.computeIfAbsent(s.words[i], w -> new Postings());
+                for (int doc : decode(s.data, s.offsets[i], s.counts[i])) {
+                    p.add(doc + offset);
+                }
+            }
+            offset += n;
+        }
+        return new Segment(parts.get(0).base, level, times, rooms, senders, targets, texts, postings);
+    }
+
+    /**
+     * Drops the oldest segments while the index holds more messages than it
+     * may.
+     */
+    private synchronized void dropOldSegments() {
+        long size = getSize();
+        int drop = 0;
+        while (drop < segments.size() - 1 && size > maxDocs) {
+            size -= segments.get(drop++).size();
+        }
+        if (drop > 0) {
+            segments = new ArrayList<>(segments.subList(drop, segments.size()));
+        }
+    }
+
+// CLASS METHODS ****************************************************
+    /**
+     * Splits text into the words it is indexed and searched by: runs of
+     * letters and digits, in lower case, each once.
+     */
+    static LinkedHashSet<String> words(String text) {
+        LinkedHashSet<String> words = new LinkedHashSet<>();
+        if (text == null) {
+            return words;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_WORD_LENGTH) {
+                    words.add(lower.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Reads a list of messages written by Postings.
+     */
+    private static int[] decode(byte[] data, int offset, int count) {
+        int[] docs = new int[count];
+        int doc = -1;
+        for (int i = 0; i < count; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            doc += gap;
+            docs[i] = doc;
+        }
+        return docs;
+    }
+
+    /**
+     * Keeps the first count messages of found that other also holds, in
+     * place.
+     *
+     * @return how many are left.
+     */
+    private static int intersect(int[] found, int count, int[] other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < other.length; i++) {
+            int doc = found[i];
+            while (j < other.length && other[j] < doc) {
+                j++;
+            }
+            if (j < other.length && other[j] == doc) {
+                found[kept++] = doc;
+            }
+        }
+        return kept;
+    }
+}
+// End of SearchIndex class
@@ -0,0 +1,50 @@
+import java.io.Serializable;
+
+/**
+ * What a "#search" looks for. Sent as the data of the command; the server
+ * answers with the newest messages holding every word of the text, as a
+ * list of SearchHits. The room and times narrow the search down, and are
+ * left out by passing null or 0.
+ */
+public class SearchQuery implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String text; //the words every message found must hold
+    private String room; //only messages sent to this room, or null for all
+    private long from; //only messages sent at or after this time, or 0
+    private long to; //only messages sent before this time, or 0
+    private int limit; //how many messages to return at most, or 0 for the server's limit
+
+    public SearchQuery(String text) {
+        this(text, null, 0, 0, 0);
+    }
+
+    public SearchQuery(String text, String room, long from, long to, int limit) {
+        this.text = text;
+        this.room = room;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * One address and port a server accepts clients on. A server can listen on
+ * several, for instance one per network interface, each with its own
+ * backlog and protocol version; the clients of all of them are connections
+ * of the one server, so they share its registry of users, its rooms and the
+ * threads and caches that serve them.
+ *
+ * Each listener has a thread of its own that accepts connections and hands
+ * them to the server. Listeners are made with AbstractServer.addListener,
+ * and opened, stopped and closed along with the server.
+ */
+public class ServerListener implements Runnable {
+// INSTANCE VARIABLES ***********************************************
+
+    private final AbstractServer server;
+
+    /**
+     * The address to listen on, or null for every interface.
+     */
+    private final InetAddress address;
+
+    /**
+     * The port to listen on, 0 for any free port.
+     */
+    private final int port;
+
+    /**
+     * The maximum number of clients waiting to be accepted.
+     */
+    private final int backlog;
+
+    /**
+     * The version of the protocol the clients of this listener speak.
+     */
+    private final int protocolVersion;
+
+    /**
+     * The server socket, kept from when it is opened until the listener is
+     * closed, so that listening can be stopped and started again.
+     */
+    private ServerSocket serverSocket = null;
+
+    /**
+     * The thread accepting connections, or null when not listening.
+     */
+    private volatile Thread connectionListener = null;
+
+    /**
+     * Set to make the listening thread stop.
+     */
+    private volatile boolean readyToStop = false;
+
+    /**
+     * How long the listening thread waits before accepting again after a
+     * connection could not be accepted.
+     */
+    private static final long ACCEPT_RETRY_DELAY = 100;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * @param server the server the clients are handed to.
+     * @param address the address to listen on, or null for every interface.
+     * @param port the port to listen on.
+     * @param backlog the maximum number of clients waiting to be accepted.
+     * @param protocolVersion the version of the protocol its clients speak.
+     */
+    ServerListener(AbstractServer server, InetAddress address, int port, int backlog,
+            int protocolVersion) {
+        this.server = server;
+        this.address = address;
+        this.port = port;
+        this.backlog = backlog;
+        this.protocolVersion = protocolVersion;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Opens the server socket if it is not open yet and starts the thread
+     * that accepts clients. Has no effect if already listening.
+     *
+     * @param timeout how long each accept waits before checking whether to
+     * stop, in ms.
+     * @exception IOException if the server socket cannot be created.
+     */
+    synchronized void listen(int timeout) throws IOException {
+        if (isListening()) {
+            return;
+        }
+        if (serverSocket == null) {
+            // opened through a channel so that the clients' sockets have
+            // channels too, which the connections write pooled buffers to
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                channel.bind(new InetSocketAddress(address, port), backlog);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            serverSocket = channel.socket();
+        }
+        serverSocket.setSoTimeout(timeout);
+        readyToStop = false;
+        connectionListener = new Thread(this, "listener " + this);
+        connectionListener.start();
+    }
+
+    /**
+     * Makes the listening thread stop accepting clients. The socket stays
+     * open, so waiting clients are accepted if listening starts again.
+     */
+    void stopListening() {
+        readyToStop = true;
+    }
+
+    /**
+     * Stops listening and closes the server socket, which wakes the
+     * listening thread so it stops at once. Has no effect if already
+     * closed.
+     *
+     * @exception IOException if an I/O error occurs while closing the socket.
+     */
+    synchronized void close() throws IOException {
+        readyToStop = true;
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return true if the listener is accepting clients.
+     */
+    public boolean isListening() {
+        return connectionListener != null;
+    }
+
+    /**
+     * @return the address listened on, or null for every interface.
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the port listened on; once open, the actual port if it was
+     * created with port 0.
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? port : serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the maximum number of clients waiting to be accepted.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return the version of the protocol the clients of this listener
+     * speak.
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the address and port, as address:port, with * for every
+     * interface.
+     */
+    @Override
+    public String toString() {
+        return (address == null ? "*" : address.getHostAddress()) + ":" + getPort();
+    }
+
+// RUN METHOD -------------------------------------------------------
+    /**
+     * Accepts clients until the listener is stopped, handing each to the
+     * server. Not to be called.
+     */
+    public void run() {
+        IOException failure = null;
+        try {
+            // Repeatedly waits for a new client connection, accepts it, and
+            // hands it to the server, which starts its thread
+            while (!readyToStop) {
+                ServerSocket socket = serverSocket;
+                if (socket == null) {
+                    break;
+                }
+                try {
+                    // Wait here for new connection attempts, or a timeout
+                    Socket clientSocket = socket.accept();
+                    server.connectionAccepted(clientSocket, this);
+                } catch (InterruptedIOException exception) {
+                    // This will be thrown when a timeout occurs.
+                    // The listener will continue if not ready to stop.
+                } catch (IOException exception) {
+                    if (readyToStop || socket.isClosed()) {
+                        throw exception;
+                    }
+                    // Failing to accept one connection, for instance for
+                    // running out of file descriptors, must not stop the
+                    // listener for good; wait a little for things to clear
+                    server.getMetrics().recordConnectionError();
+                    server.listeningException(exception);
+                    try {
+                        Thread.sleep(ACCEPT_RETRY_DELAY);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            if (!readyToStop) {
+                // Closing the socket must have thrown a SocketException
+                failure = exception;
+            }
+        } finally {
+            readyToStop = true;
+            connectionListener = null;
+            if (failure != null) {
+                server.listeningException(failure);
+            }
+            server.listenerStopped(this);
+        }
+    }
+}
+// End of ServerListener class
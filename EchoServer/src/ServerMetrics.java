@@ -0,0 +1,548 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters describing what the server has been doing. One instance is kept by
+ * every AbstractServer and is updated from the connection threads, so all
+ * counters are <code>LongAdder</code>s that never block the caller.
+ */
+public class ServerMetrics {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * Messages rejected because the client exceeded its message rate.
+     */
+    private final LongAdder throttledMessages = new LongAdder();
+
+    /**
+     * Uploads rejected because the client exceeded its upload byte rate.
+     */
+    private final LongAdder throttledUploads = new LongAdder();
+
+    /**
+     * Downloads rejected because the client exceeded its download byte rate.
+     */
+    private final LongAdder throttledDownloads = new LongAdder();
+
+    /**
+     * New connections turned away by admission control.
+     */
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    /**
+     * File tasks run by the I/O executor, the total time they spent waiting
+     * in its queue and running, and the tasks refused because the queue was
+     * full.
+     */
+    private final LongAdder ioTasks = new LongAdder();
+    private final LongAdder ioWaitNanos = new LongAdder();
+    private final LongAdder ioRunNanos = new LongAdder();
+    private final LongAdder ioRejected = new LongAdder();
+
+    /**
+     * Connections closed because the client went silent for longer than the
+     * idle timeout.
+     */
+    private final LongAdder idleReaped = new LongAdder();
+
+    /**
+     * Messages and file tasks dropped because a graceful shutdown ran out of
+     * time.
+     */
+    private final LongAdder drainDropped = new LongAdder();
+
+    /**
+     * Times a room member fell so far behind that it missed messages and had
+     * to be resynced.
+     */
+    private final LongAdder broadcastLapped = new LongAdder();
+
+    /**
+     * Downloads served from the download cache, downloads read from disk,
+     * and files evicted from the cache to stay within its memory budget.
+     */
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+
+    /**
+     * Conditional downloads answered with "not modified" because the
+     * client's copy was current.
+     */
+    private final LongAdder notModified = new LongAdder();
+
+    /**
+     * Connections accepted and connections whose threads have finished, so
+     * that a connection that never goes away shows up as the difference
+     * staying up.
+     */
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+
+    /**
+     * Connections that ended with an error rather than the client closing
+     * its end, including clients that never finished connecting and
+     * connections that could not be accepted.
+     */
+    private final LongAdder connectionErrors = new LongAdder();
+
+    /**
+     * Messages and file tasks whose handling threw, leaving the client
+     * without its answer.
+     */
+    private final LongAdder handlerErrors = new LongAdder();
+
+    /**
+     * Messages that could not be sent to a client and were given up on.
+     */
+    private final LongAdder sendFailures = new LongAdder();
+
+    /**
+     * Clients dropped for not reading what they were sent.
+     */
+    private final LongAdder slowConsumers = new LongAdder();
+
+    /**
+     * Searches answered, and the total time they took.
+     */
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+
+    /**
+     * Batches of commands run in one dispatch, and the commands they held.
+     */
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedCommands = new LongAdder();
+
+    /**
+     * Reports the number of file tasks waiting in the I/O executor's queue.
+     */
+    private volatile IntSupplier ioQueueDepth = () -> 0;
+
+    /**
+     * The pool the connections and file transfers borrow buffers from.
+     */
+    private final BufferPool bufferPool = BufferPool.shared();
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Records that a request was throttled.
+     *
+     * @param kind one of "messages", "upload" or "download".
+     */
+    public void recordThrottled(String kind) {
+        switch (kind) {
+            case "upload":
+                throttledUploads.increment();
+                break;
+            case "download":
+                throttledDownloads.increment();
+                break;
+            default:
+                throttledMessages.increment();
+        }
+    }
+
+    /**
+     * Records that a new connection was turned away by admission control.
+     */
+    public void recordRejectedConnection() {
+        rejectedConnections.increment();
+    }
+
+    /**
+     * Records a file task run by the I/O executor.
+     *
+     * @param waitNanos the time the task spent in the queue.
+     * @param runNanos the time the task took to run.
+     */
+    public void recordIoTask(long waitNanos, long runNanos) {
+        ioTasks.increment();
+        ioWaitNanos.add(waitNanos);
+        ioRunNanos.add(runNanos);
+    }
+
+    /**
+     * Records that the I/O executor refused a task because its queue was
+     * full.
+     */
+    public void recordIoRejected() {
+        ioRejected.increment();
+    }
+
+    /**
+     * Records a connection closed for being idle.
+     */
+    public void recordIdleReaped() {
+        idleReaped.increment();
+    }
+
+    /**
+     * Records the work a graceful shutdown could not finish before its
+     * deadline.
+     *
+     * @param dropped the messages and tasks that were dropped or cut short.
+     */
+    public void recordDrainDropped(int dropped) {
+        drainDropped.add(dropped);
+    }
+
+    /**
+     * Records a room member that missed messages for falling behind.
+     */
+    public void recordBroadcastLapped() {
+        broadcastLapped.increment();
+    }
+
+    /**
+     * Records a download served from the download cache.
+     */
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    /**
+     * Records a download that had to be read from disk.
+     */
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * Records a file evicted from the download cache.
+     */
+    public void recordCacheEviction() {
+        cacheEvictions.increment();
+    }
+
+    /**
+     * Records a conditional download that found the client's copy current.
+     */
+    public void recordNotModified() {
+        notModified.increment();
+    }
+
+    /**
+     * Records a connection accepted.
+     */
+    public void recordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    /**
+     * Records a connection whose thread has finished.
+     */
+    public void recordConnectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * Records a connection that failed rather than being closed by the
+     * client.
+     */
+    public void recordConnectionError() {
+        connectionErrors.increment();
+    }
+
+    /**
+     * Records a message or file task whose handling threw.
+     */
+    public void recordHandlerError() {
+        handlerErrors.increment();
+    }
+
+    /**
+     * Records a message that could not be sent to a client.
+     */
+    public void recordSendFailure() {
+        sendFailures.increment();
+    }
+
+    /**
+     * Records a client dropped for not reading what it was sent.
+     */
+    public void recordSlowConsumer() {
+        slowConsumers.increment();
+    }
+
+    /**
+     * Records a search answered.
+     *
+     * @param nanos how long the search took.
+     */
+    public void recordSearch(long nanos) {
+        searches.increment();
+        searchNanos.add(nanos);
+    }
+
+    /**
+     * Records a batch of commands run in one dispatch.
+     *
+     * @param commands the number of commands in the batch.
+     */
+    public void recordBatch(int commands) {
+        batches.increment();
+        batchedCommands.add(commands);
+    }
+
+    /**
+     * Sets where the I/O executor's queue depth is read from.
+     *
+     * @param gauge reports the number of queued file tasks.
+     */
+    public void setIoQueueDepthGauge(IntSupplier gauge) {
+        this.ioQueueDepth = gauge;
+    }
+
+// ACCESSING METHODS ------------------------------------------------
+    /**
+     * @return the number of messages rejected by the message rate limit.
+     */
+    public long getThrottledMessages() {
+        return throttledMessages.sum();
+    }
+
+    /**
+     * @return the number of uploads rejected by the upload rate limit.
+     */
+    public long getThrottledUploads() {
+        return throttledUploads.sum();
+    }
+
+    /**
+     * @return the number of downloads rejected by the download rate limit.
+     */
+    public long getThrottledDownloads() {
+        return throttledDownloads.sum();
+    }
+
+    /**
+     * @return the number of connections turned away by admission control.
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    /**
+     * @return the number of file tasks run by the I/O executor.
+     */
+    public long getIoTasks() {
+        return ioTasks.sum();
+    }
+
+    /**
+     * @return the average time a file task waited in the queue, in
+     * milliseconds.
+     */
+    public double getIoAverageWaitMillis() {
+        long tasks = ioTasks.sum();
+        return tasks == 0 ? 0 : ioWaitNanos.sum() / 1e6 / tasks;
+    }
+
+    /**
+     * @return the average time a file task took to run, in milliseconds.
+     */
+    public double getIoAverageRunMillis() {
+        long tasks = ioTasks.sum();
+        return tasks == 0 ? 0 : ioRunNanos.sum() / 1e6 / tasks;
+    }
+
+    /**
+     * @return the number of file tasks refused because the queue was full.
+     */
+    public long getIoRejected() {
+        return ioRejected.sum();
+    }
+
+    /**
+     * @return the number of file tasks currently waiting in the queue.
+     */
+    public int getIoQueueDepth() {
+        return ioQueueDepth.getAsInt();
+    }
+
+    /**
+     * @return the number of connections closed for being idle.
+     */
+    public long getIdleReaped() {
+        return idleReaped.sum();
+    }
+
+    /**
+     * @return the number of messages and tasks dropped by graceful
+     * shutdowns.
+     */
+    public long getDrainDropped() {
+        return drainDropped.sum();
+    }
+
+    /**
+     * @return the number of times a room member missed messages for falling
+     * behind.
+     */
+    public long getBroadcastLapped() {
+        return broadcastLapped.sum();
+    }
+
+    /**
+     * @return the number of downloads served from the download cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the number of downloads read from disk.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return the number of files evicted from the download cache.
+     */
+    public long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    /**
+     * @return the number of conditional downloads answered with "not
+     * modified".
+     */
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    /**
+     * @return the number of connections accepted and not yet finished.
+     */
+    public long getOpenConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    /**
+     * @return the number of connections accepted.
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    /**
+     * @return the number of connections that failed.
+     */
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    /**
+     * @return the number of messages and file tasks whose handling threw.
+     */
+    public long getHandlerErrors() {
+        return handlerErrors.sum();
+    }
+
+    /**
+     * @return the number of messages that could not be sent.
+     */
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    /**
+     * @return the number of clients dropped for not reading.
+     */
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    /**
+     * @return the number of searches answered.
+     */
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    /**
+     * @return the average time a search took in milliseconds, or 0 if there
+     * have been none.
+     */
+    public double getSearchAverageMillis() {
+        long n = searches.sum();
+        return n == 0 ? 0 : searchNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * @return the share of buffers lent by the buffer pool without
+     * allocating, between 0 and 1.
+     */
+    public double getBufferPoolHitRatio() {
+        return bufferPool.getHitRatio();
+    }
+
+    /**
+     * @return the number of pooled buffers lent and not given back.
+     */
+    public long getBuffersOutstanding() {
+        return bufferPool.getOutstanding();
+    }
+
+    /**
+     * @return the number of batches of commands run.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return the number of commands run as part of a batch.
+     */
+    public long getBatchedCommands() {
+        return batchedCommands.sum();
+    }
+
+    /**
+     * @return the fraction of downloads served from the download cache, or 0
+     * if there have been no downloads.
+     */
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns a one line summary of all counters.
+     *
+     * @return the summary.
+     */
+    @Override
+    public String toString() {
+        return "connections open=" + getOpenConnections()
+                + " accepted=" + getConnectionsOpened()
+                + " failed=" + getConnectionErrors()
+                + ", handler errors=" + getHandlerErrors()
+                + ", failed sends=" + getSendFailures()
+                + ", slow consumers=" + getSlowConsumers()
+                + ", throttled messages=" + getThrottledMessages()
+                + " uploads=" + getThrottledUploads()
+                + " downloads=" + getThrottledDownloads()
+                + ", rejected connections=" + getRejectedConnections()
+                + ", idle reaped=" + getIdleReaped()
+                + ", lapped=" + getBroadcastLapped()
+                + ", io tasks=" + getIoTasks()
+                + " queued=" + getIoQueueDepth()
+                + " rejected=" + getIoRejected()
+                + String.format(" avg wait=%.2fms avg run=%.2fms",
+                        getIoAverageWaitMillis(), getIoAverageRunMillis())
+                + String.format(", cache hit ratio=%.2f", getCacheHitRatio())
+                + " evictions=" + getCacheEvictions()
+                + " not modified=" + getNotModified()
+                + ", searches=" + getSearches()
+                + String.format(" avg=%.2fms", getSearchAverageMillis())
+                + ", batches=" + getBatches() + " commands=" + getBatchedCommands()
+                + String.format(", buffer pool hit ratio=%.2f", getBufferPoolHitRatio())
+                + " outstanding=" + getBuffersOutstanding()
+                + ", dropped at shutdown=" + getDrainDropped();
+    }
+}
+// End of ServerMetrics class
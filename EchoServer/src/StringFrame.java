@@ -0,0 +1,282 @@
+import java.io.ObjectStreamConstants;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A chat line serialized once, byte for byte as ObjectOutputStream writes a
+ * String, so that it can be sent to every member of a room without being
+ * built or serialized again for each of them. The line is the sender's name
+ * and ": ", encoded once when the name is set, followed by the text of the
+ * message.
+ *
+ * The text can be given as a String, or as the UTF-8 bytes a client sent in
+ * a RelayEnvelope, which are copied across into modified UTF-8 without
+ * being decoded.
+ *
+ * The buffer is reused from line to line and only ever grows, so once it
+ * has reached the longest line seen, framing a line allocates nothing. The
+ * line as a String is only built if something asks for it, such as a
+ * session keeping it for replay.
+ *
+ * Not thread safe; the server only fills frames while holding its lock.
+ * Frames in a BroadcastRing are read by the broadcast writers while the
+ * server may fill them again, so each writer copies a line into a frame of
+ * its own with copyFrom before sending it.
+ */
+public class StringFrame {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The longest string ObjectOutputStream writes as a short string, whose
+     * length fits in two bytes.
+     */
+    private static final int MAX_SHORT_STRING = 0xFFFF;
+
+    /**
+     * The serialized line: TC_STRING, the two byte length, then the line in
+     * modified UTF-8.
+     */
+    private byte[] buffer;
+    private int length = 0;
+
+    /**
+     * The parts of the current line, and the line itself once it has been
+     * asked for.
+     */
+    private String sender;
+    private String text;
+    private byte[] utf8; //the text in UTF-8, if it was given that way
+    private String line;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs a frame with room for a typical line.
+     */
+    public StringFrame() {
+        this.buffer = new byte[256];
+    }
+
+// CLASS METHODS ****************************************************
+    /**
+     * Encodes a string in the modified UTF-8 used by object streams. Used
+     * for sender prefixes, which are encoded once and then framed many
+     * times.
+     *
+     * @param s the string to encode.
+     * @return the encoded bytes, without a length.
+     */
+    public static byte[] encode(String s) {
+        byte[] bytes = new byte[utfLength(s)];
+        encode(s, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes a string takes in modified UTF-8.
+     */
+    private static int utfLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                len++;
+            } else if (c <= 0x07FF) {
+                len += 2;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Writes a string in modified UTF-8 into a buffer that has room for it.
+     *
+     * @return the position after the last byte written.
+     */
+    private static int encode(String s, byte[] dest, int pos) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                dest[pos++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                dest[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                dest[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                dest[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                dest[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dest[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the number of bytes UTF-8 text takes in modified UTF-8, which
+     * is the same but for NUL, written as two bytes. Only characters of up
+     * to three bytes are taken; text with anything else, or that is not
+     * well formed, is decoded instead.
+     *
+     * @return the length, or -1 if the bytes cannot be copied across.
+     */
+    private static int utfLength(byte[] utf8) {
+        int len = 0;
+        int i = 0;
+        while (i < utf8.length) {
+            int b = utf8[i] & 0xFF;
+            if (b < 0x80) {
+                len += b == 0 ? 2 : 1;
+                i++;
+            } else if (b >= 0xC2 && b <= 0xDF && i + 1 < utf8.length && isContinuation(utf8[i + 1])) {
+                len += 2;
+                i += 2;
+            } else if (b >= 0xE0 && b <= 0xEF && i + 2 < utf8.length
+                    && isContinuation(utf8[i + 1]) && isContinuation(utf8[i + 2])) {
+                int second = utf8[i + 1] & 0xFF;
+                if ((b == 0xE0 && second < 0xA0) || (b == 0xED && second > 0x9F)) {
+                    return -1; // overlong, or a surrogate
+                }
+                len += 3;
+                i += 3;
+            } else {
+                return -1; // four bytes, or not UTF-8
+            }
+        }
+        return len;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Frames a new line, replacing the previous one.
+     *
+     * @param sender the sender's name.
+     * @param encodedPrefix the sender's name and ": ", as returned by encode.
+     * @param text the text of the message.
+     * @return true if the line was framed, false if it is too long to be
+     * sent as a short string and has to be sent the ordinary way.
+     */
+    public boolean set(String sender, byte[] encodedPrefix, String text) {
+        int utfLength = encodedPrefix.length + utfLength(text);
+        if (!start(utfLength)) {
+            return false;
+        }
+        System.arraycopy(encodedPrefix, 0, buffer, 3, encodedPrefix.length);
+        encode(text, buffer, 3 + encodedPrefix.length);
+
+        this.sender = sender;
+        this.text = text;
+        this.utf8 = null;
+        this.line = null;
+        return true;
+    }
+
+    /**
+     * Frames a new line whose text is in UTF-8, replacing the previous one.
+     * The text is copied across as it is, without building a String, unless
+     * it holds characters of four bytes or is not well formed UTF-8.
+     *
+     * @param sender the sender's name.
+     * @param encodedPrefix the sender's name and ": ", as returned by encode.
+     * @param utf8 the text of the message in UTF-8, which must not change
+     * afterwards.
+     * @return true if the line was framed, false if it is too long to be
+     * sent as a short string and has to be sent the ordinary way.
+     */
+    public boolean set(String sender, byte[] encodedPrefix, byte[] utf8) {
+        int textLength = utfLength(utf8);
+        if (textLength < 0) {
+            return set(sender, encodedPrefix, new String(utf8, StandardCharsets.UTF_8));
+        }
+        if (!start(encodedPrefix.length + textLength)) {
+            return false;
+        }
+        System.arraycopy(encodedPrefix, 0, buffer, 3, encodedPrefix.length);
+        int pos = 3 + encodedPrefix.length;
+        for (byte b : utf8) {
+            if (b == 0) {
+                buffer[pos++] = (byte) 0xC0;
+                buffer[pos++] = (byte) 0x80;
+            } else {
+                buffer[pos++] = b;
+            }
+        }
+
+        this.sender = sender;
+        this.text = null;
+        this.utf8 = utf8;
+        this.line = null;
+        return true;
+    }
+
+    /**
+     * Makes room for a line and writes the string's header.
+     *
+     * @param utfLength the length of the line in modified UTF-8.
+     * @return false if the line is too long for a short string.
+     */
+    private boolean start(int utfLength) {
+        if (utfLength > MAX_SHORT_STRING) {
+            return false;
+        }
+        int size = 3 + utfLength;
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+        }
+        buffer[0] = ObjectStreamConstants.TC_STRING;
+        buffer[1] = (byte) (utfLength >>> 8);
+        buffer[2] = (byte) utfLength;
+        length = size;
+        return true;
+    }
+
+    /**
+     * Makes this frame hold the line another frame holds, copied into this
+     * frame's buffer, which grows if it has to. If the other frame is being
+     * filled meanwhile the copy may be torn, and must be thrown away; the
+     * broadcast writers check for that with BroadcastRing.isAvailable.
+     *
+     * @param other the frame to copy.
+     */
+    public void copyFrom(StringFrame other) {
+        byte[] from = other.buffer;
+        int n = Math.min(other.length, from.length);
+        if (buffer.length < n) {
+            buffer = new byte[Math.max(n, buffer.length * 2)];
+        }
+        System.arraycopy(from, 0, buffer, 0, n);
+        length = n;
+        sender = other.sender;
+        text = other.text;
+        utf8 = other.utf8;
+        line = other.line;
+    }
+
+    /**
+     * @return the buffer holding the serialized line. Only the first
+     * getLength() bytes are part of it.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes in the serialized line.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the line as a String, built the first time it is asked for.
+     */
+    public String getString() {
+        if (line == null) {
+            line = sender + ": " + (text != null ? text : new String(utf8, StandardCharsets.UTF_8));
+        }
+        return line;
+    }
+}
+// End of StringFrame class
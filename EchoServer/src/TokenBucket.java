@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket used to limit how quickly a single connection may
+ * send messages or move bytes. Instead of storing a token count and a refill
+ * time, the bucket stores the time at which it will next be full again, so
+ * taking tokens is a single compare-and-set on one <code>AtomicLong</code>.
+ *
+ * A request for more tokens than the bucket holds is granted once the bucket
+ * is full and puts the bucket into debt, so large file transfers are still
+ * possible but the following transfers have to wait for the debt to drain.
+ */
+public class TokenBucket {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The time in nanoseconds it takes to refill a single token.
+     */
+    private final long nanosPerToken;
+
+    /**
+     * The maximum number of tokens the bucket can hold.
+     */
+    private final long capacity;
+
+    /**
+     * The time in nanoseconds it takes to refill the whole bucket.
+     */
+    private final long burstNanos;
+
+    /**
+     * The time (as returned by System.nanoTime) at which the bucket would be
+     * full if nothing else is taken from it. A value in the past means that
+     * the bucket is full.
+     */
+    private final AtomicLong fullAt;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs a full token bucket.
+     *
+     * @param perSecond the number of tokens added every second.
+     * @param capacity the maximum number of tokens the bucket can hold.
+     */
+    public TokenBucket(double perSecond, long capacity) {
+        if (perSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("rate and capacity must be positive");
+        }
+        this.nanosPerToken = Math.max(1L, (long) (1_000_000_000L / perSecond));
+        this.capacity = capacity;
+        this.burstNanos = nanosPerToken * capacity;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Tries to take tokens from the bucket without blocking.
+     *
+     * @param tokens the number of tokens wanted.
+     * @return 0 if the tokens were taken, otherwise the number of milliseconds
+     * to wait before the same request would succeed.
+     */
+    public long tryAcquire(long tokens) {
+        long needed = Math.min(tokens, capacity) * nanosPerToken;
+        long cost = tokens * nanosPerToken;
+
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long start = current - now > 0 ? current : now;
+
+            long excess = start + needed - now - burstNanos;
+            if (excess > 0) {
+                return Math.max(1L, excess / 1_000_000L);
+            }
+            if (fullAt.compareAndSet(current, start + cost)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return the number of tokens added every second.
+     */
+    public double getRate() {
+        return 1_000_000_000.0 / nanosPerToken;
+    }
+
+    /**
+     * @return the maximum number of tokens the bucket can hold.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+}
+// End of TokenBucket class
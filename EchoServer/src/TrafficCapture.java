@@ -0,0 +1,261 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records what clients send to a server, so that the same load can later be
+ * played back against another build with TrafficReplay. Every connection,
+ * message and disconnection is recorded with the connection it belongs to
+ * and the time since the capture started.
+ *
+ * The threads handling clients only put a record on a bounded queue and
+ * never wait; a thread of the capture's own writes the records out. If the
+ * queue is full the record is dropped and counted instead, so a capture can
+ * never slow the server down.
+ *
+ * The file starts with MAGIC and VERSION, followed by one record after
+ * another: the kind of record as a byte, the time in microseconds and the
+ * connection number as variable length integers, and for a message the
+ * message itself. Everything is written to one object stream, reset every
+ * so often, so the classes of repeated messages are only described once in
+ * a while.
+ */
+public class TrafficCapture {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * Identifies a capture file and its format.
+     */
+    public static final int MAGIC = 0x45434150; // "ECAP"
+    public static final int VERSION = 1;
+
+    /**
+     * The kinds of record.
+     */
+    public static final byte CONNECT = 1;
+    public static final byte MESSAGE = 2;
+    public static final byte DISCONNECT = 3;
+    static final byte END = 0;
+
+    /**
+     * How many records may wait for the writer, and how many are written
+     * between resets of the object stream.
+     */
+    public static final int QUEUE_SIZE = 65536;
+    private static final int RESET_RECORDS = 1000;
+
+    /**
+     * A record waiting to be written.
+     */
+    private static class Record {
+
+        final byte kind;
+        final int connection;
+        final long nanos;
+        final Object msg;
+
+        Record(byte kind, int connection, long nanos, Object msg) {
+            this.kind = kind;
+            this.connection = connection;
+            this.nanos = nanos;
+            this.msg = msg;
+        }
+    }
+
+    private final File file;
+    private final ObjectOutputStream out;
+    private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    private final long start = System.nanoTime();
+
+    /**
+     * The number given to each connection seen so far, and the last number
+     * given out.
+     */
+    private final ConcurrentHashMap<ConnectionToClient, Integer> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger lastConnection = new AtomicInteger();
+
+    /**
+     * Records written, and records dropped because the queue was full.
+     */
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean stopped = false;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Creates the capture file and starts recording.
+     *
+     * @param file the file to write, replaced if it exists.
+     * @exception IOException if the file cannot be created.
+     */
+    public TrafficCapture(File file) throws IOException {
+        this.file = file;
+        this.out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writer = new Thread(this::writeRecords, "traffic-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Records a message from a client. A connection not seen before is
+     * recorded as connecting first. Never blocks.
+     *
+     * @param client the client that sent it.
+     * @param msg the message.
+     */
+    public void message(ConnectionToClient client, Object msg) {
+        if (stopped) {
+            return;
+        }
+        long now = System.nanoTime();
+        Integer id = connections.get(client);
+        if (id == null) {
+            id = lastConnection.incrementAndGet();
+            connections.put(client, id);
+            offer(new Record(CONNECT, id, now, null));
+        }
+        offer(new Record(MESSAGE, id, now, msg));
+    }
+
+    /**
+     * Records a client going away. Never blocks.
+     *
+     * @param client the client.
+     */
+    public void disconnected(ConnectionToClient client) {
+        Integer id = connections.remove(client);
+        if (id != null && !stopped) {
+            offer(new Record(DISCONNECT, id, System.nanoTime(), null));
+        }
+    }
+
+    /**
+     * Stops recording, writes out what is queued and closes the file.
+     */
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the file being written.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of records written so far.
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * @return the number of records dropped because the writer fell behind.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void offer(Record record) {
+        if (!queue.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+// RUN METHOD -------------------------------------------------------
+    /**
+     * Writes records until the capture is stopped, then writes what is left
+     * and closes the file. Not to be called.
+     */
+    private void writeRecords() {
+        try {
+            int sinceReset = 0;
+            while (true) {
+                Record record = queue.poll();
+                if (record == null) {
+                    out.flush();
+                    if (stopped) {
+                        break;
+                    }
+                    try {
+                        record = queue.poll(100, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        continue; // stopped, write what is left
+                    }
+                    if (record == null) {
+                        continue;
+                    }
+                }
+                out.writeByte(record.kind);
+                writeVarLong(out, (record.nanos - start) / 1000);
+                writeVarLong(out, record.connection);
+                if (record.kind == MESSAGE) {
+                    out.writeObject(record.msg);
+                }
+                written.increment();
+                if (++sinceReset >= RESET_RECORDS) {
+                    out.reset();
+                    sinceReset = 0;
+                }
+            }
+            out.writeByte(END);
+            out.close();
+        } catch (IOException e) {
+            stopped = true;
+            System.out.println("Traffic capture to " + file + " failed: " + e.getMessage());
+        }
+    }
+
+// CLASS METHODS ****************************************************
+    /**
+     * Writes a number that is not negative in as few bytes as it needs,
+     * seven bits at a time.
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by writeVarLong.
+     */
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed number in capture");
+    }
+}
+// End of TrafficCapture class
@@ -0,0 +1,334 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a file recorded by TrafficCapture back against a running server,
+ * to see how a build copes with traffic seen before. Every connection in the
+ * capture gets a connection of its own, opened, written to and closed in
+ * the order and at the times recorded, or that many times faster.
+ * Everything is sent from one thread, so messages from different
+ * connections reach the server in the same order every time.
+ *
+ * Reports how many messages were sent and received and how fast, how long
+ * requests carrying a request ID took to be answered, and how far sending
+ * fell behind the recorded times, which grows when the server stops reading
+ * fast enough to keep up.
+ *
+ * Usage: java TrafficReplay capture-file [host] [port] [speed]. A speed of
+ * 1 keeps the recorded times, 10 plays ten times faster, and 0 sends
+ * everything as fast as possible.
+ */
+public class TrafficReplay {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * How long to wait for outstanding replies once everything is sent.
+     */
+    private static final long REPLY_WAIT = 5000;
+
+    /**
+     * A connection being replayed.
+     */
+    private class Connection {
+
+        final Socket socket;
+        final ObjectOutputStream output;
+        final Thread reader;
+
+        /**
+         * When each request still waiting for a reply was sent, by request
+         * ID.
+         */
+        final ConcurrentHashMap<Long, Long> pending = new ConcurrentHashMap<>();
+
+        /**
+         * Set when the capture has the client leave. The connection stays
+         * open until the replies it is owed arrive, so that slow replies are
+         * measured rather than lost.
+         */
+        volatile boolean leaving = false;
+
+        Connection(int id) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            // the server opens its input first, so the output goes first here
+            output = new ObjectOutputStream(socket.getOutputStream());
+            output.flush();
+            reader = new Thread(this::read, "replay-" + id);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(Object msg) throws IOException {
+            long requestId = requestIdOf(msg);
+            if (requestId != 0) {
+                pending.put(requestId, System.nanoTime());
+                requests.increment();
+            }
+            output.writeObject(msg);
+            output.reset();
+            output.flush();
+            sent.increment();
+        }
+
+        void read() {
+            try {
+                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+                while (true) {
+                    Object msg = input.readObject();
+                    long now = System.nanoTime();
+                    received.increment();
+                    long requestId = requestIdOf(msg);
+                    if (requestId != 0) {
+                        Long sentAt = pending.remove(requestId);
+                        if (sentAt != null) {
+                            latencies.add(now - sentAt);
+                        }
+                        if (leaving && pending.isEmpty()) {
+                            close();
+                        }
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // closed, by us or by the server
+            }
+        }
+
+        void leave() {
+            leaving = true;
+            if (pending.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * A growing list of times in nanoseconds.
+     */
+    private static class Samples {
+
+        private long[] values = new long[1024];
+        private int count = 0;
+
+        synchronized void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        synchronized String summary() {
+            if (count == 0) {
+                return "none";
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return "p50=" + millis(sorted, 0.50) + " p90=" + millis(sorted, 0.90)
+                    + " p99=" + millis(sorted, 0.99) + " max=" + millis(sorted, 1.0) + " ms";
+        }
+
+        private static String millis(long[] sorted, double quantile) {
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+            return String.format("%.2f", sorted[Math.max(0, index)] / 1e6);
+        }
+
+        synchronized int size() {
+            return count;
+        }
+    }
+
+    private final File file;
+    private final String host;
+    private final int port;
+    private final double speed;
+
+    /**
+     * The connections open, by their number in the capture. Only used by
+     * the thread replaying.
+     */
+    private final Map<Integer, Connection> connections = new HashMap<>();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final Samples latencies = new Samples();
+    private final Samples lag = new Samples();
+    private int opened = 0;
+    private int failed = 0;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * @param file the capture to play.
+     * @param host the server to play it to.
+     * @param port the server's port.
+     * @param speed how many times faster than recorded to play, or 0 for as
+     * fast as possible.
+     */
+    public TrafficReplay(File file, String host, int port, double speed) {
+        this.file = file;
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * Plays the whole capture, waits a while for outstanding replies and
+     * prints a report.
+     *
+     * @exception IOException if the capture cannot be read.
+     */
+    public void replay() throws IOException {
+        long start;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != TrafficCapture.MAGIC || in.readInt() != TrafficCapture.VERSION) {
+                throw new IOException(file + " is not a capture this version can play");
+            }
+            start = System.nanoTime();
+            while (true) {
+                byte kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException e) {
+                    break; // capture cut short, play what there was
+                }
+                if (kind == TrafficCapture.END) {
+                    break;
+                }
+                long micros = TrafficCapture.readVarLong(in);
+                int id = (int) TrafficCapture.readVarLong(in);
+                Object msg = null;
+                if (kind == TrafficCapture.MESSAGE) {
+                    try {
+                        msg = in.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("capture holds an unknown class: " + e.getMessage());
+                    }
+                }
+                waitUntil(start, micros);
+                play(kind, id, msg);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long deadline = System.currentTimeMillis() + REPLY_WAIT;
+        while (latencies.size() < requests.sum() && System.currentTimeMillis() < deadline
+                && connections.values().stream().anyMatch(c -> !c.pending.isEmpty() && !c.socket.isClosed())) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        for (Connection c : connections.values()) {
+            c.close();
+        }
+        report(elapsed);
+    }
+
+    /**
+     * Waits for the time a record is due to be played, and notes how late
+     * it was played.
+     */
+    private void waitUntil(long start, long micros) {
+        if (speed <= 0) {
+            return;
+        }
+        long due = start + (long) (micros * 1000 / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        lag.add(-wait);
+    }
+
+    private void play(byte kind, int id, Object msg) {
+        Connection c = connections.get(id);
+        try {
+            if (kind == TrafficCapture.DISCONNECT) {
+                if (c != null) {
+                    c.leave();
+                }
+                return;
+            }
+            if (c == null) {
+                c = new Connection(id);
+                connections.put(id, c);
+                opened++;
+            }
+            if (kind == TrafficCapture.MESSAGE && !c.leaving && !c.socket.isClosed()) {
+                c.send(msg);
+            }
+        } catch (IOException e) {
+            // the server refused or dropped the connection; keep playing the others
+            if (c == null) {
+                failed++;
+            } else {
+                c.close();
+            }
+        }
+    }
+
+    private void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println("Replayed " + file + " to " + host + ":" + port
+                + (speed > 0 ? " at " + speed + "x" : " as fast as possible"));
+        System.out.println("  connections: " + opened + " opened, " + failed + " failed");
+        System.out.println(String.format("  sent: %d messages in %.2f s (%.0f/s)",
+                sent.sum(), seconds, sent.sum() / Math.max(seconds, 1e-9)));
+        System.out.println(String.format("  received: %d messages (%.0f/s)",
+                received.sum(), received.sum() / Math.max(seconds, 1e-9)));
+        System.out.println("  replies: " + latencies.size() + " of " + requests.sum() + " requests, "
+                + latencies.summary());
+        if (speed > 0) {
+            System.out.println("  behind schedule: " + lag.summary());
+        }
+    }
+
+// CLASS METHODS ****************************************************
+    /**
+     * @return the request ID a message carries, or 0.
+     */
+    private static long requestIdOf(Object msg) {
+        if (msg instanceof Envelope) {
+            return ((Envelope) msg).getRequestId();
+        }
+        if (msg instanceof FileChunk) {
+            return ((FileChunk) msg).getRequestId();
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java TrafficReplay capture-file [host] [port] [speed]");
+            return;
+        }
+        String host = args.length > 1 ? args[1] : "localhost";
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : EchoServer.DEFAULT_PORT;
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        try {
+            new TrafficReplay(new File(args[0]), host, port, speed).replay();
+        } catch (IOException e) {
+            System.out.println("ERROR - " + e.getMessage());
+        }
+    }
+}
+// End of TrafficReplay class
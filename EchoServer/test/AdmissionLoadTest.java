@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that admission control protects the clients it lets in when more
+ * clients arrive than the server takes. A server is started in this process
+ * with echo.maxClients set, and filled to the limit with clients, each in a
+ * room of its own. Each admitted client then times the round trip of chat
+ * lines to the server and back, first with nothing else going on and then
+ * while the rest of the offered clients keep trying to connect, every one
+ * of which must be turned away.
+ *
+ * The report gives the 50th and 99th percentile round trip for the admitted
+ * clients in both runs, and how many connections were rejected and how long
+ * a rejection took to arrive. A rejection taking a second or more is mostly
+ * a connection that found the listen backlog full and was tried again by
+ * TCP, which the server never saw. The run exits with status 1 if fewer
+ * clients than the limit were admitted, if any client over the limit was
+ * let in or turned away for any reason but the server being full, if the
+ * server's own count of rejections differs, or if the 99th percentile round
+ * trip under load is over MAX_P99_MS.
+ *
+ * Usage: java AdmissionLoadTest [max-clients] [offered] [lines] [port]. The
+ * defaults are a limit of 50 clients, 150 clients offered, 200 lines per
+ * admitted client, on port 5611.
+ */
+public class AdmissionLoadTest {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * The longest 99th percentile round trip allowed for admitted clients
+     * while the server turns others away.
+     */
+    private static final long MAX_P99_MS = 250;
+
+    /**
+     * How long a client over the limit waits between tries. The wait
+     * given in the rejection is ignored, to keep the server under load.
+     */
+    private static final long RETRY_MS = 20;
+
+    /**
+     * Connections rejected, and the nanoseconds from connecting to reading
+     * the rejection, summed and at most.
+     */
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong rejectNanos = new AtomicLong();
+    private static final AtomicLong slowestReject = new AtomicLong();
+
+    /**
+     * Clients over the limit that were let in or turned away for the wrong
+     * reason.
+     */
+    private static final AtomicLong wronglyAdmitted = new AtomicLong();
+    private static final AtomicLong wrongReason = new AtomicLong();
+
+    private static volatile boolean knocking = true;
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int maxClients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int offered = args.length > 1 ? Integer.parseInt(args[1]) : 150;
+        int lines = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5611;
+
+        System.setProperty("echo.messageRate", "0");
+        System.setProperty("echo.idleTimeout", "0");
+        System.setProperty("echo.searchMaxDocs", "0");
+        System.setProperty("echo.maxClients", Integer.toString(maxClients));
+        PrintStream out = System.out;
+        // the server prints every message; only the report is wanted
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        EchoServer server = new EchoServer(port);
+
+        Member[] members = new Member[maxClients];
+        int admitted = 0;
+        for (int i = 0; i < maxClients; i++) {
+            members[i] = Member.connect(port, "user" + i);
+            if (members[i] != null) {
+                admitted++;
+            }
+        }
+        if (admitted < maxClients) {
+            out.println("FAILED: only " + admitted + " of " + maxClients + " clients were admitted");
+            System.exit(1);
+        }
+
+        long[] quiet = roundTrips(members, lines);
+        Thread[] knockers = new Thread[offered - maxClients];
+        for (int i = 0; i < knockers.length; i++) {
+            knockers[i] = new Thread(() -> knock(port), "knocker" + i);
+            knockers[i].setDaemon(true);
+            knockers[i].start();
+        }
+        long[] loaded = roundTrips(members, lines);
+        knocking = false;
+        for (Thread knocker : knockers) {
+            knocker.join();
+        }
+
+        long count = rejected.get();
+        long counted = server.getMetrics().getRejectedConnections();
+        out.printf("%d clients admitted of %d offered, %d lines each%n", admitted, offered, lines);
+        out.printf("round trip alone:      p50=%.2f ms p99=%.2f ms%n",
+                quiet[quiet.length / 2] / 1e6, quiet[quiet.length * 99 / 100] / 1e6);
+        out.printf("round trip under load: p50=%.2f ms p99=%.2f ms%n",
+                loaded[loaded.length / 2] / 1e6, loaded[loaded.length * 99 / 100] / 1e6);
+        out.printf("%d connections rejected (server counted %d), avg %.2f ms max %.2f ms to reject,"
+                + " %d let in over the limit, %d turned away for another reason%n",
+                count, counted, count == 0 ? 0 : rejectNanos.get() / 1e6 / count, slowestReject.get() / 1e6,
+                wronglyAdmitted.get(), wrongReason.get());
+        if (count == 0 || count != counted || wronglyAdmitted.get() > 0 || wrongReason.get() > 0
+                || loaded[loaded.length * 99 / 100] > MAX_P99_MS * 1000000) {
+            out.println("FAILED: admission control let admitted clients down");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Has every member time its lines at once.
+     *
+     * @return the round trips of all the members, in nanoseconds, sorted.
+     */
+    private static long[] roundTrips(Member[] members, int lines) throws InterruptedException {
+        long[] all = new long[members.length * lines];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[members.length];
+        for (int i = 0; i < members.length; i++) {
+            Member member = members[i];
+            int offset = i * lines;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    member.time(all, offset, lines);
+                } catch (IOException | ClassNotFoundException | InterruptedException e) {
+                    // leaves its round trips at 0, which shows in the p50
+                    System.err.println(member.name + ": " + e);
+                }
+            }, member.name);
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    /**
+     * Keeps connecting as a client over the limit, counting how each try is
+     * turned away, until the admitted clients are done.
+     */
+    private static void knock(int port) {
+        while (knocking) {
+            long started = System.nanoTime();
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout(5000);
+                ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+                output.flush();
+                Object msg = new ObjectInputStream(socket.getInputStream()).readObject();
+                long took = System.nanoTime() - started;
+                if (!(msg instanceof Envelope) || !"rejected".equals(((Envelope) msg).getCommand())) {
+                    wronglyAdmitted.incrementAndGet();
+                } else {
+                    rejected.incrementAndGet();
+                    rejectNanos.addAndGet(took);
+                    slowestReject.accumulateAndGet(took, Math::max);
+                    if (!"full".equals(((Envelope) msg).getArg())) {
+                        wrongReason.incrementAndGet();
+                    }
+                }
+                Thread.sleep(RETRY_MS);
+            } catch (IOException | ClassNotFoundException | InterruptedException e) {
+                // a rejection that did not arrive is not counted, so the
+                // count will differ from the server's
+            }
+        }
+    }
+
+    /**
+     * An admitted client, alone in its room so that its lines come back
+     * only to itself.
+     */
+    private static class Member {
+
+        final String name;
+        final ObjectOutputStream output;
+        final ObjectInputStream input;
+
+        private Member(String name, ObjectOutputStream output, ObjectInputStream input) {
+            this.name = name;
+            this.output = output;
+            this.input = input;
+        }
+
+        /**
+         * @return the client, or null if it was rejected.
+         */
+        static Member connect(int port, String name) throws IOException, ClassNotFoundException {
+            Socket socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            // the server opens its input first, so the output goes first here
+            ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+            output.writeObject(new Envelope("setName", null, name));
+            output.writeObject(new Envelope("join", null, "room-" + name));
+            output.flush();
+            ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+            Object msg = input.readObject();
+            if (msg instanceof Envelope && "rejected".equals(((Envelope) msg).getCommand())) {
+                socket.close();
+                return null;
+            }
+            return new Member(name, output, input);
+        }
+
+        /**
+         * Sends lines one at a time, each once the last has come back.
+         *
+         * @param into where the round trips go, in nanoseconds.
+         * @param offset the first place in into for this client.
+         * @param lines the number of lines.
+         */
+        void time(long[] into, int offset, int lines) throws IOException, ClassNotFoundException {
+            for (int i = 0; i < lines; i++) {
+                String line = "ping " + i;
+                String echo = name + ": " + line;
+                long started = System.nanoTime();
+                output.writeObject(line);
+                output.flush();
+                while (!echo.equals(input.readObject())) {
+                    // presence and other notices
+                }
+                into[offset + i] = System.nanoTime() - started;
+            }
+        }
+    }
+}
+// End of AdmissionLoadTest class
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that a member that stops reading holds up nobody else in its
+ * room. A server is started in this process with a single broadcast writer,
+ * so that every member shares it, and a room is filled with readers and
+ * one member whose socket has a small receive buffer and which does not
+ * read until late in the run. A sender then floods the room with lines of
+ * a kilobyte, enough to fill the late member's TCP window many times over.
+ *
+ * The readers must get every line, with no gap between two lines much
+ * longer than BroadcastWriter.MAX_SEND_MILLIS, and none of them may be
+ * lapped. The late member skips what it could not take and, once it reads
+ * again, is sent a single resync saying how many lines it missed. The run
+ * exits with status 1 if any of that does not hold.
+ *
+ * Usage: java BroadcastStallTest [readers] [messages] [port]. The defaults
+ * are 5 readers, 8000 messages, on port 5610.
+ */
+public class BroadcastStallTest {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * Lines received by all the readers together, and the longest time
+     * between two lines reaching one reader.
+     */
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong longestGap = new AtomicLong();
+
+    /**
+     * The resyncs the late member was sent, and the lines they say it
+     * missed.
+     */
+    private static final AtomicLong resyncs = new AtomicLong();
+    private static final AtomicLong missed = new AtomicLong();
+
+    /**
+     * How long the late member waits before it starts reading.
+     */
+    private static final long LATE_MS = 3000;
+
+    /**
+     * The longest gap allowed between two lines reaching a reader.
+     */
+    private static final long MAX_GAP_MS = 4 * BroadcastWriter.MAX_SEND_MILLIS;
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5610;
+
+        System.setProperty("echo.messageRate", "0");
+        System.setProperty("echo.idleTimeout", "0");
+        System.setProperty("echo.searchMaxDocs", "0");
+        System.setProperty("echo.broadcastWriters", "1");
+        PrintStream out = System.out;
+        // the server prints every message; only the report is wanted
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        EchoServer server = new EchoServer(port);
+
+        connectLate(port);
+        for (int i = 0; i < readers; i++) {
+            connectReader(port, "reader" + i);
+        }
+        ObjectOutputStream output = connectSender(port);
+        Thread.sleep(500);
+
+        String padding = "x".repeat(1000);
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++) {
+            output.writeObject(RelayEnvelope.text(RelayEnvelope.SAY, null, i + " " + padding));
+            if (i % 50 == 49) {
+                output.reset();
+                output.flush();
+                Thread.sleep(10);
+            }
+        }
+        output.reset();
+        output.flush();
+        long deadline = System.currentTimeMillis() + LATE_MS + 5000;
+        while ((received.get() < (long) readers * messages || resyncs.get() == 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        long lapped = server.getMetrics().getBroadcastLapped();
+        out.printf("%d lines in %d ms: readers got %d of %d, longest gap %d ms, lapped %d,"
+                + " late member sent %d resyncs for %d missed lines%n",
+                messages, System.currentTimeMillis() - started, received.get(), (long) readers * messages,
+                longestGap.get(), lapped, resyncs.get(), missed.get());
+        if (received.get() < (long) readers * messages || longestGap.get() > MAX_GAP_MS
+                || resyncs.get() != 1 || lapped != 1) {
+            out.println("FAILED: a reader was held up or lapped, or the late member was not resynced once");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Connects the member that sends the lines. What it is sent back is
+     * read and thrown away.
+     */
+    private static ObjectOutputStream connectSender(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        // the server opens its input first, so the output goes first here
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.writeObject(new Envelope("setName", null, "sender"));
+        output.flush();
+        Thread drain = new Thread(() -> {
+            try {
+                InputStream input = socket.getInputStream();
+                byte[] buffer = new byte[65536];
+                while (input.read(buffer) >= 0) {
+                    // thrown away
+                }
+            } catch (IOException e) {
+                // closed at the end of the run
+            }
+        }, "sender");
+        drain.setDaemon(true);
+        drain.start();
+        return output;
+    }
+
+    /**
+     * Connects a reader, which counts the sender's lines and times the gaps
+     * between them.
+     */
+    private static void connectReader(int port, String name) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.writeObject(new Envelope("setName", null, name));
+        output.flush();
+        Thread reader = new Thread(() -> {
+            try {
+                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+                long last = 0;
+                while (true) {
+                    Object msg = input.readObject();
+                    if (msg instanceof String && ((String) msg).startsWith("sender: ")) {
+                        long now = System.currentTimeMillis();
+                        if (last != 0) {
+                            longestGap.accumulateAndGet(now - last, Math::max);
+                        }
+                        last = now;
+                        received.incrementAndGet();
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // closed at the end of the run
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connects the member that does not read until LATE_MS have passed,
+     * and then counts the resyncs it is sent.
+     */
+    private static void connectLate(int port) throws IOException {
+        Socket socket = new Socket();
+        // so that its TCP window fills after a few lines
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("localhost", port));
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.writeObject(new Envelope("setName", null, "late"));
+        output.flush();
+        Thread reader = new Thread(() -> {
+            try {
+                Thread.sleep(LATE_MS);
+                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+                while (true) {
+                    Object msg = input.readObject();
+                    if (msg instanceof Envelope && "resync".equals(((Envelope) msg).getCommand())) {
+                        resyncs.incrementAndGet();
+                        missed.addAndGet((Long) ((Envelope) msg).getData());
+                    }
+                }
+            } catch (IOException | ClassNotFoundException | InterruptedException e) {
+                // closed at the end of the run
+            }
+        }, "late");
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
+// End of BroadcastStallTest class
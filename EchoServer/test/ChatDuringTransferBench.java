@@ -0,0 +1,210 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how long room chat takes to reach a client that is downloading a
+ * large file at the same time. A server is started in this process with
+ * the download rate limit switched off, and a file is written to uploads/.
+ * A talker sends a line to the room every LINE_MS, stamped with the time it
+ * was sent, and the downloader, in the same room, notes how long each line
+ * took to arrive. This is done first with nothing else going on and then
+ * while the downloader fetches the file, which is sent to it in chunks on
+ * the same connection.
+ *
+ * The report gives the 50th and 99th percentile and the longest chat
+ * latency in both runs, and how fast the file came in. Chat should not wait
+ * behind more than a chunk or two, so the latency during the transfer
+ * should stay within some tens of milliseconds, however large the file.
+ * The run exits with status 1 if the file does not arrive whole, if too
+ * few lines arrive during the transfer to measure, or if the 99th
+ * percentile during the transfer is over MAX_P99_MS.
+ *
+ * Usage: java ChatDuringTransferBench [megabytes] [port]. The defaults are
+ * a file of 200 MB, on port 5612.
+ */
+public class ChatDuringTransferBench {
+// CLASS VARIABLES **************************************************
+
+    private static final String FILE = "chat-during-transfer.bin";
+    private static final String ROOM = "bench";
+
+    /**
+     * How often the talker sends a line, and for how long the latency is
+     * measured without a transfer.
+     */
+    private static final long LINE_MS = 20;
+    private static final long QUIET_MS = 2000;
+
+    /**
+     * The longest 99th percentile chat latency allowed during the transfer,
+     * and the fewest lines that must arrive during it.
+     */
+    private static final long MAX_P99_MS = 150;
+    private static final int MIN_LINES = 20;
+
+    /**
+     * The latencies of the lines that arrived, in nanoseconds, and whether
+     * the downloader is fetching the file.
+     */
+    private static final List<Long> quiet = new ArrayList<>();
+    private static final List<Long> loaded = new ArrayList<>();
+    private static volatile boolean downloading = false;
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5612;
+        long length = megabytes * 1024L * 1024;
+
+        Files.createDirectories(Paths.get("uploads"));
+        byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (i * 31 + (i >> 8));
+        }
+        try (OutputStream file = Files.newOutputStream(Paths.get("uploads", FILE))) {
+            for (int i = 0; i < megabytes; i++) {
+                file.write(block);
+            }
+        }
+
+        System.setProperty("echo.messageRate", "0");
+        System.setProperty("echo.downloadRate", "0");
+        System.setProperty("echo.idleTimeout", "0");
+        System.setProperty("echo.searchMaxDocs", "0");
+        PrintStream out = System.out;
+        // the server prints every message; only the report is wanted
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        new EchoServer(port);
+
+        try {
+            Socket downloader = new Socket("localhost", port);
+            downloader.setTcpNoDelay(true);
+            // the server opens its input first, so the output goes first here
+            ObjectOutputStream request = new ObjectOutputStream(downloader.getOutputStream());
+            request.writeObject(new Envelope("setName", null, "downloader"));
+            request.writeObject(new Envelope("join", null, ROOM));
+            request.flush();
+            ObjectOutputStream talker = connectTalker(port);
+            ObjectInputStream input = new ObjectInputStream(downloader.getInputStream());
+            Thread.sleep(500);
+
+            Thread talking = new Thread(() -> talk(talker), "talker");
+            talking.setDaemon(true);
+            talking.start();
+            long quietEnd = System.currentTimeMillis() + QUIET_MS;
+            while (System.currentTimeMillis() < quietEnd) {
+                receive(input.readObject());
+            }
+
+            downloading = true;
+            long started = System.nanoTime();
+            request.writeObject(new Envelope("#ftpget", FILE, null));
+            request.flush();
+            long received = 0;
+            while (true) {
+                Object msg = input.readObject();
+                if (msg instanceof FileChunk) {
+                    FileChunk chunk = (FileChunk) msg;
+                    received += chunk.getData().length;
+                    if (chunk.isLast()) {
+                        break;
+                    }
+                } else if (msg instanceof Envelope && "#ftpget".equals(((Envelope) msg).getCommand())) {
+                    out.println("FAILED: the file was not sent in chunks: " + ((Envelope) msg).getData());
+                    System.exit(1);
+                } else {
+                    receive(msg);
+                }
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+            downloading = false;
+
+            long[] before = sorted(quiet);
+            long[] during = sorted(loaded);
+            out.printf("%d MB in %.2f s (%.0f MB/s), %d of %d bytes%n",
+                    megabytes, seconds, megabytes / seconds, received, length);
+            report(out, "chat alone:          ", before);
+            report(out, "chat during transfer:", during);
+            if (received != length || during.length < MIN_LINES
+                    || during[during.length * 99 / 100] > MAX_P99_MS * 1000000) {
+                out.println("FAILED: chat was held up by the transfer, or too little arrived to tell");
+                System.exit(1);
+            }
+        } finally {
+            new File("uploads", FILE).delete();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Connects the talker and puts it in the room. What it is sent is not
+     * read; the socket buffers hold the little it gets.
+     */
+    private static ObjectOutputStream connectTalker(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.writeObject(new Envelope("setName", null, "talker"));
+        output.writeObject(new Envelope("join", null, ROOM));
+        output.flush();
+        return output;
+    }
+
+    /**
+     * Sends a line stamped with the time every LINE_MS until the program
+     * ends.
+     */
+    private static void talk(ObjectOutputStream output) {
+        try {
+            while (true) {
+                output.writeObject(Long.toString(System.nanoTime()));
+                output.reset();
+                output.flush();
+                Thread.sleep(LINE_MS);
+            }
+        } catch (IOException | InterruptedException e) {
+            // closed at the end of the run
+        }
+    }
+
+    /**
+     * Notes the latency of a line from the talker; anything else the
+     * downloader is sent is ignored.
+     */
+    private static void receive(Object msg) {
+        if (msg instanceof String && ((String) msg).startsWith("talker: ")) {
+            long sent = Long.parseLong(((String) msg).substring("talker: ".length()));
+            (downloading ? loaded : quiet).add(System.nanoTime() - sent);
+        }
+    }
+
+    private static long[] sorted(List<Long> latencies) {
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static void report(PrintStream out, String label, long[] latencies) {
+        if (latencies.length == 0) {
+            out.println(label + " no lines");
+            return;
+        }
+        out.printf("%s %d lines, p50=%.2f ms p99=%.2f ms max=%.2f ms%n", label, latencies.length,
+                latencies[latencies.length / 2] / 1e6, latencies[latencies.length * 99 / 100] / 1e6,
+                latencies[latencies.length - 1] / 1e6);
+    }
+}
+// End of ChatDuringTransferBench class
@@ -0,0 +1,145 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how many bytes a delta upload sends for an edit of a given size.
+ * A file of random bytes is signed with BlockSignatures, as the server does
+ * in answer to "#ftpsig", and then changed in the middle in three ways:
+ * bytes overwritten in place, bytes inserted, and bytes deleted, each for
+ * edits from a single byte to a megabyte. For each, the delta is worked out
+ * with FileDelta.compute, as the client does, and the "#ftpdelta" Envelope
+ * holding it is serialized to count what would cross the network. The
+ * delta is then applied to the old file to check that it rebuilds the new
+ * one.
+ *
+ * The report gives, for every edit, the bytes sent with the delta beside
+ * the size of the edit and of a whole upload, and the size of the
+ * signatures the client fetches first. An edit should cost no more than
+ * itself plus the two blocks it can break at its ends, however large the
+ * file; the run exits with status 1 if any delta sends more than the edit
+ * plus 2 blocks and MAX_OVERHEAD bytes, or does not rebuild the new file.
+ *
+ * No server is started; the signatures and deltas are the same objects the
+ * client and server exchange.
+ *
+ * Usage: java DeltaUploadBench [megabytes]. The default is a file of 16 MB.
+ */
+public class DeltaUploadBench {
+// CLASS VARIABLES **************************************************
+
+    private static final String FILE = "delta-bench.bin";
+
+    /**
+     * The sizes of the edits tried, in bytes.
+     */
+    private static final int[] EDITS = {1, 100, 1024, 10 * 1024, 100 * 1024, 1024 * 1024};
+
+    /**
+     * The most a delta may send beyond its literal data, for the Envelope,
+     * the digests and the copy operations.
+     */
+    private static final long MAX_OVERHEAD = 2048;
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        byte[] base = new byte[megabytes * 1024 * 1024];
+        Random random = new Random(1);
+        random.nextBytes(base);
+
+        File file = File.createTempFile("delta-bench", ".bin");
+        try {
+            Files.write(file.toPath(), base);
+            long started = System.nanoTime();
+            BlockSignatures sigs = BlockSignatures.compute(FILE, file, FileInfo.sha256(base));
+            double signMillis = (System.nanoTime() - started) / 1e6;
+            long whole = wireSize(new Envelope("#ftpUpload", FILE, base));
+            System.out.printf("%d MB file, %d byte blocks: signatures %d bytes (%.0f ms to sign),"
+                    + " whole upload %d bytes%n", megabytes, sigs.getBlockSize(),
+                    wireSize(new Envelope("#ftpsig", FILE, sigs)), signMillis, whole);
+            System.out.printf("%-10s %10s %12s %10s %12s %10s%n",
+                    "edit", "size", "sent", "literal", "of whole", "compute");
+
+            boolean failed = false;
+            int middle = base.length / 2 + 123;
+            for (String kind : new String[]{"overwrite", "insert", "delete"}) {
+                for (int edit : EDITS) {
+                    byte[] data = edited(base, kind, middle, edit, random);
+                    started = System.nanoTime();
+                    FileDelta delta = FileDelta.compute(data, sigs);
+                    double computeMillis = (System.nanoTime() - started) / 1e6;
+                    long sent = wireSize(new Envelope("#ftpdelta", FILE, delta));
+                    boolean rebuilt = Arrays.equals(data, apply(delta, file, base.length));
+                    boolean over = sent > edit + 2L * sigs.getBlockSize() + MAX_OVERHEAD;
+                    System.out.printf("%-10s %10d %12d %10d %11.3f%% %8.1f ms%s%n", kind, edit, sent,
+                            delta.getLiteralLength(), 100.0 * sent / whole, computeMillis,
+                            !rebuilt ? "  NOT REBUILT" : over ? "  OVER" : "");
+                    failed |= over || !rebuilt;
+                }
+            }
+            if (failed) {
+                System.out.println("FAILED: a delta sent more than its edit allows, or did not rebuild the file");
+                System.exit(1);
+            }
+        } finally {
+            file.delete();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return a copy of the file with one edit made at the given offset.
+     */
+    private static byte[] edited(byte[] base, String kind, int at, int size, Random random) {
+        byte[] edit = new byte[size];
+        random.nextBytes(edit);
+        if (kind.equals("overwrite")) {
+            byte[] data = base.clone();
+            System.arraycopy(edit, 0, data, at, size);
+            return data;
+        }
+        if (kind.equals("insert")) {
+            byte[] data = new byte[base.length + size];
+            System.arraycopy(base, 0, data, 0, at);
+            System.arraycopy(edit, 0, data, at, size);
+            System.arraycopy(base, at, data, at + size, base.length - at);
+            return data;
+        }
+        byte[] data = new byte[base.length - size];
+        System.arraycopy(base, 0, data, 0, at);
+        System.arraycopy(base, at + size, data, at, base.length - at - size);
+        return data;
+    }
+
+    /**
+     * @return the file the delta rebuilds from the old one.
+     */
+    private static byte[] apply(FileDelta delta, File base, long baseLength) throws IOException {
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream((int) delta.getLength());
+        try (FileChannel in = FileChannel.open(base.toPath(), StandardOpenOption.READ)) {
+            delta.apply(in, baseLength, rebuilt);
+        }
+        return rebuilt.toByteArray();
+    }
+
+    /**
+     * @return the number of bytes the message takes on a fresh object
+     * stream, as it would be sent.
+     */
+    private static long wireSize(Object msg) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(OutputStream.nullOutputStream());
+        try (ObjectOutputStream output = new ObjectOutputStream(counter)) {
+            output.writeObject(msg);
+        }
+        return counter.getCount();
+    }
+}
+// End of DeltaUploadBench class
@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how room chat fans out as a room grows. A server is started in
+ * this process and a room is filled with members in steps; at each step one
+ * member sends lines of chat and the time until the broadcast writers have
+ * handed every line to every member's socket is measured. The members are
+ * plain sockets drained by a single selector thread, so that the clients
+ * cost as little as possible and the figures are mostly the server's.
+ *
+ * The lines are sent in bursts well inside the room's broadcast ring, and
+ * each burst is waited out, so no member is lapped; the lapped count in the
+ * report should stay at 0. The time per delivery should stay about level as
+ * the room grows, since a line is published once however many members the
+ * room has, and the broadcast writers should allocate nothing. The run
+ * exits with status 1 if any member is lapped, if the writers allocate more
+ * than MAX_DELIVERY_BYTES per delivery at any step, or if a delivery takes
+ * more than MAX_SLOWDOWN times as long in the largest room as in the
+ * smallest.
+ *
+ * Every member takes two file descriptors in this process, so the open file
+ * limit must be a little over twice the largest room.
+ *
+ * Usage: java FanOutBench [sizes] [messages] [port]. The defaults are rooms
+ * of 1000,5000,10000 members, 1000 messages a step, on port 5604.
+ */
+public class FanOutBench {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * The lines sent before waiting for all of them to be delivered, well
+     * inside the room's broadcast ring.
+     */
+    private static final int BURST = 256;
+
+    /**
+     * The most the broadcast writers may allocate per delivery, and how
+     * many times slower a delivery may be in the largest room than in the
+     * smallest.
+     */
+    private static final double MAX_DELIVERY_BYTES = 1.0;
+    private static final double MAX_SLOWDOWN = 2.0;
+
+    /**
+     * The room the members join.
+     */
+    private static final String ROOM = "fanout";
+
+    /**
+     * Lines of chat received back by the sender.
+     */
+    private static final LongAdder echoed = new LongAdder();
+
+    /**
+     * Bytes received by all the other members together.
+     */
+    private static final LongAdder drained = new LongAdder();
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "1000,5000,10000").split(",");
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5604;
+        int largest = Integer.parseInt(sizes[sizes.length - 1].trim());
+
+        System.setProperty("echo.messageRate", "0");
+        System.setProperty("echo.idleTimeout", "0");
+        System.setProperty("echo.searchMaxDocs", "0");
+        System.setProperty("echo.maxClients", "" + (largest + 10));
+        PrintStream out = System.out;
+        // the server prints every message; only the report is wanted
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        EchoServer server = new EchoServer(port);
+
+        Selector selector = Selector.open();
+        Thread drainer = new Thread(() -> drain(selector), "drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        ObjectOutputStream output = connectSender(new Socket("localhost", port));
+        ArrayList<Thread> writers = new ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("broadcast-")) {
+                writers.add(t);
+            }
+        }
+        com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        out.println(messages + " messages a step, " + writers.size() + " broadcast writers");
+
+        boolean failed = false;
+        double firstNanos = 0;
+        double lastNanos = 0;
+        int members = 1;
+        for (String size : sizes) {
+            int wanted = Integer.parseInt(size.trim());
+            for (; members < wanted; members++) {
+                connectMember(selector, port);
+                // connecting faster than the server accepts overflows its
+                // backlog, and each refused connection then waits a second
+                while (members - server.getNumberOfClients() > 5) {
+                    Thread.sleep(1);
+                }
+            }
+            Thread.sleep(500);
+            awaitIdle(server);
+
+            // a short burst first so the step is measured warm
+            send(output, BURST, server);
+            long gcBefore = collections();
+            long gcTimeBefore = collectionTime();
+            long lappedBefore = server.getMetrics().getBroadcastLapped();
+            long bytesBefore = drained.sum();
+            long allocatedBefore = allocated(threads, writers);
+            long started = System.nanoTime();
+            for (int sent = 0; sent < messages; sent += BURST) {
+                send(output, Math.min(BURST, messages - sent), server);
+            }
+            long nanos = System.nanoTime() - started;
+            long deliveries = (long) messages * members;
+            double perDelivery = (double) (allocated(threads, writers) - allocatedBefore) / deliveries;
+            long lapped = server.getMetrics().getBroadcastLapped() - lappedBefore;
+            out.printf("%6d members: %,d deliveries/s, %.0f ns/delivery, %.1f MB/s, %.2f B/delivery,"
+                    + " %d collections (%d ms), lapped %d, heap %d MB%n",
+                    members, deliveries * 1_000_000_000L / nanos, (double) nanos / deliveries,
+                    (drained.sum() - bytesBefore) * 1000.0 / nanos, perDelivery,
+                    collections() - gcBefore, collectionTime() - gcTimeBefore, lapped,
+                    (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20);
+            failed |= lapped > 0 || perDelivery > MAX_DELIVERY_BYTES;
+            lastNanos = (double) nanos / deliveries;
+            if (firstNanos == 0) {
+                firstNanos = lastNanos;
+            }
+        }
+        if (failed || lastNanos > firstNanos * MAX_SLOWDOWN) {
+            out.printf("FAILED: over the targets of %.2f B/delivery, %.1f times slower in the largest room,"
+                    + " or members lapped%n", MAX_DELIVERY_BYTES, MAX_SLOWDOWN);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends a burst of lines and waits until every member has been sent all
+     * of them.
+     */
+    private static void send(ObjectOutputStream output, int count, EchoServer server)
+            throws IOException, InterruptedException {
+        long base = echoed.sum();
+        for (int i = 0; i < count; i++) {
+            output.writeObject(RelayEnvelope.text(RelayEnvelope.SAY, null, "hello room " + i));
+            if (i % 100 == 99) {
+                output.reset();
+            }
+        }
+        output.reset();
+        output.flush();
+        // once the sender has its own lines back they have all been published
+        while (echoed.sum() < base + count) {
+            Thread.sleep(1);
+        }
+        awaitIdle(server);
+    }
+
+    /**
+     * Waits until the broadcast writers have nothing left to send.
+     */
+    private static void awaitIdle(EchoServer server) throws InterruptedException {
+        while (!server.broadcastIdle()) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * @return the bytes allocated so far by the broadcast writers together.
+     */
+    private static long allocated(com.sun.management.ThreadMXBean threads, ArrayList<Thread> writers) {
+        long total = 0;
+        for (Thread writer : writers) {
+            total += Math.max(0, threads.getThreadAllocatedBytes(writer.getId()));
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of collections so far.
+     */
+    private static long collections() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * @return the milliseconds spent collecting so far.
+     */
+    private static long collectionTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Connects the member that sends, names it and puts it in the room.
+     * Its lines come back to it and are counted.
+     *
+     * @param socket the sender's socket.
+     * @return the sender's output stream.
+     */
+    private static ObjectOutputStream connectSender(Socket socket) throws IOException {
+        // the server opens its input first, so the output goes first here
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.flush();
+        Thread reader = new Thread(() -> {
+            try {
+                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+                while (true) {
+                    Object msg = input.readObject();
+                    if (msg instanceof String && ((String) msg).startsWith("sender: ")) {
+                        echoed.increment();
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // closed at the end of the run
+            }
+        }, "sender");
+        reader.setDaemon(true);
+        reader.start();
+        output.writeObject(new Envelope("setName", null, "sender"));
+        output.writeObject(new Envelope("join", null, ROOM));
+        output.flush();
+        return output;
+    }
+
+    /**
+     * Connects a member and puts it in the room without naming it, so that
+     * filling the room does not send every member a presence update for
+     * every other one. What the member is sent is only counted.
+     *
+     * @param selector the selector draining the members.
+     * @param port the server's port.
+     */
+    private static void connectMember(Selector selector, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        ObjectOutputStream output = new ObjectOutputStream(Channels.newOutputStream(channel));
+        output.writeObject(new Envelope("join", null, ROOM));
+        output.flush();
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads and counts whatever the members are sent, until the program
+     * ends.
+     */
+    private static void drain(Selector selector) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (true) {
+                // a short timeout lets members registered meanwhile be seen
+                selector.select(10);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    int n;
+                    while ((n = ((SocketChannel) key.channel()).read(buffer.clear())) > 0) {
+                        drained.add(n);
+                    }
+                    if (n < 0) {
+                        key.cancel();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // closed at the end of the run
+        }
+    }
+}
+// End of FanOutBench class
@@ -0,0 +1,299 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TCP proxy on the local machine that passes connections on to a server
+ * and can break each of them in its own way: slow them down, cap their
+ * bandwidth, stop passing on what the server sends, go silent without
+ * closing, or reset them part way through. A fault is armed before a client
+ * connects through the proxy and applies to the next connection it accepts;
+ * connections with no fault armed are passed on untouched.
+ *
+ * Each direction of a connection is copied by a thread of its own, named
+ * "proxy-up" or "proxy-down", so that a test can tell them apart from the
+ * server's threads.
+ */
+public class FaultProxy implements Closeable {
+// INSTANCE VARIABLES ***********************************************
+
+    /**
+     * The ways a connection can be broken.
+     */
+    public enum Kind {
+        /** Passed on untouched. */
+        NONE,
+        /** Each read is held for param ms before it is passed on. */
+        LATENCY,
+        /** Limited to param bytes per second each way. */
+        BANDWIDTH,
+        /** Nothing the server sends is passed on, for holdMs ms. */
+        STALL_DOWN,
+        /** Silent after param bytes each way, for holdMs ms. */
+        HALF_OPEN,
+        /** Reset after param bytes from the client. */
+        RESET_AFTER
+    }
+
+    /**
+     * A fault for one connection.
+     */
+    public static class Fault {
+
+        final Kind kind;
+        final long param;
+        final long holdMs;
+
+        /**
+         * @param kind how the connection is broken.
+         * @param param what the kind says it is.
+         */
+        public Fault(Kind kind, long param) {
+            this(kind, param, 0);
+        }
+
+        /**
+         * @param kind how the connection is broken.
+         * @param param what the kind says it is.
+         * @param holdMs how long a stall lasts before the proxy resets both
+         * sides.
+         */
+        public Fault(Kind kind, long param, long holdMs) {
+            this.kind = kind;
+            this.param = param;
+            this.holdMs = holdMs;
+        }
+
+        @Override
+        public String toString() {
+            return kind + "(" + param + ")";
+        }
+    }
+
+    private final ServerSocket listen;
+    private final int target;
+
+    /**
+     * The faults for the next connections accepted, in order.
+     */
+    private final BlockingQueue<Fault> armed = new LinkedBlockingQueue<>();
+
+    /**
+     * Both sides of every connection being passed on.
+     */
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The connections the proxy reset, and those it accepted.
+     */
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+// CONSTRUCTORS *****************************************************
+    /**
+     * Constructs a proxy and starts accepting connections.
+     *
+     * @param port the port to listen on.
+     * @param target the port of the server on this machine.
+     * @exception IOException if the port cannot be listened on.
+     */
+    public FaultProxy(int port, int target) throws IOException {
+        this.listen = new ServerSocket(port);
+        this.target = target;
+        Thread acceptor = new Thread(this::acceptLoop, "proxy-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+// CLASS METHODS ****************************************************
+    /**
+     * Closes a socket so that the other side sees it reset rather than
+     * closed.
+     *
+     * @param socket the socket.
+     */
+    public static void reset(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+// INSTANCE METHODS *************************************************
+    /**
+     * @return the port the proxy listens on.
+     */
+    public int getPort() {
+        return listen.getLocalPort();
+    }
+
+    /**
+     * Sets the fault for the next connection accepted.
+     *
+     * @param fault the fault.
+     */
+    public void arm(Fault fault) {
+        armed.add(fault);
+    }
+
+    /**
+     * @return the number of connections the proxy reset.
+     */
+    public long getResets() {
+        return resets.get();
+    }
+
+    /**
+     * @return the number of connections the proxy accepted.
+     */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Closes every connection being passed on, which ends any stall.
+     */
+    public void dropAll() {
+        for (Socket socket : open) {
+            closeQuietly(socket);
+        }
+        open.clear();
+    }
+
+    /**
+     * Stops accepting connections and closes those being passed on.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listen.close();
+        dropAll();
+    }
+
+    /**
+     * Accepts connections until the proxy is closed, connecting each to
+     * the server with the next fault armed.
+     */
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket client = listen.accept();
+                connections.incrementAndGet();
+                Fault fault = armed.poll();
+                if (fault == null) {
+                    fault = new Fault(Kind.NONE, 0);
+                }
+                Socket server = new Socket();
+                if (fault.kind == Kind.STALL_DOWN) {
+                    // so that the server's writes back up quickly
+                    server.setReceiveBufferSize(8192);
+                }
+                server.connect(new InetSocketAddress("localhost", target));
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                open.add(client);
+                open.add(server);
+                pump(client, server, fault, true);
+                pump(server, client, fault, false);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("proxy could not accept: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts copying one direction of a connection, breaking it as the
+     * fault says.
+     *
+     * @param from the socket read from.
+     * @param to the socket written to.
+     * @param fault the connection's fault.
+     * @param upstream true for the client's side to the server's.
+     */
+    private void pump(Socket from, Socket to, Fault fault, boolean upstream) {
+        Thread pump = new Thread(() -> {
+            byte[] buffer = new byte[16384];
+            long forwarded = 0;
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    if ((!upstream && fault.kind == Kind.STALL_DOWN)
+                            || (fault.kind == Kind.HALF_OPEN && forwarded >= fault.param)) {
+                        // stop passing anything on, without closing, until
+                        // the hold runs out or the connection is dropped
+                        long end = System.currentTimeMillis() + fault.holdMs;
+                        while (!closed && !from.isClosed() && !to.isClosed()
+                                && System.currentTimeMillis() < end) {
+                            Thread.sleep(50);
+                        }
+                        resets.incrementAndGet();
+                        reset(from);
+                        reset(to);
+                        return;
+                    }
+                    int max = fault.kind == Kind.BANDWIDTH
+                            ? (int) Math.min(buffer.length, Math.max(1, fault.param / 20)) : buffer.length;
+                    int n = in.read(buffer, 0, max);
+                    if (n < 0) {
+                        break;
+                    }
+                    if (fault.kind == Kind.LATENCY) {
+                        Thread.sleep(fault.param);
+                    } else if (fault.kind == Kind.BANDWIDTH) {
+                        Thread.sleep(Math.max(1, n * 1000L / fault.param));
+                    } else if (fault.kind == Kind.RESET_AFTER && upstream && forwarded + n >= fault.param) {
+                        int part = (int) (fault.param - forwarded);
+                        if (part > 0) {
+                            out.write(buffer, 0, part);
+                        }
+                        resets.incrementAndGet();
+                        reset(from);
+                        reset(to);
+                        return;
+                    }
+                    out.write(buffer, 0, n);
+                    forwarded += n;
+                }
+                to.shutdownOutput();
+                if (from.isOutputShutdown()) {
+                    // both directions are done
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            } catch (IOException | InterruptedException e) {
+                closeQuietly(from);
+                closeQuietly(to);
+            } finally {
+                if (from.isClosed() || to.isClosed()) {
+                    open.remove(from);
+                    open.remove(to);
+                }
+            }
+        }, upstream ? "proxy-up" : "proxy-down");
+        pump.setDaemon(true);
+        pump.start();
+    }
+}
+// End of FaultProxy class
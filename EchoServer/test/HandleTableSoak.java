@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks that a long session does not make a connection hold on to what it
+ * has sent. A server is started in this process, and one client sends a
+ * million messages to another through it: room chat, private messages and
+ * who requests, whose replies go through the connection's own object
+ * stream. The clients reset their own streams after every message so that
+ * only the server's streams are being measured.
+ *
+ * After every tenth of the run the heap is collected and measured. The run
+ * fails if it has grown by more than HEAP_GROWTH_LIMIT since the first
+ * tenth, which it does within a few hundred thousand messages when the
+ * server never resets its streams; pass a reset policy of 0 0 to see that.
+ *
+ * Usage: java HandleTableSoak [messages] [reset-messages] [reset-bytes]
+ * [port]. The defaults are 1000000 messages with the server's default reset
+ * policy on port 5602.
+ */
+public class HandleTableSoak {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * How much the heap may grow after the first tenth of the run, in bytes.
+     */
+    private static final long HEAP_GROWTH_LIMIT = 16L * 1024 * 1024;
+
+    /**
+     * The most messages sent and not yet received, so the sender cannot run
+     * ahead and fill the heap with messages in flight.
+     */
+    private static final int WINDOW = 2000;
+
+    /**
+     * Messages received by the second client.
+     */
+    private static final LongAdder received = new LongAdder();
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5602;
+
+        System.setProperty("echo.messageRate", "0");
+        System.setProperty("echo.idleTimeout", "0");
+        // the search index keeps every message up to its own limit
+        System.setProperty("echo.searchMaxDocs", "0");
+        PrintStream out = System.out;
+        // the server prints every message; only the report is wanted
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        EchoServer server = new EchoServer(port);
+        if (args.length > 2) {
+            server.setResetPolicy(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+        }
+        out.println("server reset policy: every " + server.getResetMessages() + " messages or "
+                + server.getResetBytes() + " bytes");
+
+        Socket senderSocket = new Socket("localhost", port);
+        ObjectOutputStream sender = connect(senderSocket, "sender", false);
+        Socket receiverSocket = new Socket("localhost", port);
+        connect(receiverSocket, "receiver", true);
+        Thread.sleep(500);
+
+        ArrayList<String> failures = new ArrayList<>();
+        long heapBase = 0;
+        long step = Math.max(1, messages / 10);
+        long expected = 0;
+        long started = System.nanoTime();
+        for (int i = 1; i <= messages; i++) {
+            Object msg;
+            if (i % 8 == 0) {
+                msg = RelayEnvelope.text(RelayEnvelope.PM, "receiver", "private message number " + i);
+            } else if (i % 4 == 0) {
+                Envelope who = new Envelope("who", null, null);
+                who.setRequestId(i);
+                msg = who;
+            } else {
+                msg = RelayEnvelope.text(RelayEnvelope.SAY, null, "room message number " + i);
+            }
+            send(sender, msg);
+            // the receiver gets every room message and private message
+            if (i % 8 == 0 || i % 4 != 0) {
+                expected++;
+            }
+            while (expected - received.sum() > WINDOW) {
+                Thread.onSpinWait();
+            }
+
+            if (i % step == 0) {
+                long heap = usedHeap();
+                if (i == step) {
+                    heapBase = heap;
+                }
+                long seconds = Math.max(1, (System.nanoTime() - started) / 1_000_000_000L);
+                out.printf("%8d messages, %6d/s, heap %.1f MB%n", i, i / seconds, heap / 1048576.0);
+                if (heap - heapBase > HEAP_GROWTH_LIMIT) {
+                    failures.add(String.format("heap grew by %.1f MB after %d messages",
+                            (heap - heapBase) / 1048576.0, i));
+                }
+            }
+        }
+        out.println(server.getMetrics());
+        out.println(failures.isEmpty() ? "PASS" : "FAIL\n  " + String.join("\n  ", failures));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Connects a client and names it.
+     *
+     * @param socket the client's socket.
+     * @param name the client's name.
+     * @param counting whether what the client receives is counted.
+     * @return the client's output stream.
+     */
+    private static ObjectOutputStream connect(Socket socket, String name, boolean counting)
+            throws IOException {
+        // the server opens its input first, so the output goes first here
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.flush();
+        Thread reader = new Thread(() -> {
+            try {
+                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+                while (true) {
+                    Object msg = input.readObject();
+                    if (counting && msg instanceof RelayEnvelope) {
+                        received.increment();
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // closed at the end of the run
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+        send(output, new Envelope("setName", null, name));
+        return output;
+    }
+
+    private static void send(ObjectOutputStream output, Object msg) throws IOException {
+        output.writeObject(msg);
+        output.reset();
+        output.flush();
+    }
+
+    /**
+     * @return the heap in use after collecting garbage, in bytes.
+     */
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
+// End of HandleTableSoak class
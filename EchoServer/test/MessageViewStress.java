@@ -0,0 +1,239 @@
+import java.awt.GraphicsEnvironment;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.JList;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Floods a room with chat and watches the client that has to show it. A
+ * server is started in this process with its message rate limit off,
+ * several senders log in and share out the given rate between them, and
+ * one viewer logs in to the same room.
+ *
+ * With a display the viewer is a ClientGUI. Without one, it is a ChatClient
+ * feeding a MessageListModel behind a JList the same way ClientGUI does:
+ * queued from the reader thread, moved onto the model by a 16 ms timer.
+ *
+ * Every second it reports the messages received, how long the event
+ * dispatch thread took to run a probe, the rows held, and the heap in use.
+ * It fails if the event dispatch thread was ever held up for longer than
+ * EDT_LAG_LIMIT, if the rows exceed ClientGUI.MAX_MESSAGES, or if the heap
+ * keeps growing after the first seconds.
+ *
+ * Usage: java MessageViewStress [rate] [seconds] [senders] [port]. The
+ * defaults are 10000 messages per second for 30 seconds from 8 senders on
+ * port 5601.
+ */
+public class MessageViewStress {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * The longest the event dispatch thread may take to run a probe, in ms.
+     */
+    private static final long EDT_LAG_LIMIT = 250;
+
+    /**
+     * How much the heap may grow between the end of the warm up and the end
+     * of the run, in bytes.
+     */
+    private static final long HEAP_GROWTH_LIMIT = 32L * 1024 * 1024;
+
+    /**
+     * The seconds at the start of the run before the heap baseline is
+     * taken, once the message ring has filled.
+     */
+    private static final int WARM_UP = 5;
+
+    /**
+     * Messages received by the viewer.
+     */
+    private static final LongAdder received = new LongAdder();
+
+    /**
+     * The model behind the viewer's list when there is no display, null
+     * otherwise.
+     */
+    private static MessageListModel model;
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int senders = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5601;
+
+        System.setProperty("echo.messageRate", "0");
+        System.setProperty("echo.idleTimeout", "0");
+        PrintStream out = System.out;
+        // the server and clients print every message; only the report is wanted
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        EchoServer server = new EchoServer(port);
+
+        startViewer(port);
+        ChatClient[] clients = new ChatClient[senders];
+        for (int i = 0; i < senders; i++) {
+            clients[i] = new ChatClient("localhost", port, message -> {
+            });
+            clients[i].handleMessageFromClientUI("#login sender" + i);
+        }
+        Thread.sleep(1000);
+
+        out.println("viewer: " + (model == null ? "ClientGUI" : "MessageListModel (no display)")
+                + ", " + rate + " msg/s from " + senders + " senders for " + seconds + " s");
+
+        long interval = TimeUnit.SECONDS.toNanos(1) * senders / rate;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            ChatClient client = clients[i];
+            Thread t = new Thread(() -> pump(client, interval, end), "sender-" + i);
+            t.start();
+            threads.add(t);
+        }
+
+        ArrayList<String> failures = new ArrayList<>();
+        long heapBase = 0;
+        long maxLag = 0;
+        for (int second = 1; second <= seconds; second++) {
+            long[] lags = probe(1000);
+            long lag = lags[lags.length - 1];
+            maxLag = Math.max(maxLag, lag);
+            int rows = rows();
+            long heap = usedHeap(second == WARM_UP || second == seconds);
+            if (second == WARM_UP) {
+                heapBase = heap;
+            }
+            out.printf("[%3ds] received=%d/s edt lag p50=%d max=%d ms rows=%s heap=%.1f MB%n",
+                    second, received.sumThenReset(), lags[lags.length / 2], lag,
+                    rows < 0 ? "?" : "" + rows, heap / 1048576.0);
+            if (lag > EDT_LAG_LIMIT) {
+                failures.add("second " + second + ": event dispatch thread held up for " + lag + " ms");
+            }
+            if (rows > ClientGUI.MAX_MESSAGES) {
+                failures.add("second " + second + ": " + rows + " rows held");
+            }
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long heapGrowth = usedHeap(true) - heapBase;
+        if (seconds > WARM_UP && heapGrowth > HEAP_GROWTH_LIMIT) {
+            failures.add(String.format("heap grew by %.1f MB after the warm up", heapGrowth / 1048576.0));
+        }
+        out.println("max edt lag " + maxLag + " ms; " + server.getMetrics());
+        out.println(failures.isEmpty() ? "PASS" : "FAIL\n  " + String.join("\n  ", failures));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Logs the viewer in, as a ClientGUI if there is a display.
+     */
+    private static void startViewer(int port) throws Exception {
+        if (!GraphicsEnvironment.isHeadless()) {
+            ClientGUI[] gui = new ClientGUI[1];
+            SwingUtilities.invokeAndWait(() -> gui[0] = new ClientGUI("localhost", port) {
+                @Override
+                public void display(String message) {
+                    received.increment();
+                    super.display(message);
+                }
+            });
+            gui[0].send("#login viewer");
+            return;
+        }
+
+        model = new MessageListModel(ClientGUI.MAX_MESSAGES);
+        JList<String> list = new JList<>(model);
+        list.setFixedCellHeight(16);
+        ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+        SwingUtilities.invokeAndWait(() -> new Timer(16, e -> {
+            ArrayList<String> batch = new ArrayList<>();
+            String message;
+            while ((message = pending.poll()) != null) {
+                batch.add(message);
+            }
+            model.addAll(batch);
+        }).start());
+        ChatClient viewer = new ChatClient("localhost", port, message -> {
+            received.increment();
+            pending.offer(message);
+        });
+        viewer.handleMessageFromClientUI("#login viewer");
+    }
+
+    /**
+     * Sends chat lines from one sender at an even pace until the end.
+     */
+    private static void pump(ChatClient client, long interval, long end) {
+        long next = System.nanoTime();
+        int n = 0;
+        while (next < end) {
+            client.handleMessageFromClientUI("message " + n++ + " the quick brown fox jumps over the lazy dog");
+            next += interval;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Posts probes to the event dispatch thread every 20 ms for the given
+     * time.
+     *
+     * @return how long each probe waited to run, in ms, sorted.
+     */
+    private static long[] probe(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        ArrayList<Long> lags = new ArrayList<>();
+        while (System.currentTimeMillis() < end) {
+            long posted = System.nanoTime();
+            long[] ran = new long[1];
+            try {
+                SwingUtilities.invokeAndWait(() -> ran[0] = System.nanoTime());
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+            lags.add((ran[0] - posted) / 1_000_000);
+            Thread.sleep(20);
+        }
+        long[] sorted = lags.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return the rows the viewer's list holds, or -1 if it is a ClientGUI.
+     */
+    private static int rows() throws Exception {
+        if (model == null) {
+            return -1;
+        }
+        int[] rows = new int[1];
+        SwingUtilities.invokeAndWait(() -> rows[0] = model.getSize());
+        return rows[0];
+    }
+
+    /**
+     * @param collect whether to collect garbage first, for a figure that
+     * can be compared.
+     * @return the heap in use, in bytes.
+     */
+    private static long usedHeap(boolean collect) {
+        if (collect) {
+            System.gc();
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
+// End of MessageViewStress class
@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how much the server allocates to relay one line of room chat. A
+ * server is started in this process, a room is filled with members, and one
+ * of them sends lines of chat. The bytes allocated by the sender's
+ * connection thread, which decodes the line and publishes it, and by the
+ * broadcast writers, which send it to every member, are read from the
+ * threads' allocation counters and divided by the lines sent.
+ *
+ * This stands in for a JMH run with -prof gc, which the project has no way
+ * to build; the counters are the same ones that profiler reads. The first
+ * round warms up the JIT and is not to be trusted. In steady state the
+ * writers should allocate nothing, and the sender only what reading the
+ * member's RelayEnvelope off the wire costs, however many members the room
+ * has. The run exits with status 1 if the last round is over either target.
+ *
+ * Usage: java RelayAllocationBench [members] [messages] [rounds] [port].
+ * The defaults are 50 members, 20000 messages and 3 rounds on port 5603.
+ */
+public class RelayAllocationBench {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * The most lines sent and not yet received, well inside the room's
+     * broadcast ring so that no member is lapped and sent a resync instead.
+     */
+    private static final int WINDOW = 256;
+
+    /**
+     * The most the broadcast writers may allocate per delivery, and the
+     * sender per line, in the last round.
+     */
+    private static final double MAX_DELIVERY_BYTES = 1.0;
+    private static final long MAX_SENDER_BYTES = 1024;
+
+    /**
+     * Lines of chat received by the member watched.
+     */
+    private static final LongAdder received = new LongAdder();
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5603;
+
+        System.setProperty("echo.messageRate", "0");
+        System.setProperty("echo.idleTimeout", "0");
+        System.setProperty("echo.searchMaxDocs", "0");
+        PrintStream out = System.out;
+        // the server prints every message; only the report is wanted
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        EchoServer server = new EchoServer(port);
+
+        ArrayList<ObjectOutputStream> outputs = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            outputs.add(connect(new Socket("localhost", port), "member" + i, i == 1));
+        }
+        Thread.sleep(500);
+
+        Thread sender = null;
+        for (Thread t : server.getClientConnections()) {
+            if ("member0".equals(((ConnectionToClient) t).getInfo("UserId"))) {
+                sender = t;
+            }
+        }
+        ArrayList<Thread> writers = new ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("broadcast-")) {
+                writers.add(t);
+            }
+        }
+        com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        out.println(members + " members, " + messages + " messages a round, "
+                + writers.size() + " broadcast writers");
+
+        ObjectOutputStream output = outputs.get(0);
+        long senderPerMessage = 0;
+        double perDelivery = 0;
+        for (int round = 1; round <= rounds; round++) {
+            long senderBefore = threads.getThreadAllocatedBytes(sender.getId());
+            long writersBefore = allocated(threads, writers);
+            long base = received.sum();
+            long started = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                output.writeObject(RelayEnvelope.text(RelayEnvelope.SAY, null, "hello world " + i));
+                if (i % 100 == 99) {
+                    output.reset();
+                    output.flush();
+                    while (base + i - received.sum() > WINDOW) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+            output.reset();
+            output.flush();
+            while (received.sum() < base + messages) {
+                Thread.sleep(1);
+            }
+            long nanos = System.nanoTime() - started;
+            long senderBytes = threads.getThreadAllocatedBytes(sender.getId()) - senderBefore;
+            long writerBytes = allocated(threads, writers) - writersBefore;
+            senderPerMessage = senderBytes / messages;
+            perDelivery = (double) writerBytes / messages / members;
+            out.printf("round %d: sender %d B/msg, broadcast writers %d B/msg (%.2f B/delivery), %d msg/s%n",
+                    round, senderPerMessage, writerBytes / messages, perDelivery,
+                    messages * 1_000_000_000L / nanos);
+        }
+        out.println(server.getMetrics());
+        if (perDelivery > MAX_DELIVERY_BYTES || senderPerMessage > MAX_SENDER_BYTES) {
+            out.printf("FAILED: over the targets of %.2f B/delivery and %d B/msg on the sender%n",
+                    MAX_DELIVERY_BYTES, MAX_SENDER_BYTES);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return the bytes allocated so far by the given threads together.
+     */
+    private static long allocated(com.sun.management.ThreadMXBean threads, ArrayList<Thread> list) {
+        long total = 0;
+        for (Thread t : list) {
+            total += Math.max(0, threads.getThreadAllocatedBytes(t.getId()));
+        }
+        return total;
+    }
+
+    /**
+     * Connects a member and names it.
+     *
+     * @param socket the member's socket.
+     * @param name the member's name.
+     * @param counting whether the chat the member receives is counted.
+     * @return the member's output stream.
+     */
+    private static ObjectOutputStream connect(Socket socket, String name, boolean counting)
+            throws IOException {
+        // the server opens its input first, so the output goes first here
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.flush();
+        Thread reader = new Thread(() -> {
+            try {
+                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+                while (true) {
+                    Object msg = input.readObject();
+                    if (counting && (msg instanceof RelayEnvelope || msg instanceof String)) {
+                        received.increment();
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // closed at the end of the run
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+        output.writeObject(new Envelope("setName", null, name));
+        output.flush();
+        return output;
+    }
+}
+// End of RelayAllocationBench class
@@ -0,0 +1,172 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how fast the search index takes in messages and how fast it
+ * answers searches once it is full. Chat lines are made up from a
+ * vocabulary of 20000 words whose use follows Zipf's law, as in real text,
+ * sent to 20 rooms by 500 users, with every tenth line a private message.
+ *
+ * The lines are handed to the index the way the server does it, through
+ * addRoomMessage and addPrivateMessage, and the report gives both the cost
+ * of that call to the thread making it and the rate at which the index's
+ * own thread gets through them. Lines are handed over no faster than the
+ * index's queue can hold them, so none should be dropped. The index is then
+ * searched for common and rare words, on their own and together, across
+ * every room, in one room, and in one room over one second; a search in
+ * one room reading every line, as a scan of the history would, is timed
+ * for comparison.
+ *
+ * A first index of the same size is filled and thrown away to warm up the
+ * JIT.
+ *
+ * Usage: java SearchBench [messages] [max-docs]. The defaults are 1000000
+ * messages into an index keeping the server's default of 250000.
+ */
+public class SearchBench {
+// CLASS VARIABLES **************************************************
+
+    private static final int VOCABULARY = 20000;
+    private static final int ROOMS = 20;
+    private static final int USERS = 500;
+
+    /**
+     * How many different lines are made up and sent over and over.
+     */
+    private static final int LINES = 50000;
+
+    /**
+     * The queries searched for: the commonest word, two common words, a
+     * common and a rarer word, and a rare word.
+     */
+    private static final String[] QUERIES = {"w1", "w1 w2", "w5 w40", "w3 w2s", "wa0", "w1 w2 w3"};
+
+    /**
+     * How many times each search is timed.
+     */
+    private static final int SEARCHES = 200;
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int maxDocs = args.length > 1 ? Integer.parseInt(args[1]) : EchoServer.DEFAULT_SEARCH_MAX_DOCS;
+        String[] lines = makeLines(new Random(1));
+
+        SearchIndex warmUp = new SearchIndex(maxDocs);
+        fill(warmUp, lines, messages);
+        warmUp.stop();
+        System.gc();
+
+        SearchIndex index = new SearchIndex(maxDocs);
+        long started = System.currentTimeMillis();
+        long nanos = System.nanoTime();
+        long addNanos = fill(index, lines, messages);
+        double seconds = (System.nanoTime() - nanos) / 1e9;
+        long finished = System.currentTimeMillis();
+        System.out.printf("indexed %d messages in %.2f s: %.0f messages/s, %.0f ns per add on the sender%n",
+                messages, seconds, messages / seconds, (double) addNanos / messages);
+        System.out.println(index);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        System.out.printf("heap used %.1f MB%n", (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+
+        // a second from the middle of the run, which is still in the index
+        // as long as it keeps at least half of what was sent
+        long from = started + (finished - started) * 3 / 4;
+        for (String query : QUERIES) {
+            time(index, query, new SearchQuery(query), "all rooms");
+            time(index, query, new SearchQuery(query, "room7", 0, 0, 0), "room7");
+            time(index, query, new SearchQuery(query, "room7", from, from + 1000, 0), "room7, 1 s");
+        }
+
+        // what reading through a room's history would cost, even without
+        // breaking the lines into words
+        long scan = System.nanoTime();
+        int found = 0;
+        for (int i = messages - 1; i >= 0 && found < SearchIndex.MAX_RESULTS; i--) {
+            String line = lines[i % lines.length];
+            if (i % 10 != 0 && i % ROOMS == 7 && line.contains("w5 ") && line.contains("w40 ")) {
+                found++;
+            }
+        }
+        System.out.printf("scanning room7 for w5 w40: %d found in %.2f ms%n",
+                found, (System.nanoTime() - scan) / 1e6);
+        System.exit(0);
+    }
+
+    /**
+     * Makes up lines of 4 to 15 words.
+     */
+    private static String[] makeLines(Random random) {
+        String[] words = new String[VOCABULARY];
+        double[] cumulative = new double[VOCABULARY];
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        String[] lines = new String[LINES];
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            line.setLength(0);
+            int length = 4 + random.nextInt(12);
+            for (int k = 0; k < length; k++) {
+                int word = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                if (word < 0) {
+                    word = -word - 1;
+                }
+                line.append(words[Math.min(word, VOCABULARY - 1)]).append(' ');
+            }
+            lines[i] = line.toString();
+        }
+        return lines;
+    }
+
+    /**
+     * Hands an index lines and waits until it has taken them all in.
+     *
+     * @return the nanoseconds spent in the calls handing the lines over.
+     */
+    private static long fill(SearchIndex index, String[] lines, int messages)
+            throws InterruptedException {
+        long base = index.getIndexed() + index.getDropped();
+        long adding = 0;
+        for (int i = 0; i < messages; i++) {
+            String line = lines[i % lines.length];
+            long start = System.nanoTime();
+            if (i % 10 == 0) {
+                index.addPrivateMessage("user" + (i % USERS), "user" + ((i + 1) % USERS), line);
+            } else {
+                index.addRoomMessage("room" + (i % ROOMS), "user" + (i % USERS), line);
+            }
+            adding += System.nanoTime() - start;
+            // no further ahead of the index than its queue holds
+            while (base + i - index.getIndexed() - index.getDropped() > SearchIndex.QUEUE_SIZE / 2) {
+                Thread.sleep(1);
+            }
+        }
+        while (index.getIndexed() + index.getDropped() < base + messages) {
+            Thread.sleep(1);
+        }
+        return adding;
+    }
+
+    /**
+     * Times one search many times and reports the median and 99th
+     * percentile.
+     */
+    private static void time(SearchIndex index, String text, SearchQuery query, String scope) {
+        long[] latencies = new long[SEARCHES];
+        int hits = 0;
+        for (int i = 0; i < SEARCHES; i++) {
+            long start = System.nanoTime();
+            hits = index.search("user1", query).size();
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-10s %-12s hits=%3d p50=%.3f ms p99=%.3f ms%n", text, scope, hits,
+                latencies[SEARCHES / 2] / 1e6, latencies[SEARCHES * 99 / 100] / 1e6);
+    }
+}
+// End of SearchBench class
@@ -0,0 +1,641 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the server for a long time under the faults that hurt it in
+ * practice, and checks that it neither leaks nor keeps its well behaved
+ * clients waiting. A server is started in this process. Healthy clients
+ * connect to it directly and time their requests; churn workers connect
+ * through a FaultProxy over and over, each time as one of these:
+ *
+ * - a slow consumer, which asks for a large file and many replies and then
+ * reads nothing, until the server's send timeout drops it;
+ * - a half-open socket, which goes silent without closing, until the
+ * server's idle timeout reaps it;
+ * - a reset part way through an upload;
+ * - bursts of join and who over a link with added latency;
+ * - a download and chat over a link with capped bandwidth;
+ * - a connection that never sends its stream header, until the handshake
+ * timeout drops it;
+ * - half an object followed by a reset.
+ *
+ * After every window the heap is collected and measured and the healthy
+ * clients' latencies are checked against the SLO. At the end the churn
+ * stops, and once the server has settled it must have no connections,
+ * threads or file descriptors left over from the run. Anything the server
+ * logs as an error fails the run too.
+ *
+ * Uploads/ in the working directory is used for the files downloaded and
+ * uploaded; the files the run makes are deleted at the end.
+ *
+ * Usage: java SoakTest [seconds] [healthy] [workers] [window-seconds]
+ * [port]. The defaults are an hour with 8 healthy clients and 6 churn
+ * workers, measured every 10 seconds, with the server on port 5608 and the
+ * proxy on the port after it. The soak.p99 system property sets the SLO in
+ * ms, 250 by default.
+ */
+public class SoakTest {
+// CLASS VARIABLES **************************************************
+
+    /**
+     * The 99th percentile latency the healthy clients must see in every
+     * window, in ns.
+     */
+    private static final long SLO_P99 = TimeUnit.MILLISECONDS.toNanos(Long.getLong("soak.p99", 250));
+
+    /**
+     * How long a healthy client waits for a reply before counting it as
+     * timed out, in ns.
+     */
+    private static final long REQUEST_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * How much the heap may grow over the run, in bytes.
+     */
+    private static final long HEAP_GROWTH_LIMIT = 48L * 1024 * 1024;
+
+    /**
+     * The files the run downloads.
+     */
+    private static final String SMALL_FILE = "soak-small.txt";
+    private static final String BIG_FILE = "soak-big.bin";
+
+    private static volatile boolean running = true;
+
+    /**
+     * The latencies of the healthy clients' requests in the current window,
+     * and over the whole run, in ns.
+     */
+    private static final List<Long> window = Collections.synchronizedList(new ArrayList<>());
+    private static final List<Long> all = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Healthy requests that got no reply in time.
+     */
+    private static final LongAdder timeouts = new LongAdder();
+
+    /**
+     * Lines the server logged as errors.
+     */
+    private static final AtomicLong serverErrors = new AtomicLong();
+
+    /**
+     * How many times each churn scenario ran.
+     */
+    private static final ConcurrentHashMap<String, AtomicLong> scenarios = new ConcurrentHashMap<>();
+
+    private static final String[] SCENARIOS = {"slowConsumer", "halfOpen", "resetMidUpload",
+        "joinWhoBurst", "bandwidthCap", "silentHandshake", "abortMidObject"};
+
+// CLASS METHODS ****************************************************
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3600;
+        int healthy = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+        long windowSeconds = args.length > 3 ? Long.parseLong(args[3]) : 10;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 5608;
+
+        Files.createDirectories(Paths.get("uploads"));
+        Files.write(Paths.get("uploads", SMALL_FILE), new byte[1024]);
+        byte[] big = new byte[4 << 20];
+        new Random(1).nextBytes(big);
+        Files.write(Paths.get("uploads", BIG_FILE), big);
+
+        System.setProperty("echo.idleTimeout", "4000");
+        System.setProperty("echo.sendTimeout", "2000");
+        System.setProperty("echo.handshakeTimeout", "2000");
+        PrintStream out = System.out;
+        // the server prints every message; only its errors are wanted
+        System.setOut(new PrintStream(new ErrorCounter(out), true));
+        EchoServer server = new EchoServer(port);
+
+        Thread.sleep(500);
+        warmUp(server, port); // so the pools made on first use are not taken for leaks
+        collect();
+        int threadBase = serverThreads();
+        long fdBase = openFiles();
+        long heapBase = usedHeap();
+        FaultProxy proxy = new FaultProxy(port + 1, port);
+        out.printf("baseline: threads=%d fds=%d heap=%.1fMB%n", threadBase, fdBase, heapBase / 1048576.0);
+
+        ArrayList<Thread> healthyThreads = new ArrayList<>();
+        for (int i = 0; i < healthy; i++) {
+            int id = i;
+            Thread t = new Thread(() -> runHealthy(port, id), "soak-healthy-" + i);
+            t.start();
+            healthyThreads.add(t);
+        }
+        ArrayList<Thread> churnThreads = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            int id = i;
+            Thread t = new Thread(() -> runChurn(port, proxy, id), "soak-churn-" + i);
+            t.start();
+            churnThreads.add(t);
+        }
+
+        ArrayList<String> failures = new ArrayList<>();
+        long end = System.currentTimeMillis() + seconds * 1000;
+        int windows = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(windowSeconds * 1000, Math.max(1, end - System.currentTimeMillis())));
+            long[] latencies = drain(window);
+            long timedOut = timeouts.sumThenReset();
+            collect();
+            long heap = usedHeap();
+            windows++;
+            ServerMetrics m = server.getMetrics();
+            out.printf("[%4ds] requests=%d p50=%.1f p99=%.1f max=%.1f ms timeouts=%d"
+                    + " | heap=%.1fMB threads=%d fds=%d clients=%d open=%d"
+                    + " | errors conn=%d handler=%d sends=%d slow=%d reaped=%d lapped=%d%n",
+                    windows * windowSeconds, latencies.length, percentile(latencies, .5),
+                    percentile(latencies, .99), percentile(latencies, 1), timedOut,
+                    heap / 1048576.0, serverThreads(), openFiles(), server.getNumberOfClients(),
+                    m.getOpenConnections(), m.getConnectionErrors(), m.getHandlerErrors(),
+                    m.getSendFailures(), m.getSlowConsumers(), m.getIdleReaped(), m.getBroadcastLapped());
+            if (latencies.length == 0) {
+                failures.add("window " + windows + ": the healthy clients got no replies");
+            } else if (percentile(latencies, .99) * 1e6 > SLO_P99) {
+                failures.add(String.format("window %d: p99 of %.1f ms is over the SLO",
+                        windows, percentile(latencies, .99)));
+            }
+            if (timedOut > 0) {
+                failures.add("window " + windows + ": " + timedOut + " healthy requests timed out");
+            }
+            if (heap - heapBase > HEAP_GROWTH_LIMIT) {
+                failures.add(String.format("window %d: the heap grew to %.1fMB", windows, heap / 1048576.0));
+            }
+        }
+
+        running = false;
+        for (Thread t : churnThreads) {
+            t.join(15000);
+        }
+        proxy.close();
+        for (Thread t : healthyThreads) {
+            t.join(5000);
+        }
+        long settle = System.currentTimeMillis() + 20000;
+        while (System.currentTimeMillis() < settle && (server.getNumberOfClients() > 0
+                || server.getMetrics().getOpenConnections() > 0 || serverThreads() > threadBase)) {
+            Thread.sleep(200);
+        }
+        collect();
+        int threadsAfter = serverThreads();
+        long fdAfter = openFiles();
+        long heapAfter = usedHeap();
+        ServerMetrics m = server.getMetrics();
+        out.printf("after: threads=%d fds=%d heap=%.1fMB clients=%d open=%d%n", threadsAfter, fdAfter,
+                heapAfter / 1048576.0, server.getNumberOfClients(), m.getOpenConnections());
+        out.println("scenarios: " + scenarios + ", proxy resets=" + proxy.getResets()
+                + " connections=" + proxy.getConnections());
+        out.println("metrics: " + m);
+        if (server.getNumberOfClients() != 0) {
+            failures.add("connection threads left: " + server.getNumberOfClients());
+        }
+        if (m.getOpenConnections() != 0) {
+            failures.add("connections never finished: " + m.getOpenConnections());
+        }
+        if (threadsAfter > threadBase) {
+            failures.add("threads " + threadsAfter + " over the baseline of " + threadBase + ": " + threadNames());
+        }
+        if (fdAfter > fdBase + 8) {
+            failures.add("file descriptors " + fdAfter + " over the baseline of " + fdBase);
+        }
+        if (heapAfter - heapBase > HEAP_GROWTH_LIMIT) {
+            failures.add(String.format("the heap is still %.1fMB after the run", heapAfter / 1048576.0));
+        }
+        if (m.getHandlerErrors() > 0 || serverErrors.get() > 0) {
+            failures.add("server errors: " + m.getHandlerErrors() + " in handlers, "
+                    + serverErrors.get() + " logged");
+        }
+        long[] every = drain(all);
+        out.printf("healthy latency over the run: n=%d p50=%.1f p99=%.2f p999=%.1f max=%.1f ms%n",
+                every.length, percentile(every, .5), percentile(every, .99), percentile(every, .999),
+                percentile(every, 1));
+        server.close();
+        deleteFiles(workers);
+        out.println(failures.isEmpty() ? "SOAK PASSED" : "SOAK FAILED\n  " + String.join("\n  ", failures));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+// HEALTHY CLIENTS --------------------------------------------------
+    /**
+     * Sends who and #ftpstat requests, and a line of chat now and then,
+     * about ten times a second until the run ends, timing every reply.
+     *
+     * @param port the server's port.
+     * @param id the client's number.
+     */
+    private static void runHealthy(int port, int id) {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+            output.flush();
+            ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+            ConcurrentHashMap<Long, Long> pending = new ConcurrentHashMap<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        Object msg = input.readObject();
+                        if (msg instanceof Envelope && ((Envelope) msg).getRequestId() != 0) {
+                            Long sent = pending.remove(((Envelope) msg).getRequestId());
+                            if (sent != null) {
+                                long latency = System.nanoTime() - sent;
+                                window.add(latency);
+                                all.add(latency);
+                            }
+                        }
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    // closed at the end of the run
+                }
+            }, "soak-reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            send(output, new Envelope("setName", null, "healthy" + id));
+            send(output, new Envelope("join", null, "lobby"));
+            Random random = new Random(id);
+            long requestId = 0;
+            while (running) {
+                requestId++;
+                Envelope request = requestId % 4 == 0
+                        ? new Envelope("#ftpstat", SMALL_FILE, null) : new Envelope("who", null, null);
+                request.setRequestId(requestId);
+                pending.put(requestId, System.nanoTime());
+                send(output, request);
+                if (requestId % 5 == 0) {
+                    send(output, "hello from healthy" + id + " #" + requestId);
+                }
+                if (requestId % 20 == 0) {
+                    send(output, new Envelope("heartbeat", null, null));
+                }
+                long now = System.nanoTime();
+                pending.entrySet().removeIf(e -> {
+                    if (now - e.getValue() > REQUEST_TIMEOUT) {
+                        timeouts.increment();
+                        return true;
+                    }
+                    return false;
+                });
+                Thread.sleep(80 + random.nextInt(40));
+            }
+        } catch (IOException | InterruptedException e) {
+            if (running) {
+                System.err.println("healthy" + id + " died: " + e);
+                timeouts.add(1000);
+            }
+        }
+    }
+
+// CHURN WORKERS ----------------------------------------------------
+    /**
+     * Runs churn scenarios, picked at random, until the run ends.
+     *
+     * @param port the server's port.
+     * @param proxy the proxy in front of the server.
+     * @param id the worker's number.
+     */
+    private static void runChurn(int port, FaultProxy proxy, int id) {
+        Random random = new Random(1000 + id);
+        while (running) {
+            int scenario = random.nextInt(SCENARIOS.length);
+            scenarios.computeIfAbsent(SCENARIOS[scenario], s -> new AtomicLong()).incrementAndGet();
+            try {
+                switch (scenario) {
+                    case 0:
+                        slowConsumer(proxy, id);
+                        break;
+                    case 1:
+                        halfOpen(proxy, id);
+                        break;
+                    case 2:
+                        resetMidUpload(proxy, id, random);
+                        break;
+                    case 3:
+                        joinWhoBurst(proxy, id, random);
+                        break;
+                    case 4:
+                        bandwidthCap(proxy, id);
+                        break;
+                    case 5:
+                        silentHandshake(port);
+                        break;
+                    default:
+                        abortMidObject(port, id);
+                        break;
+                }
+            } catch (IOException e) {
+                // the faults are meant to break the churn clients
+            }
+        }
+    }
+
+    /**
+     * Asks for a large file and many replies and reads none of them.
+     */
+    private static void slowConsumer(FaultProxy proxy, int id) throws IOException {
+        proxy.arm(new FaultProxy.Fault(FaultProxy.Kind.STALL_DOWN, 0, 3000));
+        try (Socket socket = new Socket("localhost", proxy.getPort())) {
+            ObjectOutputStream output = connect(socket, "slow" + id);
+            send(output, new Envelope("join", null, "lobby"));
+            send(output, request(new Envelope("#ftpget", BIG_FILE, null), 1));
+            for (int i = 0; i < 30; i++) {
+                send(output, request(new Envelope("who", null, null), 10 + i));
+            }
+            pause(3500);
+        }
+    }
+
+    /**
+     * Goes silent without closing, for longer than the idle timeout.
+     */
+    private static void halfOpen(FaultProxy proxy, int id) throws IOException {
+        proxy.arm(new FaultProxy.Fault(FaultProxy.Kind.HALF_OPEN, 300, 7000));
+        try (Socket socket = new Socket("localhost", proxy.getPort())) {
+            ObjectOutputStream output = connect(socket, "ghost" + id);
+            send(output, new Envelope("join", null, "lobby"));
+            pause(7500);
+        }
+    }
+
+    /**
+     * Starts uploading a file and is reset part way through.
+     */
+    private static void resetMidUpload(FaultProxy proxy, int id, Random random) throws IOException {
+        proxy.arm(new FaultProxy.Fault(FaultProxy.Kind.RESET_AFTER, 10_000 + random.nextInt(500_000)));
+        try (Socket socket = new Socket("localhost", proxy.getPort())) {
+            ObjectOutputStream output = connect(socket, "up" + id);
+            byte[] data = new byte[1 << 20];
+            random.nextBytes(data);
+            try {
+                send(output, request(new Envelope("#ftpUpload", uploadName(id), data), 1));
+            } catch (IOException expected) {
+            }
+            pause(300);
+        }
+    }
+
+    /**
+     * Sends bursts of join and who over a link with added latency.
+     */
+    private static void joinWhoBurst(FaultProxy proxy, int id, Random random) throws IOException {
+        proxy.arm(new FaultProxy.Fault(FaultProxy.Kind.LATENCY, 5 + random.nextInt(30)));
+        try (Socket socket = new Socket("localhost", proxy.getPort())) {
+            ObjectOutputStream output = connect(socket, "burst" + id);
+            for (int i = 0; i < 60; i++) {
+                send(output, new Envelope("join", null, i % 2 == 0 ? "lobby" : "room" + random.nextInt(5)));
+                send(output, request(new Envelope("who", null, null), i + 1));
+            }
+            pause(1000);
+        }
+    }
+
+    /**
+     * Downloads a file and chats over a link with capped bandwidth.
+     */
+    private static void bandwidthCap(FaultProxy proxy, int id) throws IOException {
+        proxy.arm(new FaultProxy.Fault(FaultProxy.Kind.BANDWIDTH, 64 * 1024));
+        try (Socket socket = new Socket("localhost", proxy.getPort())) {
+            ObjectOutputStream output = connect(socket, "thin" + id);
+            send(output, new Envelope("join", null, "lobby"));
+            send(output, request(new Envelope("#ftpget", SMALL_FILE, null), 1));
+            for (int i = 0; i < 5; i++) {
+                send(output, "thin" + id + " says " + i);
+                pause(200);
+            }
+            pause(1000);
+        }
+    }
+
+    /**
+     * Connects and never sends a stream header, for longer than the
+     * handshake timeout.
+     */
+    private static void silentHandshake(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        try {
+            pause(2500);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends half of an object and then resets.
+     */
+    private static void abortMidObject(int port, int id) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            connect(socket, "abort" + id);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream object = new ObjectOutputStream(bytes);
+            object.writeObject(new Envelope("pm", "healthy0", "x".repeat(5000)));
+            object.flush();
+            byte[] data = bytes.toByteArray();
+            // without the stream header, which connect already sent
+            socket.getOutputStream().write(data, 4, data.length / 2);
+            socket.getOutputStream().flush();
+            pause(100);
+            FaultProxy.reset(socket);
+        }
+    }
+
+// HELPERS ----------------------------------------------------------
+    /**
+     * Connects a few clients that use every kind of request once, then
+     * waits for them to be gone.
+     */
+    private static void warmUp(EchoServer server, int port) throws Exception {
+        ArrayList<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Socket socket = new Socket("localhost", port);
+            sockets.add(socket);
+            ObjectOutputStream output = connect(socket, "warm" + i);
+            send(output, new Envelope("join", null, "lobby"));
+            send(output, "warming " + i);
+            send(output, request(new Envelope("#ftpstat", SMALL_FILE, null), 1));
+        }
+        Thread.sleep(1500);
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        while (server.getNumberOfClients() > 0) {
+            Thread.sleep(200);
+        }
+    }
+
+    /**
+     * Opens a client's streams and names it. What the server sends is read
+     * and thrown away.
+     *
+     * @param socket the client's socket.
+     * @param name the client's name.
+     * @return the client's output stream.
+     */
+    private static ObjectOutputStream connect(Socket socket, String name) throws IOException {
+        // the server opens its input first, so the output goes first here
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.flush();
+        Thread reader = new Thread(() -> {
+            try {
+                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+                while (true) {
+                    input.readObject();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // the connection was broken or closed
+            }
+        }, "soak-churn-reader");
+        reader.setDaemon(true);
+        reader.start();
+        send(output, new Envelope("setName", null, name));
+        return output;
+    }
+
+    private static Envelope request(Envelope envelope, long requestId) {
+        envelope.setRequestId(requestId);
+        return envelope;
+    }
+
+    private static void send(ObjectOutputStream output, Object msg) throws IOException {
+        output.writeObject(msg);
+        output.reset();
+        output.flush();
+    }
+
+    private static String uploadName(int id) {
+        return "soak-upload" + id + ".bin";
+    }
+
+    private static void deleteFiles(int workers) {
+        new File("uploads", SMALL_FILE).delete();
+        new File("uploads", BIG_FILE).delete();
+        for (int i = 0; i < workers; i++) {
+            new File("uploads", uploadName(i)).delete();
+        }
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * @return the latencies in a list, sorted, and empties the list.
+     */
+    private static long[] drain(List<Long> list) {
+        long[] sorted;
+        synchronized (list) {
+            sorted = list.stream().mapToLong(Long::longValue).toArray();
+            list.clear();
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return the latency at a percentile of sorted latencies, in ms.
+     */
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, (int) Math.ceil(q * sorted.length) - 1)] / 1e6;
+    }
+
+    private static void collect() {
+        for (int i = 0; i < 2; i++) {
+            System.gc();
+            pause(100);
+        }
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return the number of file descriptors the process has open, or -1
+     * where that cannot be told.
+     */
+    private static long openFiles() {
+        String[] list = new File("/proc/self/fd").list();
+        return list == null ? -1 : list.length;
+    }
+
+    /**
+     * @return the number of live threads that are not the test's own.
+     */
+    private static int serverThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (!t.getName().startsWith("proxy-") && !t.getName().startsWith("soak-") && t.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String threadNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (!t.getName().startsWith("proxy-") && !t.getName().startsWith("soak-")) {
+                names.add(t.getName());
+            }
+        }
+        Collections.sort(names);
+        return names.toString();
+    }
+
+    /**
+     * Stands in for the server's standard output, passing on and counting
+     * the lines that report an error and dropping the rest.
+     */
+    private static class ErrorCounter extends OutputStream {
+
+        private final PrintStream out;
+        private final StringBuilder line = new StringBuilder();
+
+        ErrorCounter(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b != '\n') {
+                if (line.length() < 400) {
+                    line.append((char) b);
+                }
+                return;
+            }
+            String text = line.toString();
+            line.setLength(0);
+            if (text.startsWith("Buffer lease") || text.startsWith("ERROR")
+                    || text.startsWith("Error handling") || text.contains("Exception in")) {
+                serverErrors.incrementAndGet();
+                out.println("server: " + text);
+            }
+        }
+    }
+}
+// End of SoakTest class